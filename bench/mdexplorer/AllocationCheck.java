@@ -0,0 +1,54 @@
+package mdexplorer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+/**
+ * Checks that a robot waiting on triggers that don't fire allocates nothing per response.  Feeds room
+ * descriptions to a robot in a state with many transitions, none of which fire, and counts the bytes the
+ * thread allocates.  Exits with status 1 if it allocated more than the JVM itself might, a few kilobytes
+ * however many responses there were.
+ * <p>
+ * Usage: AllocationCheck [responses]
+ */
+public class AllocationCheck {
+
+	/** Allowance for whatever the JVM allocates on its own, like a stray buffer resize. */
+	private static final long ALLOWED_BYTES = 4096;
+
+	public static void main(String[] args) throws Exception {
+		int responses = (args.length > 0 ? Integer.parseInt(args[0]) : 20000);
+		Method allocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+				.getMethod("getThreadAllocatedBytes", long.class);
+		Object threads = ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		Robot robot = new Robot(null, "check");
+		robot.start(new Scenario(MatchingBenchmarks.waitingScenario(50)));
+		// Leave START
+		robot.newText("check", "> ");
+		robot.responseComplete("check");
+		String[] lines = MatchingBenchmarks.ROOM.split("(?<=\n)");
+
+		// Let the scrollback fill and the JIT settle before counting
+		feed(robot, lines, responses / 10);
+		long before = (Long)allocatedBytes.invoke(threads, thread);
+		feed(robot, lines, responses);
+		long allocated = (Long)allocatedBytes.invoke(threads, thread) - before;
+
+		System.out.println(responses + " responses that fired nothing allocated " + allocated + " bytes");
+		if (allocated > ALLOWED_BYTES) {
+			System.out.println("FAILED: evaluating triggers that don't fire allocates");
+			System.exit(1);
+		}
+	}
+
+	private static void feed(Robot robot, String[] lines, int responses) {
+		for (int i=0; i<responses; ++i) {
+			for (String line: lines) {
+				robot.newText("check", line);
+			}
+			robot.responseComplete("check");
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package mdexplorer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import mdexplorer.bench.BenchmarkCase;
+
+/**
+ * Benchmarks for turning what the MUD sends into lines and handing them to the listeners.
+ */
+public class DecodingBenchmarks {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** About how much a busy session reads at once. */
+	private static final int CHUNK_BYTES = 16 * 1024;
+
+	/** The room the way a MUD with colour turned on sends it, with CRLF line endings. */
+	static final String COLOURED_ROOM = ("\u001b[1;36m" + MatchingBenchmarks.ROOM.replace("\n", "\u001b[0m\r\n"))
+			.replace("Obvious exits:", "\u001b[32mObvious exits:\u001b[0m").replace("hp: 100", "hp: \u001b[1;31m100\u001b[0m");
+
+	public static List<BenchmarkCase> cases() {
+		List<BenchmarkCase> cases = new ArrayList<BenchmarkCase>();
+		cases.add(decode("DecodingBenchmarks.decodeChunk", MatchingBenchmarks.ROOM, null));
+		cases.add(decode("DecodingBenchmarks.decodeNormalizedChunk", MatchingBenchmarks.ROOM, MUD.DEFAULT_NORMALIZATION));
+		cases.add(decode("DecodingBenchmarks.decodeColouredChunk", COLOURED_ROOM, MUD.DEFAULT_NORMALIZATION));
+		cases.add(fanOut());
+		return cases;
+	}
+
+	/**
+	 * Room descriptions, each followed by a prompt marked with GO-AHEAD, as one read's worth of bytes.
+	 */
+	static ByteBuffer chunk(String roomText) {
+		ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES + 1024);
+		byte[] room = roomText.getBytes(UTF8);
+		while (chunk.position() < CHUNK_BYTES) {
+			chunk.put(room);
+			chunk.put(TelnetDecoder.IAC);
+			chunk.put(TelnetDecoder.GA);
+			chunk.put((byte)'\n');
+		}
+		chunk.flip();
+		return chunk;
+	}
+
+	/**
+	 * One read through the telnet decoder, line framer and text normalizer, the way MUD wires them up.
+	 * @param normalization how to clean up lines, or null not to
+	 */
+	private static BenchmarkCase decode(String name, final String room, final Set<MUD.Normalization> normalization) {
+		return new BenchmarkCase(name) {
+			private ByteBuffer chunk;
+			private TelnetDecoder telnet;
+			private LineFramer framer;
+			private TextNormalizer normalizer;
+			private int lines;
+
+			@Override
+			public void setUp() {
+				chunk = chunk(room);
+				normalizer = (normalization != null ? new TextNormalizer(normalization) : null);
+				framer = new LineFramer(UTF8, new LineFramer.LineHandler() {
+					public void line(CharSequence line) {
+						lines += (normalizer != null ? normalizer.normalize(line) : line).length();
+					}
+				});
+				telnet = new TelnetDecoder(new TelnetDecoder.Handler() {
+					public void text(ByteBuffer text) {
+						framer.feed(text);
+					}
+					public void endOfResponse() {
+						framer.flush();
+					}
+					public void send(byte[] command) {
+						// Nothing to answer
+					}
+					public void compressionStarted() {
+						// Never offered
+					}
+				}, false);
+			}
+
+			@Override
+			public Object run() {
+				chunk.rewind();
+				while (chunk.hasRemaining()) {
+					telnet.decode(chunk);
+				}
+				return lines;
+			}
+		};
+	}
+
+	/**
+	 * One response handed to what usually listens to a MUD: the reboot clock, a robot running a scenario
+	 * with many transitions, and a listener that ignores everything.
+	 */
+	private static BenchmarkCase fanOut() {
+		return new BenchmarkCase("DecodingBenchmarks.fanOutResponse") {
+			private final List<MUD.Listener> listeners = new CopyOnWriteArrayList<MUD.Listener>();
+			private String[] lines;
+
+			@Override
+			public void setUp() {
+				Robot robot = new Robot(new MUD("localhost", 0), "benchmark");
+				robot.start(new Scenario(MatchingBenchmarks.waitingScenario(50)));
+				listeners.add(new RebootClock());
+				listeners.add(robot);
+				listeners.add(new MUD.Listener() {
+					public void connected(String user) {
+					}
+					public void newText(String user, CharSequence lineOfText) {
+					}
+					public void responseComplete(String user) {
+					}
+					public void disconnected(String user, boolean expected) {
+					}
+				});
+				lines = MatchingBenchmarks.BIN.split("(?<=\n)");
+				// Leave START
+				robot.newText("benchmark", "> ");
+				robot.responseComplete("benchmark");
+			}
+
+			@Override
+			public Object run() {
+				for (String line: lines) {
+					for (MUD.Listener listener: listeners) {
+						listener.newText("benchmark", line);
+					}
+				}
+				for (MUD.Listener listener: listeners) {
+					listener.responseComplete("benchmark");
+				}
+				return lines;
+			}
+		};
+	}
+}
@@ -0,0 +1,110 @@
+package mdexplorer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import mdexplorer.bench.BenchmarkCase;
+
+/**
+ * Benchmarks for loading scenarios from their XML.
+ */
+public class LoadingBenchmarks {
+
+	public static List<BenchmarkCase> cases() {
+		List<BenchmarkCase> cases = new ArrayList<BenchmarkCase>();
+		cases.add(load("LoadingBenchmarks.loadTestScenarios", new Source() {
+			public byte[] bytes() throws IOException {
+				return resource("testScenarios.xml");
+			}
+		}));
+		cases.add(load("LoadingBenchmarks.loadLargeScenario", new Source() {
+			public byte[] bytes() throws IOException {
+				return largeScenario(100);
+			}
+		}));
+		cases.add(new BenchmarkCase("LoadingBenchmarks.libraryGet") {
+			@Override
+			public Object run() {
+				// A new library every time, or only the first would load anything
+				return new ScenarioLibrary(Arrays.asList("testScenarios.xml")).get("get money");
+			}
+		});
+		return cases;
+	}
+
+	private interface Source {
+		byte[] bytes() throws IOException;
+	}
+
+	/**
+	 * Parse the XML and load the scenario from it, the way ScenarioLibrary used to.
+	 */
+	private static BenchmarkCase load(String name, final Source source) {
+		return new BenchmarkCase(name) {
+			private byte[] xml;
+
+			@Override
+			public void setUp() throws IOException {
+				xml = source.bytes();
+			}
+
+			@Override
+			public Object run() throws Exception {
+				return Scenario.load(DocumentBuilderFactory.newInstance().newDocumentBuilder()
+						.parse(new ByteArrayInputStream(xml)).getDocumentElement());
+			}
+		};
+	}
+
+	static byte[] resource(String resource) throws IOException {
+		InputStream strm = LoadingBenchmarks.class.getClassLoader().getResourceAsStream(resource);
+		if (strm == null) {
+			throw new IOException("Could not find " + resource + " on the classpath");
+		}
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = strm.read(buffer)) > 0) {
+				bytes.write(buffer, 0, read);
+			}
+			return bytes.toByteArray();
+		} finally {
+			strm.close();
+		}
+	}
+
+	/**
+	 * A scenario that walks through many rooms, checking each with a regular expression and sending commands.
+	 */
+	static byte[] largeScenario(int rooms) {
+		StringBuilder xml = new StringBuilder();
+		xml.append("<Scenario name=\"walk\" silence=\"5m\">\n");
+		xml.append("    <State name=\"START\">\n");
+		xml.append("        <Transition to=\"Room 0\"/>\n");
+		xml.append("    </State>\n");
+		for (int i=0; i<rooms; ++i) {
+			String next = (i + 1 < rooms ? "Room " + (i + 1) : "END");
+			xml.append("    <State name=\"Room ").append(i).append("\">\n");
+			xml.append("        <Transition to=\"").append(next).append("\">\n");
+			xml.append("            <Trigger type=\"RegexTrigger\">Room number ").append(i).append("\\..*Obvious exits: (?&lt;exits&gt;[a-z, ]+)</Trigger>\n");
+			xml.append("            <Action type=\"SendCmdsAction\">\n");
+			xml.append("                look\n");
+			xml.append("                go north\n");
+			xml.append("            </Action>\n");
+			xml.append("        </Transition>\n");
+			xml.append("        <Transition to=\"ERROR\" timeout=\"30s\"/>\n");
+			xml.append("    </State>\n");
+		}
+		xml.append("</Scenario>\n");
+		return xml.toString().getBytes(Charset.forName("UTF-8"));
+	}
+}
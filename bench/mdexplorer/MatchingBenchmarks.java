@@ -0,0 +1,139 @@
+package mdexplorer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import mdexplorer.bench.BenchmarkCase;
+
+/**
+ * Benchmarks for matching MUD output: single triggers, and whole states with many transitions.
+ */
+public class MatchingBenchmarks {
+
+	/** A room description like the MUD sends after every move. */
+	static final String ROOM =
+			"The Newbie Bin Room\n" +
+			"This cramped room is filled floor to ceiling with junk that older players have left behind\n" +
+			"for newer ones.  A battered metal bin sits against the far wall, its lid propped open with\n" +
+			"a broken broom handle.  Faded posters of long forgotten bands peel away from the walls.\n" +
+			"Obvious exits: north, south, west.\n" +
+			"A rat scurries along the wall.\n" +
+			"hp: 100 sp: 80 mv: 120> ";
+
+	/** The bin, with what the "get money" scenario looks for at the end. */
+	static final String BIN = ROOM + "\nThe newbie bin contains 3 matches and 2 slips.\nhp: 100 sp: 80 mv: 120> ";
+
+	/** What looking at a record shows. */
+	static final String RECORD =
+			"This is the Greatest Hits album by Rocco and the Rollers, released in 1962.  The sleeve is worn\n" +
+			"soft at the corners and someone has written a phone number on the back.\n" +
+			"Tracks:\n" +
+			"1. Rolling Down the Line\n" +
+			"2. Heart of Stone\n" +
+			"3. The Last Dance at the Palace\n" +
+			"4. Midnight Train\n" +
+			"5. Blue Suede Loafers\n" +
+			"6. Goodbye Rosie\n" +
+			"7. Roll Again\n" +
+			"8. Sunday Morning Serenade\n" +
+			"9. The Ballad of Old Jim\n" +
+			"10. Encore\n" +
+			"It looks like it would play on a record player.\n" +
+			"hp: 100 sp: 80 mv: 120> ";
+
+	/** The track list regular expression from playRecordScenario.xml. */
+	static final String TRACKLIST_REGEX =
+			"This is the (?<album>.*) album by (?<singer>.*), released in \\d{4}\\.[^:]*Tracks:[^1]*(?<tracklist>(?:\\d\\d?\\. [^\\n]+\\n)+)[^:]*hp:";
+
+	/** A regular expression that java.util.regex takes time exponential in the number of x's to rule out. */
+	static final String NESTED_REGEX = "(x+x+)+y";
+
+	/** Enough x's to make NESTED_REGEX take a while, without taking all day. */
+	static final String NESTED_INPUT = "xxxxxxxxxxxxxxxxxx";
+
+	public static List<BenchmarkCase> cases() {
+		List<BenchmarkCase> cases = new ArrayList<BenchmarkCase>();
+		cases.add(triggeredBy("MatchingBenchmarks.regexRoomMiss", new RegexTrigger("The newbie bin contains.*slips"), ROOM));
+		cases.add(triggeredBy("MatchingBenchmarks.regexRoomHit", new RegexTrigger("The newbie bin contains.*slips"), BIN));
+		cases.add(triggeredBy("MatchingBenchmarks.regexTracklist",
+				new RegexTrigger(TRACKLIST_REGEX, Arrays.asList("album", "singer", "tracklist")), RECORD));
+		cases.add(triggeredBy("MatchingBenchmarks.regexTracklistMiss",
+				new RegexTrigger(TRACKLIST_REGEX, Arrays.asList("album", "singer", "tracklist")), ROOM));
+		// The same with no step limit, for what counting steps costs
+		cases.add(triggeredBy("MatchingBenchmarks.regexRoomHitNoLimit",
+				new RegexTrigger("The newbie bin contains.*slips", Collections.<String>emptyList(), 0), BIN));
+		cases.add(triggeredBy("MatchingBenchmarks.regexTracklistNoLimit",
+				new RegexTrigger(TRACKLIST_REGEX, Arrays.asList("album", "singer", "tracklist"), 0), RECORD));
+		cases.add(triggeredBy("MatchingBenchmarks.linearRoomMiss", new LinearTrigger("The newbie bin contains.*slips"), ROOM));
+		cases.add(triggeredBy("MatchingBenchmarks.linearRoomHit", new LinearTrigger("The newbie bin contains.*slips"), BIN));
+		cases.add(triggeredBy("MatchingBenchmarks.linearTracklist",
+				new LinearTrigger(TRACKLIST_REGEX, Arrays.asList("album", "singer", "tracklist")), RECORD));
+		cases.add(triggeredBy("MatchingBenchmarks.linearTracklistMiss",
+				new LinearTrigger(TRACKLIST_REGEX, Arrays.asList("album", "singer", "tracklist")), ROOM));
+		cases.add(triggeredBy("MatchingBenchmarks.regexNestedMiss", new RegexTrigger(NESTED_REGEX), NESTED_INPUT));
+		cases.add(triggeredBy("MatchingBenchmarks.linearNestedMiss", new LinearTrigger(NESTED_REGEX), NESTED_INPUT));
+		cases.add(processInput("MatchingBenchmarks.processInputMiss50", 50, ROOM));
+		cases.add(processInput("MatchingBenchmarks.processInputHit50", 50, BIN));
+		return cases;
+	}
+
+	private static BenchmarkCase triggeredBy(String name, final Trigger trigger, final String input) {
+		return new BenchmarkCase(name) {
+			private final Map<String, Object> vars = new HashMap<String, Object>();
+
+			@Override
+			public Object run() {
+				vars.clear();
+				return trigger.triggeredBy(input, vars);
+			}
+		};
+	}
+
+	private static BenchmarkCase processInput(String name, final int transitions, final String input) {
+		return new BenchmarkCase(name) {
+			private Scenario scenario;
+			private Robot robot;
+
+			@Override
+			public void setUp() {
+				scenario = new Scenario(waitingScenario(transitions));
+				robot = new Robot(null, "benchmark");
+				// Leave START
+				scenario.processInput(robot, "benchmark", "> ");
+			}
+
+			@Override
+			public Object run() {
+				return scenario.processInput(robot, "benchmark", input);
+			}
+		};
+	}
+
+	/**
+	 * A scenario that waits in one state with many transitions, each waiting for something different, and
+	 * only the last of which fires on the bin's contents.  Every transition goes back to the same state,
+	 * so it never finishes.
+	 */
+	static ScenarioDefinition waitingScenario(int transitions) {
+		List<Action> noActions = Collections.emptyList();
+		List<Scenario.Transition> waiting = new ArrayList<Scenario.Transition>();
+		for (int i=0; i<transitions - 1; ++i) {
+			// Half literal, half needing a regular expression
+			Trigger trigger = new RegexTrigger(i % 2 == 0 ? "You hear bell number " + i + " ring" :
+				"(?<who>\\w+) gives you " + i + " (?:gold|silver) coins");
+			waiting.add(new Scenario.Transition(trigger, noActions, "waiting", -1));
+		}
+		waiting.add(new Scenario.Transition(new RegexTrigger("The newbie bin contains.*slips"), noActions, "waiting", -1));
+		Scenario.State state = new Scenario.State("waiting", waiting, false);
+		Scenario.State start = new Scenario.State(ScenarioDefinition.START_STATE_NAME,
+				Collections.singletonList(new Scenario.Transition(null, noActions, "waiting", -1)), false);
+		Map<String, Scenario.State> states = new HashMap<String, Scenario.State>();
+		states.put(start.name, start);
+		states.put(state.name, state);
+		return ScenarioDefinition.create("benchmark", states, -1);
+	}
+}
@@ -0,0 +1,149 @@
+package mdexplorer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks that a StateMatcher picks the same transition as trying each trigger in order.  Makes up states
+ * from a mix of literal, prefixed and unprefixed regex triggers, some of them linear, and feeds each a
+ * scrollback that grows a random piece of MUD text at a time, as a session's does.  Every time the matcher
+ * is asked, the scrollback is also given to each trigger in turn from scratch, and the two have to agree
+ * on the transition, where its match ended and what it put in the vars.  Exits with status 1 if they don't.
+ * <p>
+ * Usage: PrefilterCheck [inputs] [seed]
+ */
+public class PrefilterCheck {
+
+	/** Regexes the states are made from, with the keys of any named groups. */
+	private static final String[][] REGEXES = {
+		{"You feel better"},
+		{"You feel"},
+		{"The newbie bin contains"},
+		{"The newbie bin contains (?<count>\\d+) matches", "count"},
+		{"You are (?<mood>\\w+)", "mood"},
+		{"(?<who>\\w+) gives you", "who"},
+		{"You .*hungry"},
+		{"You feel.{0,10}$"},
+		{"^The"},
+		{"[Tt]he bin"},
+		{"hungry|better"},
+		{"\\bgives\\b"},
+		{"feel\\s+better"},
+		{"bin[^\\n]*matches"},
+		{"(you|You) feel"},
+		{"\\d+ matches"},
+	};
+
+	/** Pieces the MUD text is made from, so the regexes both match and nearly match. */
+	private static final String[] PIECES = {
+		"You ", "you ", "feel ", "better", "The ", "the ", "newbie ", "bin ", "contains ", "3 ", "12 ",
+		"matches", "gives ", "Bob ", "are ", "happy", "hungry", "\n", "\n", "> ", "x", ".",
+	};
+
+	private static final int MAX_TRANSITIONS = 8;
+
+	/** Past the matcher's 64 filtered transitions, the rest are always tried. */
+	private static final int MANY_TRANSITIONS = 70;
+
+	public static void main(String[] args) {
+		int inputs = (args.length > 0 ? Integer.parseInt(args[0]) : 200000);
+		Random random = new Random(args.length > 1 ? Long.parseLong(args[1]) : 1);
+		int checked = 0;
+		int fired = 0;
+		int mismatches = 0;
+		while (checked < inputs) {
+			int count = (random.nextInt(50) == 0 ? MANY_TRANSITIONS : 1 + random.nextInt(MAX_TRANSITIONS));
+			List<Scenario.Transition> transitions = new ArrayList<Scenario.Transition>();
+			for (int i=0; i<count; ++i) {
+				transitions.add(new Scenario.Transition(randomTrigger(random), Collections.<Action>emptyList(), "next", -1));
+			}
+			StateMatcher matcher = new StateMatcher(transitions);
+			StateMatcher.Progress progress = matcher.newProgress();
+			Scrollback scrollback = new Scrollback(40 + random.nextInt(200));
+			for (int step=0; (step<50) && (checked<inputs); ++step) {
+				scrollback.append(randomText(random));
+				Map<String, Object> vars = new HashMap<String, Object>();
+				int[] matchEnd = new int[1];
+				int got = matcher.match(scrollback, scrollback.getPosition(), progress, vars, matchEnd);
+				Map<String, Object> wantVars = new HashMap<String, Object>();
+				int[] wantEnd = new int[1];
+				int want = inOrder(transitions, scrollback.toString(), wantVars, wantEnd);
+				++checked;
+				if ((got != want) || ((got >= 0) && ((matchEnd[0] != wantEnd[0]) || !vars.equals(wantVars)))) {
+					if (++mismatches <= 10) {
+						System.out.println("Matcher said " + got + " ending at " + matchEnd[0] + " with " + vars +
+								", in order said " + want + " ending at " + wantEnd[0] + " with " + wantVars +
+								", for [" + scrollback + "]");
+					}
+					break;
+				}
+				if (got >= 0) {
+					// The way a run leaves the state and comes back to it
+					++fired;
+					scrollback.consume(matchEnd[0]);
+					progress.reset();
+				}
+			}
+		}
+
+		System.out.println(checked + " inputs, " + fired + " fired, " + mismatches + " mismatches");
+		if (mismatches > 0) {
+			System.out.println("FAILED: the matcher doesn't pick what trying each trigger in order does");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * What choosing a transition did before there was a matcher: try each trigger on the whole input,
+	 * in order, with nothing carried over from before.
+	 */
+	private static int inOrder(List<Scenario.Transition> transitions, String input, Map<String, Object> vars,
+			int[] matchEnd) {
+		for (int i=0; i<transitions.size(); ++i) {
+			Trigger trigger = transitions.get(i).trigger;
+			if (trigger == null) {
+				matchEnd[0] = input.length();
+				return i;
+			}
+			Map<String, Object> triggerVars = new HashMap<String, Object>();
+			if (trigger.triggeredBy(input, triggerVars)) {
+				matchEnd[0] = ((RegexTrigger)trigger).newSearch().find(input, 0, vars);
+				if (!vars.equals(triggerVars)) {
+					throw new IllegalStateException("Trigger put different vars on the same input");
+				}
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static Trigger randomTrigger(Random random) {
+		if (random.nextInt(40) == 0) {
+			return null;
+		}
+		String[] regex = REGEXES[random.nextInt(REGEXES.length)];
+		List<String> keys = Arrays.asList(regex).subList(1, regex.length);
+		if (random.nextBoolean() && (LinearRegex.backtrackingRisk(regex[0]) == null)) {
+			try {
+				return new LinearTrigger(regex[0], keys);
+			} catch (RuntimeException e) {
+				// Not something it can match in linear time
+			}
+		}
+		return new RegexTrigger(regex[0], keys);
+	}
+
+	private static String randomText(Random random) {
+		StringBuilder text = new StringBuilder();
+		int pieces = 1 + random.nextInt(6);
+		for (int i=0; i<pieces; ++i) {
+			text.append(PIECES[random.nextInt(PIECES.length)]);
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,333 @@
+package mdexplorer.bench;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import mdexplorer.DecodingBenchmarks;
+import mdexplorer.LoadingBenchmarks;
+import mdexplorer.MatchingBenchmarks;
+
+/**
+ * Runs the benchmarks and reports the average time and bytes allocated per operation.  Works like a
+ * single fork, single thread JMH run in average time mode: warmup iterations, then timed iterations,
+ * each running the operation for a fixed time.  Results can be written in JMH's JSON format, so runs
+ * can be compared with the usual JMH tools, and two result files can be compared here.
+ * <p>
+ * Usage: Bench [-wi 5] [-i 5] [-r 1000] [-rf results.json] [regex]
+ * <br>
+ * Or: Bench -compare before.json after.json
+ * <p>
+ * -wi and -i are the warmup and timed iterations, -r how long each lasts in milliseconds, and the regular
+ * expression picks which benchmarks run by name.
+ */
+public class Bench {
+
+	private int warmupIterations = 5;
+	private int iterations = 5;
+	private long iterationMillis = 1000;
+
+	/** Where results go, so the JIT can't tell they are never used. */
+	private static volatile Object sink;
+
+	/** Reads how much the current thread has allocated, if the JVM can say. */
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private final Method allocatedBytes;
+
+	/** One benchmark's numbers. */
+	static class Result {
+		String name;
+		double score;
+		double error;
+		double[] raw;
+		double bytesPerOp = Double.NaN;
+	}
+
+	public Bench() {
+		Method method = null;
+		try {
+			method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+			method.invoke(threads, Thread.currentThread().getId());
+		} catch (Exception e) {
+			// Not a HotSpot JVM.  Allocation won't be reported.
+			method = null;
+		}
+		allocatedBytes = method;
+	}
+
+	/**
+	 * @return every benchmark there is
+	 */
+	public static List<BenchmarkCase> allCases() {
+		List<BenchmarkCase> cases = new ArrayList<BenchmarkCase>();
+		cases.addAll(MatchingBenchmarks.cases());
+		cases.addAll(DecodingBenchmarks.cases());
+		cases.addAll(LoadingBenchmarks.cases());
+		return cases;
+	}
+
+	/**
+	 * Time one benchmark.
+	 */
+	Result run(BenchmarkCase benchmark) throws Exception {
+		benchmark.setUp();
+		System.out.println("# Benchmark: " + benchmark.getName());
+		for (int i=0; i<warmupIterations; ++i) {
+			double[] measured = iteration(benchmark);
+			System.out.println(String.format(Locale.ROOT, "# Warmup Iteration %3d: %.3f ns/op", i + 1, measured[0]));
+		}
+		Result result = new Result();
+		result.name = benchmark.getName();
+		result.raw = new double[iterations];
+		double bytes = 0;
+		for (int i=0; i<iterations; ++i) {
+			double[] measured = iteration(benchmark);
+			result.raw[i] = measured[0];
+			bytes += measured[1];
+			System.out.println(String.format(Locale.ROOT, "Iteration %3d: %.3f ns/op", i + 1, measured[0]));
+		}
+		double mean = 0;
+		for (double next: result.raw) {
+			mean += next;
+		}
+		mean /= iterations;
+		double variance = 0;
+		for (double next: result.raw) {
+			variance += (next - mean) * (next - mean);
+		}
+		variance = (iterations > 1 ? variance / (iterations - 1) : 0);
+		result.score = mean;
+		result.error = (iterations > 1 ? studentT999(iterations - 1) * Math.sqrt(variance / iterations) : Double.NaN);
+		if (allocatedBytes != null) {
+			result.bytesPerOp = bytes / iterations;
+		}
+		return result;
+	}
+
+	/**
+	 * Run the operation over and over for one iteration's time.
+	 * @return the average nanoseconds and bytes allocated per operation
+	 */
+	private double[] iteration(BenchmarkCase benchmark) throws Exception {
+		long ops = 0;
+		long allocatedBefore = allocated();
+		long start = System.nanoTime();
+		long deadline = start + iterationMillis * 1000000L;
+		long now;
+		do {
+			// A batch between clock reads, so reading the clock doesn't swamp quick operations
+			for (int i=0; i<16; ++i) {
+				sink = benchmark.run();
+			}
+			ops += 16;
+			now = System.nanoTime();
+		} while (now < deadline);
+		long allocatedAfter = allocated();
+		return new double[] {(double)(now - start) / ops, (double)(allocatedAfter - allocatedBefore) / ops};
+	}
+
+	private long allocated() {
+		if (allocatedBytes == null) {
+			return 0;
+		}
+		try {
+			return (Long)allocatedBytes.invoke(threads, Thread.currentThread().getId());
+		} catch (Exception e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @return the two sided 99.9% Student's t value, the confidence JMH reports errors at
+	 */
+	static double studentT999(int degreesOfFreedom) {
+		final double[] table = {636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+				4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850};
+		if (degreesOfFreedom <= table.length) {
+			return table[degreesOfFreedom - 1];
+		}
+		return (degreesOfFreedom <= 30 ? 3.646 : (degreesOfFreedom <= 60 ? 3.460 : 3.291));
+	}
+
+	/**
+	 * Write results the way JMH does with -rf json.
+	 */
+	void writeJson(List<Result> results, File file) throws IOException {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			out.println("[");
+			for (int r=0; r<results.size(); ++r) {
+				Result result = results.get(r);
+				out.println("    {");
+				out.println("        \"jmhVersion\" : \"mdexplorer-bench\",");
+				out.println("        \"benchmark\" : \"" + result.name + "\",");
+				out.println("        \"mode\" : \"avgt\",");
+				out.println("        \"threads\" : 1,");
+				out.println("        \"forks\" : 1,");
+				out.println("        \"jvm\" : \"" + json(System.getProperty("java.home")) + "\",");
+				out.println("        \"jdkVersion\" : \"" + json(System.getProperty("java.version")) + "\",");
+				out.println("        \"warmupIterations\" : " + warmupIterations + ",");
+				out.println("        \"warmupTime\" : \"" + iterationMillis + " ms\",");
+				out.println("        \"measurementIterations\" : " + iterations + ",");
+				out.println("        \"measurementTime\" : \"" + iterationMillis + " ms\",");
+				out.println("        \"primaryMetric\" : {");
+				out.println("            \"score\" : " + number(result.score) + ",");
+				out.println("            \"scoreError\" : " + number(result.error) + ",");
+				out.println("            \"scoreConfidence\" : [ " + number(result.score - result.error) + ", " + number(result.score + result.error) + " ],");
+				out.println("            \"scoreUnit\" : \"ns/op\",");
+				StringBuilder raw = new StringBuilder();
+				for (int i=0; i<result.raw.length; ++i) {
+					raw.append(i > 0 ? ", " : "").append(number(result.raw[i]));
+				}
+				out.println("            \"rawData\" : [ [ " + raw + " ] ]");
+				out.println("        },");
+				out.println("        \"secondaryMetrics\" : {");
+				if (!Double.isNaN(result.bytesPerOp)) {
+					out.println("            \"\u00b7gc.alloc.rate.norm\" : {");
+					out.println("                \"score\" : " + number(result.bytesPerOp) + ",");
+					out.println("                \"scoreError\" : \"NaN\",");
+					out.println("                \"scoreUnit\" : \"B/op\"");
+					out.println("            }");
+				}
+				out.println("        }");
+				out.println("    }" + (r + 1 < results.size() ? "," : ""));
+			}
+			out.println("]");
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String number(double value) {
+		return (Double.isNaN(value) ? "\"NaN\"" : String.format(Locale.ROOT, "%.6f", value));
+	}
+
+	private static String json(String str) {
+		return str.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	/**
+	 * Print the results as a table, the way JMH ends a run.
+	 */
+	static void printTable(List<Result> results) {
+		System.out.println();
+		System.out.println(String.format(Locale.ROOT, "%-50s %5s %14s %10s %8s %12s", "Benchmark", "Mode", "Score", "Error", "Units", "Alloc B/op"));
+		for (Result result: results) {
+			System.out.println(String.format(Locale.ROOT, "%-50s %5s %14.3f \u00b1%9.3f %8s %12.1f",
+					result.name, "avgt", result.score, result.error, "ns/op", result.bytesPerOp));
+		}
+	}
+
+	/**
+	 * Compare two JSON result files, benchmark by benchmark.  A change is only called out when the
+	 * error bars don't overlap.
+	 */
+	static void compare(File before, File after) throws IOException {
+		List<Result> old = readJson(before);
+		List<Result> current = readJson(after);
+		System.out.println(String.format(Locale.ROOT, "%-50s %14s %14s %9s", "Benchmark", "Before ns/op", "After ns/op", "Change"));
+		for (Result next: current) {
+			Result previous = null;
+			for (Result candidate: old) {
+				if (candidate.name.equals(next.name)) {
+					previous = candidate;
+				}
+			}
+			if (previous == null) {
+				System.out.println(String.format(Locale.ROOT, "%-50s %14s %14.3f %9s", next.name, "-", next.score, "new"));
+				continue;
+			}
+			double change = (next.score - previous.score) / previous.score * 100;
+			boolean overlap = (next.score - next.error <= previous.score + previous.error) &&
+					(previous.score - previous.error <= next.score + next.error);
+			String verdict = (overlap ? "" : (change < 0 ? "  faster" : "  SLOWER"));
+			System.out.println(String.format(Locale.ROOT, "%-50s %14.3f %14.3f %+8.1f%%%s", next.name, previous.score, next.score, change, verdict));
+		}
+	}
+
+	/**
+	 * Read the benchmark names, scores and errors back out of a JSON result file, ours or JMH's.
+	 */
+	static List<Result> readJson(File file) throws IOException {
+		byte[] bytes = new byte[(int)file.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(bytes);
+		} finally {
+			in.close();
+		}
+		String json = new String(bytes, "UTF-8");
+		List<Result> results = new ArrayList<Result>();
+		Matcher benchmark = BENCHMARK_PATTERN.matcher(json);
+		Matcher score = SCORE_PATTERN.matcher(json);
+		while (benchmark.find()) {
+			Result result = new Result();
+			result.name = benchmark.group(1);
+			// The primary metric's score comes first
+			if (score.find(benchmark.end())) {
+				result.score = parseNumber(score.group(1));
+				result.error = parseNumber(score.group(2));
+			}
+			results.add(result);
+		}
+		return results;
+	}
+
+	private static final Pattern BENCHMARK_PATTERN = Pattern.compile("\"benchmark\"\\s*:\\s*\"([^\"]+)\"");
+	private static final Pattern SCORE_PATTERN = Pattern.compile("\"score\"\\s*:\\s*(\"?[-+0-9.eENa]+\"?)\\s*,\\s*\"scoreError\"\\s*:\\s*(\"?[-+0-9.eENa]+\"?)");
+
+	private static double parseNumber(String str) {
+		str = str.replace("\"", "");
+		return (str.equals("NaN") ? Double.NaN : Double.parseDouble(str));
+	}
+
+	public static void main(String[] args) throws Exception {
+		if ((args.length == 3) && args[0].equals("-compare")) {
+			compare(new File(args[1]), new File(args[2]));
+			return;
+		}
+		Bench bench = new Bench();
+		File resultFile = null;
+		Pattern filter = null;
+		for (int i=0; i<args.length; ++i) {
+			if (args[i].equals("-wi") && (i + 1 < args.length)) {
+				bench.warmupIterations = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-i") && (i + 1 < args.length)) {
+				bench.iterations = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-r") && (i + 1 < args.length)) {
+				bench.iterationMillis = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-rf") && (i + 1 < args.length)) {
+				resultFile = new File(args[++i]);
+			} else if (!args[i].startsWith("-") && (filter == null)) {
+				filter = Pattern.compile(args[i]);
+			} else {
+				System.err.println("Usage: Bench [-wi 5] [-i 5] [-r 1000] [-rf results.json] [regex]");
+				System.err.println("   or: Bench -compare before.json after.json");
+				System.exit(1);
+			}
+		}
+		List<Result> results = new ArrayList<Result>();
+		for (BenchmarkCase benchmark: allCases()) {
+			if ((filter == null) || filter.matcher(benchmark.getName()).find()) {
+				results.add(bench.run(benchmark));
+			}
+		}
+		printTable(results);
+		if (resultFile != null) {
+			bench.writeJson(results, resultFile);
+			System.out.println("Results written to " + resultFile);
+		}
+	}
+}
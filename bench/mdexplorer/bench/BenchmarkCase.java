@@ -0,0 +1,33 @@
+package mdexplorer.bench;
+
+/**
+ * One thing to time.  Set up once, then the operation is run over and over.
+ */
+public abstract class BenchmarkCase {
+
+	private final String name;
+
+	/**
+	 * @param name what the results call it, such as "RegexTriggerBenchmarks.roomMiss"
+	 */
+	protected BenchmarkCase(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Build whatever the operation works on.  Not timed.
+	 */
+	public void setUp() throws Exception {
+		// Nothing by default
+	}
+
+	/**
+	 * The operation being timed.
+	 * @return something computed from the work, so the JIT can't throw the work away
+	 */
+	public abstract Object run() throws Exception;
+}
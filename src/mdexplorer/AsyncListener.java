@@ -0,0 +1,264 @@
+package mdexplorer;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Feeds a listener from its own thread so a slow listener can't hold up reading from the MUD.  Events wait
+ * in a bounded ring of reusable slots.  When the ring is full, the MUD's overflow policy decides what happens.
+ */
+class AsyncListener implements MUD.Listener {
+
+	private static final int CONNECTED = 0;
+	private static final int TEXT = 1;
+	private static final int RESPONSE_COMPLETE = 2;
+	private static final int DISCONNECTED = 3;
+
+	/**
+	 * One event waiting to be handed to the listener.  Slots are reused, so text is copied into
+	 * a builder that keeps its capacity.
+	 */
+	private static class Event {
+		int type;
+		String user;
+		final StringBuilder text = new StringBuilder();
+		boolean expected;
+	}
+
+	private final MUD.Listener delegate;
+	private final MUD.OverflowPolicy policy;
+	/** Only ever replaced by a bigger one, when it's full of connects and disconnects.  Guarded by the lock. */
+	private Event[] ring;
+	private int head = 0;
+	private int count = 0;
+
+	/** The slot being handed to the listener.  Swapped in and out of the ring so producers never touch it. */
+	private Event current = new Event();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final Thread dispatchThread;
+
+	/** Set once the listener is stopped, so producers stop waiting for room.  Guarded by the lock. */
+	private boolean stopped = false;
+
+	AsyncListener(MUD.Listener delegate, int capacity, MUD.OverflowPolicy policy) {
+		this.delegate = delegate;
+		this.policy = policy;
+		this.ring = new Event[capacity];
+		for (int i=0; i<capacity; ++i) {
+			ring[i] = new Event();
+		}
+		dispatchThread = new Thread(new Runnable() {
+			public void run() {
+				dispatch();
+			}
+		}, "MUD Listener Dispatch Thread");
+		dispatchThread.setDaemon(true);
+		dispatchThread.start();
+	}
+
+	MUD.Listener getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * Stop handing events to the listener.  Anything still queued is dropped, and anything waiting for room
+	 * in the queue gives up.
+	 */
+	void stop() {
+		lock.lock();
+		try {
+			stopped = true;
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		dispatchThread.interrupt();
+	}
+
+	@Override
+	public void connected(String user) {
+		Event slot = claim(CONNECTED, user, null);
+		if (slot != null) {
+			publish(slot, CONNECTED, user);
+		}
+	}
+
+	@Override
+	public void newText(String user, CharSequence lineOfText) {
+		Event slot = claim(TEXT, user, lineOfText);
+		if (slot != null) {
+			slot.text.setLength(0);
+			slot.text.append(lineOfText);
+			publish(slot, TEXT, user);
+		}
+	}
+
+	@Override
+	public void responseComplete(String user) {
+		Event slot = claim(RESPONSE_COMPLETE, user, null);
+		if (slot != null) {
+			publish(slot, RESPONSE_COMPLETE, user);
+		}
+	}
+
+	@Override
+	public void disconnected(String user, boolean expected) {
+		Event slot = claim(DISCONNECTED, user, null);
+		if (slot != null) {
+			slot.expected = expected;
+			publish(slot, DISCONNECTED, user);
+		}
+	}
+
+	/**
+	 * Find room for a new event, applying the overflow policy if the ring is full.  Returns with the lock held
+	 * if a slot was claimed.
+	 * @return the slot to fill in, or null if the event was folded into one already queued or the listener
+	 * is stopped
+	 */
+	private Event claim(int type, String user, CharSequence text) {
+		lock.lock();
+		try {
+			while (!stopped && (count == ring.length)) {
+				if (policy == MUD.OverflowPolicy.BLOCK) {
+					notFull.await();
+					continue;
+				}
+				if ((policy == MUD.OverflowPolicy.COALESCE) && coalesce(type, user, text)) {
+					lock.unlock();
+					return null;
+				}
+				// Dropping the oldest, or coalescing and the event couldn't be joined onto another
+				if (dropOldest()) {
+					break;
+				}
+				if ((type == TEXT) || (type == RESPONSE_COMPLETE)) {
+					// Nothing queued but connects and disconnects, which are worth more than this
+					lock.unlock();
+					return null;
+				}
+				grow();
+			}
+			if (stopped) {
+				lock.unlock();
+				return null;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			lock.unlock();
+			return null;
+		}
+		return ring[(head + count) % ring.length];
+	}
+
+	/**
+	 * Fold a new event into the user's newest queued one if they're the same kind.  Consecutive text is joined
+	 * and consecutive response completions collapse into one.  Other users' events may be queued in between.
+	 */
+	private boolean coalesce(int type, String user, CharSequence text) {
+		Event newest = null;
+		for (int i=count-1; (i>=0) && (newest==null); --i) {
+			Event next = ring[(head + i) % ring.length];
+			if (next.user.equals(user)) {
+				newest = next;
+			}
+		}
+		if ((newest == null) || (newest.type != type)) {
+			return false;
+		}
+		if (type == TEXT) {
+			newest.text.append(text);
+			return true;
+		}
+		return (type == RESPONSE_COMPLETE);
+	}
+
+	/**
+	 * Throw away the oldest queued text or response completion, moving the events queued before it up.
+	 * @return false if nothing but connects and disconnects are queued
+	 */
+	private boolean dropOldest() {
+		int oldest = 0;
+		while ((oldest < count) && ((ring[(head + oldest) % ring.length].type == CONNECTED) ||
+				(ring[(head + oldest) % ring.length].type == DISCONNECTED))) {
+			++oldest;
+		}
+		if (oldest == count) {
+			return false;
+		}
+		Event dropped = ring[(head + oldest) % ring.length];
+		for (int i=oldest; i>0; --i) {
+			ring[(head + i) % ring.length] = ring[(head + i - 1) % ring.length];
+		}
+		ring[head] = dropped;
+		head = (head + 1) % ring.length;
+		--count;
+		return true;
+	}
+
+	/**
+	 * Double the ring, for when it's full of events that can't be thrown away.
+	 */
+	private void grow() {
+		Event[] bigger = new Event[ring.length * 2];
+		for (int i=0; i<bigger.length; ++i) {
+			bigger[i] = (i < count ? ring[(head + i) % ring.length] : new Event());
+		}
+		ring = bigger;
+		head = 0;
+	}
+
+	/**
+	 * Make a claimed slot visible to the dispatch thread and release the lock.
+	 */
+	private void publish(Event slot, int type, String user) {
+		slot.type = type;
+		slot.user = user;
+		++count;
+		notEmpty.signal();
+		lock.unlock();
+	}
+
+	private void dispatch() {
+		while (!Thread.currentThread().isInterrupted()) {
+			lock.lock();
+			try {
+				while (count == 0) {
+					notEmpty.await();
+				}
+				Event taken = ring[head];
+				ring[head] = current;
+				current = taken;
+				head = (head + 1) % ring.length;
+				--count;
+				notFull.signal();
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				lock.unlock();
+			}
+			try {
+				switch (current.type) {
+				case CONNECTED:
+					delegate.connected(current.user);
+					break;
+				case TEXT:
+					delegate.newText(current.user, current.text);
+					break;
+				case RESPONSE_COMPLETE:
+					delegate.responseComplete(current.user);
+					break;
+				case DISCONNECTED:
+					delegate.disconnected(current.user, current.expected);
+					break;
+				}
+			} catch (RuntimeException e) {
+				// Log it and keep going
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package mdexplorer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A set of characters, kept as sorted ranges that don't touch, like a regular expression's character class.
+ */
+final class CharRanges {
+
+	static final CharRanges ANY = new Builder().add(Character.MIN_VALUE, Character.MAX_VALUE).build(false);
+	static final CharRanges NONE = new Builder().build(false);
+	static final CharRanges DIGITS = new Builder().add('0', '9').build(false);
+	static final CharRanges WORD = new Builder().add('a', 'z').add('A', 'Z').add('_', '_').add('0', '9').build(false);
+	/** What java.util.regex counts as white space: space, tab, newline, vertical tab, form feed and carriage return. */
+	static final CharRanges SPACE = new Builder().add(' ', ' ').add('\t', '\r').build(false);
+
+	/** The first and last character of each range, in order. */
+	private final char[] bounds;
+
+	private CharRanges(char[] bounds) {
+		this.bounds = bounds;
+	}
+
+	boolean contains(char c) {
+		// Binary search for the last range starting at or before c
+		int low = 0;
+		int high = bounds.length / 2 - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (bounds[2 * middle] > c) {
+				high = middle - 1;
+			} else if (bounds[2 * middle + 1] < c) {
+				low = middle + 1;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if some character is in both sets
+	 */
+	boolean overlaps(CharRanges other) {
+		int i = 0;
+		int j = 0;
+		while ((i < bounds.length) && (j < other.bounds.length)) {
+			if (bounds[i + 1] < other.bounds[j]) {
+				i += 2;
+			} else if (other.bounds[j + 1] < bounds[i]) {
+				j += 2;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	boolean isEmpty() {
+		return bounds.length == 0;
+	}
+
+	/**
+	 * @return true if the set is just one character
+	 */
+	boolean isSingle() {
+		return (bounds.length == 2) && (bounds[0] == bounds[1]);
+	}
+
+	/**
+	 * @return the lowest character in the set.  Only meaningful if it isn't empty.
+	 */
+	char lowest() {
+		return bounds[0];
+	}
+
+	/**
+	 * Collects characters and ranges in any order.
+	 */
+	static class Builder {
+		private final List<char[]> ranges = new ArrayList<char[]>();
+
+		Builder add(char first, char last) {
+			ranges.add(new char[] {first, last});
+			return this;
+		}
+
+		Builder add(CharRanges set) {
+			for (int i=0; i<set.bounds.length; i += 2) {
+				add(set.bounds[i], set.bounds[i + 1]);
+			}
+			return this;
+		}
+
+		/**
+		 * @param negate true for every character not added instead
+		 */
+		CharRanges build(boolean negate) {
+			Collections.sort(ranges, new Comparator<char[]>() {
+				public int compare(char[] a, char[] b) {
+					return a[0] - b[0];
+				}
+			});
+			List<char[]> merged = new ArrayList<char[]>();
+			for (char[] next: ranges) {
+				char[] last = (merged.isEmpty() ? null : merged.get(merged.size() - 1));
+				if ((last != null) && (next[0] <= last[1] + 1)) {
+					last[1] = (char)Math.max(last[1], next[1]);
+				} else {
+					merged.add(new char[] {next[0], next[1]});
+				}
+			}
+			if (negate) {
+				List<char[]> gaps = new ArrayList<char[]>();
+				int from = Character.MIN_VALUE;
+				for (char[] next: merged) {
+					if (next[0] > from) {
+						gaps.add(new char[] {(char)from, (char)(next[0] - 1)});
+					}
+					from = next[1] + 1;
+				}
+				if (from <= Character.MAX_VALUE) {
+					gaps.add(new char[] {(char)from, Character.MAX_VALUE});
+				}
+				merged = gaps;
+			}
+			char[] bounds = new char[merged.size() * 2];
+			for (int i=0; i<merged.size(); ++i) {
+				bounds[2 * i] = merged.get(i)[0];
+				bounds[2 * i + 1] = merged.get(i)[1];
+			}
+			return new CharRanges(bounds);
+		}
+	}
+}
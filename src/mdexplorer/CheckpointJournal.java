@@ -0,0 +1,429 @@
+package mdexplorer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers where each user's scenario run is, so a run that loses its connection can pick up from
+ * its last checkpoint state instead of starting over.  Every state a run enters is appended to a memory
+ * mapped file, so a record costs a copy into memory and survives the program dying.  When the file
+ * fills up the journal goes on in a new file with just the records still needed.  The new file is mapped
+ * ahead of time, and written to disk and put in place of the old one afterwards, on a thread of its own,
+ * so recording doesn't wait on the disk.
+ * <p>
+ * The file is big endian:
+ * <pre>
+ * int magic, int version
+ * then records: int length, int CRC32 of the body, body
+ * body: string user, string scenario, string state, byte flags, int varCount, (string name, string value)...
+ * string: int byteCount, then that many bytes of UTF-8
+ * </pre>
+ * A zero length marks the end.  The length is written last, so a record cut off part way is never read.
+ */
+public class CheckpointJournal {
+
+	static final int MAGIC = 0x4D44434A; // "MDCJ"
+	static final int VERSION = 1;
+
+	/** How big the file starts out by default. */
+	public static final int DEFAULT_CAPACITY = 1024 * 1024;
+
+	private static final int HEADER_LENGTH = 8;
+	private static final int RECORD_HEADER_LENGTH = 8;
+
+	/** The state is a checkpoint. */
+	private static final byte CHECKPOINT_FLAG = 1;
+	/** The run is over. */
+	private static final byte DONE_FLAG = 2;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Where a run can pick up from. */
+	static class Checkpoint {
+		final String user;
+		final String scenario;
+		final String state;
+		final byte flags;
+		final Map<String, String> vars;
+
+		Checkpoint(String user, String scenario, String state, byte flags, Map<String, String> vars) {
+			this.user = user;
+			this.scenario = scenario;
+			this.state = state;
+			this.flags = flags;
+			this.vars = vars;
+		}
+	}
+
+	private final File file;
+
+	/** Where the next file is made before it takes the journal's place. */
+	private final File temp;
+
+	/** Guarded by this. */
+	private MappedByteBuffer buffer;
+
+	/** The next file, mapped and ready to go on in, or null if it isn't ready.  Guarded by this. */
+	private MappedByteBuffer spare;
+
+	/** True while the roller is getting the next file ready.  Guarded by this. */
+	private boolean rolling = false;
+
+	/** Makes the next file ready, and puts a file that has been rolled over to in place. */
+	private final ExecutorService roller = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Checkpoint Journal Roller");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/** The last checkpoint of each user's unfinished run.  Guarded by this. */
+	private final Map<String, Checkpoint> checkpoints = new LinkedHashMap<String, Checkpoint>();
+
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * @param file the journal.  Made if it doesn't exist.
+	 * @param capacity how big the file starts out.  Grows if the records still needed don't fit.
+	 */
+	public CheckpointJournal(File file, int capacity) throws IOException {
+		this.file = file;
+		this.temp = new File(file.getPath() + ".tmp");
+		boolean existed = file.exists() && (file.length() >= HEADER_LENGTH);
+		buffer = mapFile(file, Math.max(capacity, existed ? (int)file.length() : 0));
+		if (existed && (buffer.getInt(0) == MAGIC) && (buffer.getInt(4) == VERSION)) {
+			replay(buffer, file);
+		} else {
+			if (existed) {
+				System.err.println(file + " is not a checkpoint journal from this version.  Starting a new one.");
+			}
+			startJournal(buffer);
+		}
+		synchronized (this) {
+			if (temp.exists() && (temp.length() >= HEADER_LENGTH)) {
+				// Rolled over to, but not yet put in place when the program stopped.  Its records are newer.
+				MappedByteBuffer rolled = mapFile(temp, (int)temp.length());
+				if ((rolled.getInt(0) == MAGIC) && (rolled.getInt(4) == VERSION) && (replay(rolled, temp) > HEADER_LENGTH)) {
+					compact(0);
+				}
+			}
+			if (!rolling) {
+				roll(null, buffer.capacity());
+			}
+		}
+	}
+
+	/**
+	 * Note the state a run is in.  Call on starting a run and on every transition.
+	 */
+	public synchronized void record(String user, Scenario scenario) {
+		byte flags = 0;
+		if (scenario.isCheckpoint()) {
+			flags |= CHECKPOINT_FLAG;
+		}
+		if (scenario.isDone()) {
+			flags |= DONE_FLAG;
+		}
+		Map<String, String> vars = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, Object> var: scenario.getCapturedVars().entrySet()) {
+			vars.put(var.getKey(), String.valueOf(var.getValue()));
+		}
+		Checkpoint checkpoint = new Checkpoint(user, scenario.getName(), scenario.getState(), flags, vars);
+		append(encode(checkpoint));
+		remember(checkpoint);
+	}
+
+	/**
+	 * Start a run of a scenario for a user, from the user's last checkpoint if the user's last run of it
+	 * didn't finish.
+	 */
+	public synchronized Scenario resume(String user, ScenarioDefinition definition) {
+		Checkpoint checkpoint = checkpoints.get(user);
+		if ((checkpoint == null) || !checkpoint.scenario.equals(definition.getName())) {
+			return new Scenario(definition);
+		}
+		if (definition.getState(checkpoint.state) == null) {
+			System.err.println("Scenario " + definition.getName() + " no longer has state " + checkpoint.state + ".  Starting over.");
+			return new Scenario(definition);
+		}
+		System.out.println("XXXXXXXXXXXXXXXXXXX Resuming scenario " + checkpoint.scenario + " for " + user + " in state " + checkpoint.state);
+		return new Scenario(definition, checkpoint.state, new HashMap<String, Object>(checkpoint.vars));
+	}
+
+	/**
+	 * Write out anything not yet on disk.
+	 */
+	public synchronized void force() {
+		buffer.force();
+	}
+
+	/**
+	 * Keep the latest checkpoint of each unfinished run.  Starting over or finishing forgets it, and
+	 * states that aren't checkpoints leave the last one in place.
+	 */
+	private void remember(Checkpoint checkpoint) {
+		if (((checkpoint.flags & DONE_FLAG) != 0) || checkpoint.state.equals(ScenarioDefinition.START_STATE_NAME)) {
+			checkpoints.remove(checkpoint.user);
+		} else if ((checkpoint.flags & CHECKPOINT_FLAG) != 0) {
+			checkpoints.put(checkpoint.user, checkpoint);
+		}
+	}
+
+	private void append(byte[] body) {
+		if (buffer.remaining() < RECORD_HEADER_LENGTH + body.length + 4) {
+			rollOver(body.length);
+		}
+		int start = buffer.position();
+		crc.reset();
+		crc.update(body, 0, body.length);
+		buffer.position(start + RECORD_HEADER_LENGTH);
+		buffer.put(body);
+		buffer.putInt(buffer.position(), 0);
+		buffer.putInt(start + 4, (int)crc.getValue());
+		buffer.putInt(start, body.length);
+	}
+
+	/**
+	 * Go on in the next file, with just the checkpoints still needed.  The roller has usually mapped it
+	 * already, so this only copies into memory, and the roller puts it in place afterwards.  If it isn't
+	 * ready, or they and the next record wouldn't leave it at least half empty, the file is compacted here
+	 * and now instead.
+	 */
+	private void rollOver(int nextLength) {
+		List<byte[]> kept = keptRecords();
+		int needed = HEADER_LENGTH + RECORD_HEADER_LENGTH + nextLength + 4;
+		for (byte[] body: kept) {
+			needed += RECORD_HEADER_LENGTH + body.length;
+		}
+		boolean interrupted = false;
+		while (rolling) {
+			// Only if the journal filled up again before the last roll over was put in place
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if ((spare == null) || (spare.capacity() < needed * 2)) {
+			compact(nextLength);
+			return;
+		}
+		buffer = spare;
+		spare = null;
+		for (byte[] body: kept) {
+			append(body);
+		}
+		roll(buffer, buffer.capacity());
+	}
+
+	/**
+	 * Have the roller put a file rolled over to in place of the journal, then map the next one.
+	 * @param rolled the file rolled over to, or null if there is none
+	 */
+	private void roll(final MappedByteBuffer rolled, final int capacity) {
+		rolling = true;
+		roller.execute(new Runnable() {
+			public void run() {
+				MappedByteBuffer next = null;
+				try {
+					if (rolled != null) {
+						rolled.force();
+						if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+							throw new IOException("Could not replace " + file + " with " + temp);
+						}
+					}
+					next = newFile(capacity);
+				} catch (IOException e) {
+					System.err.println("Could not get the next checkpoint journal file ready.  Compacting when it fills up instead.");
+					e.printStackTrace();
+				}
+				synchronized (CheckpointJournal.this) {
+					spare = next;
+					rolling = false;
+					CheckpointJournal.this.notifyAll();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Rewrite the file with just the checkpoints still needed, making it bigger if they and the next
+	 * record wouldn't leave it at least half empty.  Waits for the disk.
+	 */
+	private void compact(int nextLength) {
+		List<byte[]> kept = keptRecords();
+		int needed = HEADER_LENGTH + RECORD_HEADER_LENGTH + nextLength + 4;
+		for (byte[] body: kept) {
+			needed += RECORD_HEADER_LENGTH + body.length;
+		}
+		int capacity = Math.max(buffer.capacity(), needed * 2);
+		// Made over from scratch
+		spare = null;
+		try {
+			buffer = newFile(capacity);
+			for (byte[] body: kept) {
+				append(body);
+			}
+			buffer.force();
+			if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+				throw new IOException("Could not replace " + file + " with " + temp);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Could not compact checkpoint journal " + file, e);
+		}
+		if (!rolling) {
+			roll(null, buffer.capacity());
+		}
+	}
+
+	private List<byte[]> keptRecords() {
+		List<byte[]> kept = new ArrayList<byte[]>();
+		for (Checkpoint checkpoint: checkpoints.values()) {
+			kept.add(encode(checkpoint));
+		}
+		return kept;
+	}
+
+	/**
+	 * Map a new, empty journal file where the next one is made.
+	 */
+	private MappedByteBuffer newFile(int capacity) throws IOException {
+		if (temp.exists() && !temp.delete()) {
+			throw new IOException("Could not delete " + temp);
+		}
+		MappedByteBuffer next = mapFile(temp, capacity);
+		startJournal(next);
+		return next;
+	}
+
+	private static void startJournal(ByteBuffer journal) {
+		journal.putInt(0, MAGIC);
+		journal.putInt(4, VERSION);
+		journal.position(HEADER_LENGTH);
+		journal.putInt(journal.position(), 0);
+	}
+
+	/**
+	 * Read back the records, up to the end or the first one that was cut off.
+	 * @return where the next record goes
+	 */
+	private int replay(ByteBuffer journal, File from) {
+		int position = HEADER_LENGTH;
+		while (position + RECORD_HEADER_LENGTH <= journal.capacity()) {
+			int length = journal.getInt(position);
+			if ((length <= 0) || (position + RECORD_HEADER_LENGTH + length > journal.capacity())) {
+				break;
+			}
+			byte[] body = new byte[length];
+			journal.position(position + RECORD_HEADER_LENGTH);
+			journal.get(body);
+			crc.reset();
+			crc.update(body, 0, body.length);
+			if ((int)crc.getValue() != journal.getInt(position + 4)) {
+				System.err.println("Checkpoint journal " + from + " has a damaged record.  Ignoring it and everything after.");
+				break;
+			}
+			try {
+				remember(decode(body));
+			} catch (BufferUnderflowException e) {
+				System.err.println("Checkpoint journal " + from + " has a damaged record.  Ignoring it and everything after.");
+				break;
+			}
+			position += RECORD_HEADER_LENGTH + length;
+		}
+		// New records go over whatever was cut off
+		journal.position(position);
+		if (position + 4 <= journal.capacity()) {
+			journal.putInt(position, 0);
+		}
+		return position;
+	}
+
+	private static MappedByteBuffer mapFile(File file, int capacity) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() < capacity) {
+				raf.setLength(capacity);
+			}
+			// The mapping stays good after the file is closed
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static byte[] encode(Checkpoint checkpoint) {
+		byte[] user = checkpoint.user.getBytes(UTF8);
+		byte[] scenario = checkpoint.scenario.getBytes(UTF8);
+		byte[] state = checkpoint.state.getBytes(UTF8);
+		List<byte[]> vars = new ArrayList<byte[]>();
+		int length = 12 + user.length + scenario.length + state.length + 1 + 4;
+		for (Map.Entry<String, String> var: checkpoint.vars.entrySet()) {
+			vars.add(var.getKey().getBytes(UTF8));
+			vars.add(var.getValue().getBytes(UTF8));
+		}
+		for (byte[] string: vars) {
+			length += 4 + string.length;
+		}
+		ByteBuffer body = ByteBuffer.allocate(length);
+		putString(body, user);
+		putString(body, scenario);
+		putString(body, state);
+		body.put(checkpoint.flags);
+		body.putInt(checkpoint.vars.size());
+		for (byte[] string: vars) {
+			putString(body, string);
+		}
+		return body.array();
+	}
+
+	private static void putString(ByteBuffer body, byte[] string) {
+		body.putInt(string.length);
+		body.put(string);
+	}
+
+	private static Checkpoint decode(byte[] bytes) {
+		ByteBuffer body = ByteBuffer.wrap(bytes);
+		String user = readString(body);
+		String scenario = readString(body);
+		String state = readString(body);
+		byte flags = body.get();
+		int varCount = body.getInt();
+		Map<String, String> vars = new LinkedHashMap<String, String>();
+		for (int i=0; i<varCount; ++i) {
+			String name = readString(body);
+			vars.put(name, readString(body));
+		}
+		return new Checkpoint(user, scenario, state, flags, Collections.unmodifiableMap(vars));
+	}
+
+	private static String readString(ByteBuffer body) {
+		int length = body.getInt();
+		if ((length < 0) || (length > body.remaining())) {
+			throw new BufferUnderflowException();
+		}
+		byte[] bytes = new byte[length];
+		body.get(bytes);
+		return new String(bytes, UTF8);
+	}
+}
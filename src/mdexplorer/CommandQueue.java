@@ -0,0 +1,98 @@
+package mdexplorer;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A session's outbound commands waiting for the MUD's command limit.  A token bucket decides how many can
+ * go now: tokens refill at a steady rate up to a small burst, and each command spends one.
+ */
+class CommandQueue {
+
+	/**
+	 * A command waiting to be sent.
+	 */
+	static class Command {
+		final String text;
+		/** Completed once the command has been written to the socket. */
+		final FutureTask<Void> sent;
+		/** When the command was queued, by System.nanoTime(). */
+		final long queuedNanos = System.nanoTime();
+
+		Command(String text, FutureTask<Void> sent) {
+			this.text = text;
+			this.sent = sent;
+		}
+	}
+
+	private final Deque<Command> queue = new ArrayDeque<Command>();
+	private final double tokensPerMilli;
+	private final int burst;
+	private double tokens;
+	private long lastRefill;
+	private boolean drainScheduled = false;
+
+	/**
+	 * @param commandsPerSecond the steady rate commands may be sent
+	 * @param burst the most commands that can go at once after a quiet spell
+	 */
+	CommandQueue(double commandsPerSecond, int burst) {
+		this.tokensPerMilli = commandsPerSecond / 1000.0;
+		this.burst = burst;
+		this.tokens = burst;
+		this.lastRefill = System.currentTimeMillis();
+	}
+
+	/**
+	 * Add a command to the end of the queue.
+	 * @return true if the caller needs to schedule a drain, false if one is already scheduled
+	 */
+	synchronized boolean add(Command command) {
+		queue.addLast(command);
+		if (drainScheduled) {
+			return false;
+		}
+		drainScheduled = true;
+		return true;
+	}
+
+	/**
+	 * Take as many commands as there are tokens for.
+	 * @param now the current time
+	 * @param taken where to put the commands that can be sent now
+	 * @return how many milliseconds until the next drain should run, or -1 if the queue is empty
+	 * and no drain is needed until the next command is added
+	 */
+	synchronized long take(long now, List<Command> taken) {
+		tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerMilli);
+		lastRefill = now;
+		while ((tokens >= 1) && !queue.isEmpty()) {
+			taken.add(queue.removeFirst());
+			tokens -= 1;
+		}
+		if (queue.isEmpty()) {
+			drainScheduled = false;
+			return -1;
+		}
+		return (long)Math.ceil((1 - tokens) / tokensPerMilli);
+	}
+
+	/**
+	 * @return how many commands are waiting
+	 */
+	synchronized int size() {
+		return queue.size();
+	}
+
+	/**
+	 * Drop every waiting command, cancelling their futures.
+	 */
+	synchronized void cancelAll() {
+		for(Command next: queue) {
+			next.sent.cancel(false);
+		}
+		queue.clear();
+	}
+}
@@ -0,0 +1,258 @@
+package mdexplorer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import mdexplorer.Scenario.Prototype;
+import mdexplorer.Scenario.State;
+import mdexplorer.Scenario.Transition;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Scenarios read from the binary file ScenarioCompiler writes, instead of from XML.  The file is memory
+ * mapped and a scenario is only decoded the first time it is asked for.
+ * <p>
+ * The file is big endian:
+ * <pre>
+ * int magic, int version
+ * int sourceCount, then per source: string resource, long lastModified, long length
+ * int scenarioCount, then per scenario: string name, int offset into the bodies
+ * the bodies.  Per scenario: long silenceMillis, int stateCount, then per state: string name,
+ *   byte checkpoint, int transitionCount, then per transition: string toState, long timeoutMillis, byte hasTrigger,
+ *   [element trigger], int actionCount, element actions...
+ * element: string tag, int attributeCount, (string name, string value)..., int childCount, then per
+ *   child: byte TEXT_CHILD and string text, or byte ELEMENT_CHILD and element
+ * string: int byteCount, then that many bytes of UTF-8
+ * </pre>
+ */
+class CompiledScenarios {
+
+	static final int MAGIC = 0x4D445853; // "MDXS"
+	static final int VERSION = 3;
+
+	static final byte TEXT_CHILD = 0;
+	static final byte ELEMENT_CHILD = 1;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Guarded by this, since decoding moves its position. */
+	private final ByteBuffer buffer;
+	private final int bodiesStart;
+	private final Map<String, Integer> offsets;
+
+	/** Where tags that need their prototype are rebuilt.  Made the first time one is.  Guarded by this. */
+	private Document document;
+
+	private CompiledScenarios(ByteBuffer buffer, int bodiesStart, Map<String, Integer> offsets) {
+		this.buffer = buffer;
+		this.bodiesStart = bodiesStart;
+		this.offsets = offsets;
+	}
+
+	/**
+	 * Map a compiled scenario file, if it is up to date.
+	 * @param file the file ScenarioCompiler wrote
+	 * @param resources the scenario XML files the library is made of
+	 * @return the scenarios, or null if the file is missing, from another version, or older than the XML
+	 */
+	static CompiledScenarios open(File file, List<String> resources) {
+		if ((file == null) || !file.exists()) {
+			return null;
+		}
+		try {
+			ByteBuffer buffer;
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			} finally {
+				raf.close();
+			}
+			if ((buffer.remaining() < 8) || (buffer.getInt() != MAGIC)) {
+				System.err.println(file + " is not a compiled scenario file.  Reading the XML instead.");
+				return null;
+			}
+			if (buffer.getInt() != VERSION) {
+				System.err.println(file + " was compiled by another version.  Reading the XML instead.");
+				return null;
+			}
+			int sourceCount = buffer.getInt();
+			if (sourceCount != resources.size()) {
+				System.err.println(file + " was compiled from other scenario files.  Reading the XML instead.");
+				return null;
+			}
+			for (int i=0; i<sourceCount; ++i) {
+				String resource = readString(buffer);
+				long lastModified = buffer.getLong();
+				long length = buffer.getLong();
+				long[] stamp = stamp(resource);
+				if (!resources.contains(resource) || (stamp[0] != lastModified) || (stamp[1] != length)) {
+					System.err.println(file + " is older than " + resource + ".  Reading the XML instead.");
+					return null;
+				}
+			}
+			int scenarioCount = buffer.getInt();
+			Map<String, Integer> offsets = new LinkedHashMap<String, Integer>();
+			for (int i=0; i<scenarioCount; ++i) {
+				String name = readString(buffer);
+				offsets.put(name, buffer.getInt());
+			}
+			return new CompiledScenarios(buffer, buffer.position(), offsets);
+		} catch (IOException e) {
+			System.err.println("Could not read " + file + ".  Reading the XML instead.");
+			return null;
+		} catch (RuntimeException e) {
+			// Truncated or corrupt
+			System.err.println("Could not read " + file + ".  Reading the XML instead.");
+			return null;
+		}
+	}
+
+	/**
+	 * @return the last modified time and length of a class path resource, or -1 for each if unknown
+	 */
+	static long[] stamp(String resource) throws IOException {
+		URL url = CompiledScenarios.class.getClassLoader().getResource(resource);
+		if (url == null) {
+			return new long[] {-1, -1};
+		}
+		URLConnection connection = url.openConnection();
+		connection.setUseCaches(false);
+		try {
+			return new long[] {connection.getLastModified(), connection.getContentLengthLong()};
+		} finally {
+			// Opening the connection opens the file or jar
+			connection.getInputStream().close();
+		}
+	}
+
+	Set<String> getNames() {
+		return Collections.unmodifiableSet(offsets.keySet());
+	}
+
+	/**
+	 * @return the decoded scenario, or null if there is none with the name
+	 */
+	synchronized ScenarioDefinition load(String name) {
+		Integer offset = offsets.get(name);
+		if (offset == null) {
+			return null;
+		}
+		buffer.position(bodiesStart + offset);
+		Map<String, State> states = new HashMap<String, State>();
+		long silenceMillis = buffer.getLong();
+		int stateCount = buffer.getInt();
+		for (int s=0; s<stateCount; ++s) {
+			String stateName = readString(buffer);
+			boolean checkpoint = (buffer.get() != 0);
+			int transitionCount = buffer.getInt();
+			List<Transition> transitions = new ArrayList<Transition>(transitionCount);
+			for (int t=0; t<transitionCount; ++t) {
+				String toState = readString(buffer);
+				long timeoutMillis = buffer.getLong();
+				Trigger trigger = null;
+				if (buffer.get() != 0) {
+					trigger = (Trigger)readObject();
+				}
+				int actionCount = buffer.getInt();
+				List<Action> actions = new ArrayList<Action>(actionCount);
+				for (int a=0; a<actionCount; ++a) {
+					actions.add((Action)readObject());
+				}
+				transitions.add(new Transition(trigger, actions, toState, timeoutMillis));
+			}
+			states.put(stateName, new State(stateName, transitions, checkpoint));
+		}
+		return ScenarioDefinition.create(name, states, silenceMillis);
+	}
+
+	/**
+	 * Create the trigger or action an element describes.  The built in types are created straight from
+	 * the element's text.  Others get a DOM element to load from, like they would from XML.
+	 */
+	private Prototype readObject() {
+		int start = buffer.position();
+		readString(buffer);
+		Map<String, String> attributes = new HashMap<String, String>();
+		int attributeCount = buffer.getInt();
+		for (int i=0; i<attributeCount; ++i) {
+			String attribute = readString(buffer);
+			attributes.put(attribute, readString(buffer));
+		}
+		Prototype prototype = ScenarioDefinition.getPrototype(attributes.get("type"));
+		if ((prototype.getClass() == RegexTrigger.class) || (prototype.getClass() == SendCmdsAction.class)) {
+			StringBuilder text = new StringBuilder();
+			if (readText(text)) {
+				if (prototype.getClass() == RegexTrigger.class) {
+					return RegexTrigger.create(text.toString(), attributes.get("keys"), attributes.get("maxSteps"));
+				}
+				return SendCmdsAction.create(text.toString());
+			}
+		}
+		buffer.position(start);
+		return prototype.load(readElement());
+	}
+
+	/**
+	 * Read the children of an element as text.
+	 * @return false if there is a child element, so the children aren't just text
+	 */
+	private boolean readText(StringBuilder text) {
+		int childCount = buffer.getInt();
+		for (int i=0; i<childCount; ++i) {
+			if (buffer.get() != TEXT_CHILD) {
+				return false;
+			}
+			text.append(readString(buffer));
+		}
+		return true;
+	}
+
+	private Element readElement() {
+		if (document == null) {
+			try {
+				document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+			} catch (ParserConfigurationException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		Element element = document.createElement(readString(buffer));
+		int attributeCount = buffer.getInt();
+		for (int i=0; i<attributeCount; ++i) {
+			String attribute = readString(buffer);
+			element.setAttribute(attribute, readString(buffer));
+		}
+		int childCount = buffer.getInt();
+		for (int i=0; i<childCount; ++i) {
+			if (buffer.get() == TEXT_CHILD) {
+				element.appendChild(document.createTextNode(readString(buffer)));
+			} else {
+				element.appendChild(readElement());
+			}
+		}
+		return element;
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+}
@@ -1,128 +1,148 @@
 package mdexplorer;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamReader;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
-
 public class Explorer {
 	
-	private static class Job {
-		public String user;
-		public String password;
-		public String scenario;
-		public boolean repeat;
-		public int delay; // in minutes
-	}
+	/** How many times a job reconnects to pick its scenario up again after losing its connection. */
+	private static final int MAX_RESUMES = 3;
+	
+	/** How long to wait before reconnecting. */
+	private static final long RESUME_DELAY_MILLIS = 5000;
 	
 	private Properties props;
 	
-	/** A map of known user names to their passwords.  */
-	private Map<String, String> users;
+	/** The accounts and jobs to run. */
+	private JobFile jobFile;
 	
-	/** A list of scenario definitions indexed by their name */
-	private Map<String, Node> scenarios;
+	/** The scenario definitions, compiled when first used.  Each run gets its own Scenario. */
+	private ScenarioLibrary scenarios;
 	
-	private List<Job> jobs;
+	/** Where runs note their progress, so they can pick up again after a disconnect.  Null if not kept. */
+	private CheckpointJournal journal;
 	
 	public Explorer(Properties props) {
 		this.props = props;
-		this.users = parseUsers(props);
-		this.scenarios = loadScenarios(props.getProperty("mdexplorer.scenario_files"));
+		this.jobFile = loadJobs(props);
+		List<String> scenarioFiles = Arrays.asList(props.getProperty("mdexplorer.scenario_files").trim().split("\\s*,\\s*"));
+		String compiledStr = props.getProperty("mdexplorer.scenario_binary");
+		this.scenarios = new ScenarioLibrary(scenarioFiles, (compiledStr != null ? new File(compiledStr.trim()) : null));
+		String reloadStr = props.getProperty("mdexplorer.reload_scenarios");
+		if ((reloadStr == null) || Boolean.parseBoolean(reloadStr.trim())) {
+			watchScenarios();
+		}
+		String journalStr = props.getProperty("mdexplorer.checkpoint_file");
+		if (journalStr != null) {
+			try {
+				this.journal = new CheckpointJournal(new File(journalStr.trim()), CheckpointJournal.DEFAULT_CAPACITY);
+			} catch (IOException e) {
+				System.err.println("Could not open checkpoint journal " + journalStr.trim() + ".  Scenarios will start over after a disconnect.");
+				e.printStackTrace();
+			}
+		}
 	}
 	
 	public void go() throws IOException {
-		String server = props.getProperty("mdexplorer.server");
-		String portStr = props.getProperty("mdexplorer.port");
-		int port = Integer.parseInt(portStr);
-		
-		final MUD mud = new MUD(server, port);
-
-		// TBD: Load the jobs from somewhere like command-line or setup file
-		jobs = new ArrayList<Job>();
-		Job job = new Job();
-		job.user = users.keySet().iterator().next();
-		job.password = users.get(job.user);
-		job.scenario = "get money";
-		job.repeat = true;
-		job.delay = -2;
-		jobs.add(job);
-		
+		final MUD mud = createMud();
 		
 		new UserClient(mud, true);
+		
+		// Optionally run each session as an actor instead of on the threads that call it
+		String actorsStr = props.getProperty("mdexplorer.session_actors");
+		final SessionActors actors;
+		if ((actorsStr != null) && Boolean.parseBoolean(actorsStr.trim())) {
+			actors = new SessionActors(mud);
+		} else {
+			actors = null;
+		}
 
-		while (!Thread.interrupted()) {
-			long nextReboot = getNextReboot(mud);
-			System.out.println("Next reboot in " + new Date(nextReboot));
-			
-			// TBD Assuming one job and that it is to execute at the end.
-			final Job toRun = jobs.iterator().next();
-			final Robot robot = new Robot(mud);
-			final Scenario scenario = Scenario.load(scenarios.get(toRun.scenario));
-			long waitTime = (toRun.delay > 0 ? toRun.delay : nextReboot - System.currentTimeMillis() + (toRun.delay*60000));
-			System.out.println("XXXXXXXXXXXXXXXXXXX Waiting " + (waitTime/60000) + " minutes until right before MUD reboots");
-			try {
-				Thread.sleep(waitTime);
-				mud.connect(toRun.user, toRun.password);
+		JobScheduler scheduler = new JobScheduler(jobFile.getMaxSessions(), new JobScheduler.RebootSource() {
+			public long getNextReboot() {
+				try {
+					long nextReboot = Explorer.this.getNextReboot(mud);
+					System.out.println("Next reboot in " + new Date(nextReboot));
+					return nextReboot;
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					return -1;
+				}
+			}
+		}, new JobScheduler.Runner() {
+			public void run(JobFile.Job job) throws Exception {
+				runJob(mud, actors, job);
+			}
+		}, SessionActors.newDefaultExecutor());
+		for (JobFile.Job job: jobFile.getJobs()) {
+			scheduler.add(job);
+		}
+		try {
+			scheduler.run();
+		} catch (InterruptedException e) {
+			System.err.println("Execution interrupted.");
+			e.printStackTrace();
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Log a job's user in and run its scenario.  Returns once the user is logged out.  If the connection
+	 * drops before the scenario is done, log back in and pick up from the last checkpoint.
+	 */
+	private void runJob(MUD mud, SessionActors actors, JobFile.Job job) throws IOException, InterruptedException {
+		String password = jobFile.getUsers().get(job.user);
+		Robot robot = createRobot(mud, job.user);
+		for (int resumes = 0; ; ++resumes) {
+			Scenario scenario = (journal != null ? journal.resume(job.user, getScenario(job.scenario)) :
+				new Scenario(getScenario(job.scenario)));
+			if (actors != null) {
+				actors.start(job.user, password, robot, scenario).awaitDone();
+			} else {
+				mud.connect(job.user, password);
 				robot.executeScenario(scenario);
-				mud.waitFor();
-			} catch (InterruptedException e) {
-				System.err.println("Execution interrupted.");
-				e.printStackTrace();
-				Thread.currentThread().interrupt();
+				try {
+					mud.waitFor(job.user);
+				} finally {
+					mud.stopListening(robot);
+				}
 			}
-			
-			// Then we wait for the MUD to shut down, wait 10 minutes for it to start up, and try again.
-
-			waitTime = nextReboot + 600000 - System.currentTimeMillis();
-			System.out.println("XXXXXXXXXXXXXXXXXXX Waiting " + (waitTime/60000.0) + " minutes until MUD is rebooted");
-			try {
-				Thread.sleep(waitTime);
-			} catch (InterruptedException e) {
-				System.err.println("Execution interrupted.");
-				e.printStackTrace();
-				Thread.currentThread().interrupt();
+			if ((journal == null) || !robot.isRunning() || (resumes >= MAX_RESUMES)) {
+				break;
 			}
+			System.out.println("XXXXXXXXXXXXXXXXXXX Lost the connection for " + job + ".  Reconnecting.");
+			Thread.sleep(RESUME_DELAY_MILLIS);
 		}
 	}
 	
 	public void test() throws IOException {
-		String server = props.getProperty("mdexplorer.server");
-		String portStr = props.getProperty("mdexplorer.port");
-		int port = Integer.parseInt(portStr);
-
-		final MUD mud = new MUD(server, port);
+		final MUD mud = createMud();
 		UserClient client = new UserClient(mud, true);
 		client.connect();
 		
 		System.out.println("Ready...");
 		System.in.read();
-		String user = users.keySet().iterator().next();
-		String password = users.get(user);
+		String user = jobFile.getUsers().keySet().iterator().next();
+		String password = jobFile.getUsers().get(user);
 		mud.connect(user, password);
-		final Robot robot = new Robot(mud);
-		final Scenario scenario = Scenario.load(scenarios.get("get money"));
+		final Robot robot = createRobot(mud, user);
+		final Scenario scenario = new Scenario(getScenario("get money"));
 		robot.executeScenario(scenario);
 		try {
-			mud.waitFor();
+			mud.waitFor(user);
 			System.out.println("Scenario done");
 		} catch (InterruptedException e) {
 			Thread.currentThread().interrupt();
@@ -131,60 +151,127 @@ public class Explorer {
 	}
 	
 	/**
-	 * Read in all the known users from the configuration.
-	 * @return a map of known user names to their passwords
+	 * Create the interface to the MUD described in the configuration.
 	 */
-	private Map<String, String> parseUsers(Properties userProps) {
-		// TBD: read multiple users in.  Right now just reading one in.
-		Map<String, String> parsed = new HashMap<String,String>();
-		String user = userProps.getProperty("mdexplorer.username");
-		String password = userProps.getProperty("mdexplorer.password");	
-		parsed.put(user,  password);
-		return parsed;
+	private MUD createMud() {
+		String server = props.getProperty("mdexplorer.server");
+		String portStr = props.getProperty("mdexplorer.port");
+		int port = Integer.parseInt(portStr);
+		String charsetName = props.getProperty("mdexplorer.charset");
+		Charset charset = (charsetName != null ? Charset.forName(charsetName.trim()) : MUD.DEFAULT_CHARSET);
+		MUD mud = new MUD(server, port, charset);
+		mud.publishMetrics();
+		String cacheStr = props.getProperty("mdexplorer.reboot_cache_file");
+		if (cacheStr != null) {
+			String hoursStr = props.getProperty("mdexplorer.reboot_cache_hours");
+			long validity = (hoursStr != null ? (long)(Double.parseDouble(hoursStr.trim()) * 60 * 60 * 1000) :
+				RebootClock.DEFAULT_VALIDITY_MILLIS);
+			mud.setRebootClock(new RebootClock(new File(cacheStr.trim()), validity));
+		}
+		String transcriptStr = props.getProperty("mdexplorer.transcript_dir");
+		if (transcriptStr != null) {
+			new TranscriptRecorder(new File(transcriptStr.trim()), TranscriptRecorder.DEFAULT_SEGMENT_BYTES).record(mud);
+		}
+		String compressStr = props.getProperty("mdexplorer.compress");
+		if (compressStr != null) {
+			mud.setCompressionEnabled(Boolean.parseBoolean(compressStr.trim()));
+		}
+		String normalizeStr = props.getProperty("mdexplorer.normalize");
+		if (normalizeStr != null) {
+			// Names of MUD.Normalization values, separated by commas.  Empty for none.
+			Set<MUD.Normalization> normalization = EnumSet.noneOf(MUD.Normalization.class);
+			for (String name: normalizeStr.trim().split("\\s*,\\s*")) {
+				if (!name.isEmpty()) {
+					normalization.add(MUD.Normalization.valueOf(name.toUpperCase(Locale.ROOT)));
+				}
+			}
+			mud.setNormalization(normalization);
+		}
+		return mud;
 	}
 	
-	private Map<String, Node> loadScenarios(String scenarioList) {
-		Map<String, Node> loaded = new HashMap<String,Node>();
-		String[] scenarioFiles = scenarioList.trim().split(",");
-		for(String nextFile: scenarioFiles) {
-
-			Scenario scenario = null;
+	/**
+	 * Create a robot to drive one user's session, configured per the settings.
+	 */
+	private Robot createRobot(MUD mud, String user) {
+		Robot robot = new Robot(mud, user);
+		robot.setCheckpointJournal(journal);
+		String scrollbackStr = props.getProperty("mdexplorer.scrollback_chars");
+		if (scrollbackStr != null) {
+			robot.setScrollbackLimit(Integer.parseInt(scrollbackStr.trim()));
+		}
+		return robot;
+	}
+	
+	/**
+	 * Read the accounts and jobs from the job file in the configuration.  Without one, run the
+	 * one user in the configuration on the "get money" job, right before every reboot.
+	 */
+	private JobFile loadJobs(Properties jobProps) {
+		String jobFileStr = jobProps.getProperty("mdexplorer.job_file");
+		if (jobFileStr != null) {
+			InputStream strm = Explorer.class.getClassLoader().getResourceAsStream(jobFileStr.trim());
+			if (strm == null) {
+				throw new RuntimeException("Couldn't find job file " + jobFileStr.trim());
+			}
 			try {
-			    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-			    DocumentBuilder builder = factory.newDocumentBuilder();
-				InputStream strm = Explorer.class.getClassLoader().getResourceAsStream(nextFile);
-			    Document document = builder.parse(strm);
-			    Node rootNode = document.getDocumentElement();
-			    // TBD: Handle multiple scenarios in one file
-			    // Load in the scenario to assert it is a valid scenario description
-				scenario = Scenario.load(rootNode);
-				loaded.put(scenario.getName(),  rootNode);
-			} catch (SAXException e) {
-				throw new RuntimeException("Couldn't read XML file", e);
-			} catch (ParserConfigurationException e) {
-				throw new RuntimeException("Couldn't read XML file", e);
+				try {
+					return JobFile.load(strm);
+				} finally {
+					strm.close();
+				}
 			} catch (IOException e) {
-				throw new RuntimeException("Couldn't read XML file", e);
+				throw new RuntimeException("Couldn't read job file " + jobFileStr.trim(), e);
 			}
-
 		}
-		
-		return loaded;
+		Map<String, String> parsed = new LinkedHashMap<String,String>();
+		String user = jobProps.getProperty("mdexplorer.username");
+		String password = jobProps.getProperty("mdexplorer.password");	
+		parsed.put(user,  password);
+		JobFile.Job job = new JobFile.Job();
+		job.user = user;
+		job.scenario = "get money";
+		job.repeat = true;
+		job.delay = -2;
+		return new JobFile(parsed, Collections.singletonList(job), JobFile.DEFAULT_MAX_SESSIONS);
 	}
 	
 	/**
-	 * Connect to the MUD with the sole purpose of reading the next reboot time.
+	 * Reload scenario files as they are edited.  Running scenarios finish on the old definitions.
+	 */
+	private void watchScenarios() {
+		try {
+			new ScenarioWatcher(scenarios).start();
+		} catch (IOException e) {
+			System.err.println("Could not watch scenario files.  Edits will need a restart.");
+			e.printStackTrace();
+		}
+	}
+	
+	private ScenarioDefinition getScenario(String name) {
+		ScenarioDefinition definition = scenarios.get(name);
+		if (definition == null) {
+			throw new RuntimeException("No scenario named \"" + name + "\" in " + scenarios.getNames());
+		}
+		return definition;
+	}
+	
+	/**
+	 * Find out the next reboot time.  Only connects to the MUD to read it if the last time
+	 * seen by any session is too old to trust.
 	 * @param mud
-	 * @param user
-	 * @param password
 	 * @return
 	 */
 	public long getNextReboot(MUD mud) {
+		RebootClock clock = mud.getRebootClock();
+		if (!clock.isStale()) {
+			return clock.getRebootTime();
+		}
 		long nextReboot = -1;
-		// Get the next reboot time
+		// Connect with the sole purpose of reading the next reboot time
 		try {
 			mud.connect("", "");
-			mud.waitFor();
+			mud.waitFor("");
 			nextReboot = mud.getRebootTime();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
@@ -0,0 +1,104 @@
+package mdexplorer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts values, such as how many nanoseconds something took, in buckets that double in size.  Recording
+ * is a few atomic adds and never locks or allocates, so it can go on the hot path.  Percentiles are only
+ * good to within a factor of two, which is plenty to tell a slow trigger from a fast one.
+ */
+class Histogram {
+
+	/** Bucket 0 counts zeros, and bucket n counts values from 2^(n-1) up to 2^n - 1. */
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param value what to count.  Negative values, say from a clock going backwards, count as zero.
+	 */
+	void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long highest = max.get();
+		while ((value > highest) && !max.compareAndSet(highest, value)) {
+			highest = max.get();
+		}
+	}
+
+	/**
+	 * Add everything another histogram has counted to this one.
+	 */
+	void add(Histogram other) {
+		for (int i=0; i<BUCKETS; ++i) {
+			counts.addAndGet(i, other.counts.get(i));
+		}
+		count.addAndGet(other.count.get());
+		sum.addAndGet(other.sum.get());
+		long otherMax = other.max.get();
+		long highest = max.get();
+		while ((otherMax > highest) && !max.compareAndSet(highest, otherMax)) {
+			highest = max.get();
+		}
+	}
+
+	long getCount() {
+		return count.get();
+	}
+
+	long getSum() {
+		return sum.get();
+	}
+
+	/**
+	 * @return how many values each bucket has counted, bucket n counting values from 2^(n-1) up to 2^n - 1
+	 */
+	long[] getCounts() {
+		long[] copy = new long[BUCKETS];
+		for (int i=0; i<BUCKETS; ++i) {
+			copy[i] = counts.get(i);
+		}
+		return copy;
+	}
+
+	long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return the average value, or 0 if nothing has been counted
+	 */
+	double getMean() {
+		long n = count.get();
+		return (n > 0 ? (double)sum.get() / n : 0);
+	}
+
+	/**
+	 * @param fraction which percentile, such as 0.99
+	 * @return the top of the bucket the percentile falls in, but no more than the largest value counted
+	 */
+	long getPercentile(double fraction) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long)Math.ceil(fraction * n);
+		long seen = 0;
+		for (int i=0; i<BUCKETS; ++i) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				long top = (i == 0 ? 0 : (i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1));
+				return Math.min(top, max.get());
+			}
+		}
+		return max.get();
+	}
+}
@@ -0,0 +1,135 @@
+package mdexplorer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * The accounts and jobs to run, read from an XML job file:
+ * <pre>
+ * &lt;Jobs maxSessions="4"&gt;
+ *     &lt;User name="erin" password="mypassword"/&gt;
+ *     &lt;Job user="erin" scenario="get money" repeat="true" delay="-2" priority="5"/&gt;
+ * &lt;/Jobs&gt;
+ * </pre>
+ * A job's delay is in minutes.  Positive means that long from now.  Zero or negative means that long
+ * before the MUD next reboots.  Higher priority jobs get a session first when more are due than can run.
+ */
+public class JobFile {
+
+	/** How many sessions run at once if the file doesn't say. */
+	public static final int DEFAULT_MAX_SESSIONS = 1;
+
+	/** One scenario to run for one account. */
+	public static class Job {
+		public String user;
+		public String scenario;
+		public boolean repeat;
+		public int delay; // in minutes
+		public int priority;
+
+		/**
+		 * @return true if the delay counts back from the next reboot instead of forward from now
+		 */
+		public boolean isRebootRelative() {
+			return delay <= 0;
+		}
+
+		@Override
+		public String toString() {
+			return "\"" + scenario + "\" for " + user;
+		}
+	}
+
+	private final Map<String, String> users;
+	private final List<Job> jobs;
+	private final int maxSessions;
+
+	public JobFile(Map<String, String> users, List<Job> jobs, int maxSessions) {
+		this.users = Collections.unmodifiableMap(users);
+		this.jobs = Collections.unmodifiableList(jobs);
+		this.maxSessions = maxSessions;
+	}
+
+	/**
+	 * @return the known user names mapped to their passwords
+	 */
+	public Map<String, String> getUsers() {
+		return users;
+	}
+
+	public List<Job> getJobs() {
+		return jobs;
+	}
+
+	/**
+	 * @return how many sessions may be logged in at once
+	 */
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+
+	/**
+	 * Read a job file.  Every job must be for a user the file lists.
+	 */
+	public static JobFile load(InputStream strm) throws IOException {
+		Element root;
+		try {
+			root = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(strm).getDocumentElement();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException("Couldn't read job file", e);
+		}
+		int maxSessions = DEFAULT_MAX_SESSIONS;
+		if (root.hasAttribute("maxSessions")) {
+			maxSessions = Integer.parseInt(root.getAttribute("maxSessions").trim());
+		}
+		Map<String, String> users = new LinkedHashMap<String, String>();
+		List<Job> jobs = new ArrayList<Job>();
+		NodeList children = root.getChildNodes();
+		for (int i=0; i<children.getLength(); ++i) {
+			Node nextNode = children.item(i);
+			if (nextNode.getNodeType() != Node.ELEMENT_NODE) {
+				continue;
+			}
+			Element element = (Element)nextNode;
+			if (element.getNodeName().equals("User")) {
+				users.put(requiredAttribute(element, "name"), requiredAttribute(element, "password"));
+			} else if (element.getNodeName().equals("Job")) {
+				Job job = new Job();
+				job.user = requiredAttribute(element, "user");
+				job.scenario = requiredAttribute(element, "scenario");
+				job.repeat = Boolean.parseBoolean(element.getAttribute("repeat").trim());
+				job.delay = (element.hasAttribute("delay") ? Integer.parseInt(element.getAttribute("delay").trim()) : 0);
+				job.priority = (element.hasAttribute("priority") ? Integer.parseInt(element.getAttribute("priority").trim()) : 0);
+				jobs.add(job);
+			} else {
+				throw new RuntimeException("Unknown tag <" + element.getNodeName() + "> found in <" + root.getNodeName() + "> tag.");
+			}
+		}
+		for (Job job: jobs) {
+			if (!users.containsKey(job.user)) {
+				throw new RuntimeException("Job " + job + " is for a user with no <User> tag.");
+			}
+		}
+		return new JobFile(users, jobs, maxSessions);
+	}
+
+	private static String requiredAttribute(Element element, String name) {
+		if (!element.hasAttribute(name)) {
+			throw new RuntimeException("Missing \"" + name + "\" attribute in <" + element.getNodeName() + "> tag.");
+		}
+		return element.getAttribute(name);
+	}
+}
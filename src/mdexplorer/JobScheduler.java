@@ -0,0 +1,289 @@
+package mdexplorer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+import mdexplorer.JobFile.Job;
+
+/**
+ * Runs jobs across many accounts at once.  Jobs wait in a queue ordered by when they are next due.  When
+ * several are due, higher priority jobs go first.  No more than a set number of sessions run at once, and
+ * an account never runs two jobs at the same time.  Jobs timed from the reboot are planned against the
+ * reboot time only when they come up, so a job repeated every cycle sees each new reboot time.  Finding
+ * out the reboot time can mean logging in and waiting for the MUD, so it is done on the executor and
+ * takes a session like a job does.  A job held up until after the reboot it was planned against is
+ * planned again for the next one.
+ */
+public class JobScheduler {
+
+	/** Runs one job to completion. */
+	public static interface Runner {
+		/**
+		 * Log the job's user in, run its scenario and return once the session is over.
+		 */
+		public void run(Job job) throws Exception;
+	}
+
+	/** Says when the MUD next reboots. */
+	public static interface RebootSource {
+		/**
+		 * @return the time the MUD next reboots, or -1 if it can't be found out
+		 */
+		public long getNextReboot();
+	}
+
+	/** How long after a reboot before the MUD is back up and a job can be planned for the next one. */
+	public static final long REBOOT_WAIT_MILLIS = 10 * 60 * 1000;
+
+	/** How long to wait before asking again when the reboot time can't be found out. */
+	public static final long RETRY_MILLIS = 60 * 1000;
+
+	/** A job in the queue. */
+	private static class Entry {
+		final Job job;
+		/** When the entry comes up. */
+		long fireTime;
+		/** True if the fire time is only when to work out the real fire time. */
+		boolean planning;
+		/** The reboot a reboot relative job was planned against. */
+		long reboot = -1;
+		/** Keeps entries with the same time and priority first come, first served. */
+		final long sequence;
+
+		Entry(Job job, long fireTime, boolean planning, long sequence) {
+			this.job = job;
+			this.fireTime = fireTime;
+			this.planning = planning;
+			this.sequence = sequence;
+		}
+	}
+
+	private static final Comparator<Entry> BY_FIRE_TIME = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			if (a.fireTime != b.fireTime) {
+				return (a.fireTime < b.fireTime ? -1 : 1);
+			}
+			return BY_PRIORITY.compare(a, b);
+		}
+	};
+
+	private static final Comparator<Entry> BY_PRIORITY = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			if (a.job.priority != b.job.priority) {
+				return (a.job.priority > b.job.priority ? -1 : 1);
+			}
+			return (a.sequence < b.sequence ? -1 : (a.sequence > b.sequence ? 1 : 0));
+		}
+	};
+
+	private final RebootSource reboots;
+	private final Runner runner;
+	private final Executor executor;
+	private final Semaphore sessions;
+
+	/** Guarded by this. */
+	private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>(16, BY_FIRE_TIME);
+
+	/** Accounts with a job running.  Guarded by this. */
+	private final Set<String> busyAccounts = new HashSet<String>();
+
+	/** Guarded by this. */
+	private long nextSequence = 0;
+
+	/** True while a job is being planned against the reboot time.  Guarded by this. */
+	private boolean probing = false;
+
+	/**
+	 * @param maxSessions the most jobs to run at once
+	 * @param reboots says when the MUD reboots
+	 * @param runner runs each job
+	 * @param executor where jobs run, and where the reboot time is found out.  Needs a thread for each
+	 * session running at once.
+	 */
+	public JobScheduler(int maxSessions, RebootSource reboots, Runner runner, Executor executor) {
+		this.sessions = new Semaphore(maxSessions);
+		this.reboots = reboots;
+		this.runner = runner;
+		this.executor = executor;
+	}
+
+	/**
+	 * Queue a job.  It is planned as soon as the scheduler gets to it.
+	 */
+	public synchronized void add(Job job) {
+		queue.add(new Entry(job, System.currentTimeMillis(), true, nextSequence++));
+		notifyAll();
+	}
+
+	/**
+	 * Run jobs as they come due, on the calling thread, until interrupted.
+	 */
+	public void run() throws InterruptedException {
+		while (true) {
+			Entry entry = take();
+			if (!entry.planning) {
+				launch(entry);
+			} else if (entry.job.isRebootRelative()) {
+				probe(entry);
+			} else {
+				plan(entry);
+				synchronized (this) {
+					queue.add(entry);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait for an entry that can go now: one to plan, or a job with a free session and a free account.
+	 * A job that can run is already holding its session and account when returned, and a reboot relative
+	 * job to plan its session.
+	 */
+	private synchronized Entry take() throws InterruptedException {
+		while (true) {
+			long now = System.currentTimeMillis();
+			List<Entry> due = new ArrayList<Entry>();
+			while (!queue.isEmpty() && (queue.peek().fireTime <= now)) {
+				due.add(queue.poll());
+			}
+			Collections.sort(due, BY_PRIORITY);
+			Entry ready = null;
+			for (Entry next: due) {
+				if (!next.planning && next.job.isRebootRelative() && (next.fireTime < next.reboot) && (now >= next.reboot)) {
+					// Held up past the reboot it was to run before.  Plan it for the next one.
+					next.fireTime = Math.max(now, next.reboot + REBOOT_WAIT_MILLIS);
+					next.planning = true;
+					continue;
+				}
+				if (next.planning && !next.job.isRebootRelative()) {
+					ready = next;
+					break;
+				}
+				if (next.planning) {
+					// One at a time, since the reboot time one finds out is the same for all
+					if (!probing && sessions.tryAcquire()) {
+						probing = true;
+						ready = next;
+						break;
+					}
+					continue;
+				}
+				if (!busyAccounts.contains(next.job.user) && sessions.tryAcquire()) {
+					busyAccounts.add(next.job.user);
+					ready = next;
+					break;
+				}
+			}
+			for (Entry next: due) {
+				if (next != ready) {
+					queue.add(next);
+				}
+			}
+			if (ready != null) {
+				return ready;
+			}
+			// Wait for the next one to come due, or for a running job to free up its session and account
+			long wait = 0;
+			for (Entry next: queue) {
+				if (next.fireTime > now) {
+					wait = (wait == 0 ? next.fireTime - now : Math.min(wait, next.fireTime - now));
+				}
+			}
+			wait(wait);
+		}
+	}
+
+	/**
+	 * Plan a reboot relative job on the executor, holding the session take() got for it until done.
+	 */
+	private void probe(final Entry entry) {
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					plan(entry);
+				} catch (RuntimeException e) {
+					System.err.println("Couldn't plan " + entry.job + ".  Trying again later.");
+					e.printStackTrace();
+					entry.fireTime = System.currentTimeMillis() + RETRY_MILLIS;
+				} finally {
+					planned(entry);
+				}
+			}
+		});
+	}
+
+	private synchronized void planned(Entry entry) {
+		probing = false;
+		sessions.release();
+		queue.add(entry);
+		notifyAll();
+	}
+
+	/**
+	 * Work out when a job should next run.  May have to ask the MUD when it reboots, so done outside the lock.
+	 */
+	private void plan(Entry entry) {
+		long now = System.currentTimeMillis();
+		Job job = entry.job;
+		if (!job.isRebootRelative()) {
+			entry.fireTime = now + job.delay * 60000L;
+			entry.planning = false;
+			return;
+		}
+		long nextReboot = reboots.getNextReboot();
+		if (nextReboot < 0) {
+			System.err.println("Don't know when the MUD reboots.  Planning " + job + " again later.");
+			entry.fireTime = now + RETRY_MILLIS;
+			return;
+		}
+		if (nextReboot <= now) {
+			// Going down or coming back up.  Plan against the next reboot once it's back.
+			entry.fireTime = Math.max(now + RETRY_MILLIS, nextReboot + REBOOT_WAIT_MILLIS);
+			return;
+		}
+		entry.reboot = nextReboot;
+		entry.fireTime = Math.max(now, nextReboot + job.delay * 60000L);
+		entry.planning = false;
+	}
+
+	private void launch(final Entry entry) {
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					runner.run(entry.job);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (Exception e) {
+					System.err.println("Job " + entry.job + " failed.");
+					e.printStackTrace();
+				} finally {
+					finished(entry);
+				}
+			}
+		});
+	}
+
+	private synchronized void finished(Entry entry) {
+		busyAccounts.remove(entry.job.user);
+		sessions.release();
+		if (entry.job.repeat) {
+			long now = System.currentTimeMillis();
+			if (entry.job.isRebootRelative()) {
+				// Plan for the next reboot once the MUD is back from this one
+				entry.fireTime = Math.max(now, entry.reboot + REBOOT_WAIT_MILLIS);
+				entry.planning = true;
+			} else {
+				entry.fireTime = now + entry.job.delay * 60000L;
+			}
+			queue.add(entry);
+		}
+		notifyAll();
+	}
+}
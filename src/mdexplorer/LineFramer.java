@@ -0,0 +1,148 @@
+package mdexplorer;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Turns the bytes read from a MUD session into complete lines of text.  Bytes are decoded
+ * incrementally into one reusable buffer, so characters and lines split across reads come out whole
+ * and no garbage is created per read.
+ */
+class LineFramer {
+
+	/**
+	 * Receives each line as it is framed.
+	 */
+	interface LineHandler {
+		/**
+		 * @param line a complete line, including its terminating newline.  Only valid for the duration
+		 * of the call; the characters are overwritten by later reads.
+		 */
+		void line(CharSequence line);
+	}
+
+	/**
+	 * A reusable view over a range of the decode buffer.  Nothing is copied unless a caller
+	 * asks for a String.
+	 */
+	private static class Line implements CharSequence {
+		private char[] chars;
+		private int start;
+		private int length;
+
+		void set(char[] chars, int start, int length) {
+			this.chars = chars;
+			this.start = start;
+			this.length = length;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if ((index < 0) || (index >= length)) {
+				throw new IndexOutOfBoundsException(Integer.toString(index));
+			}
+			return chars[start + index];
+		}
+
+		@Override
+		public CharSequence subSequence(int from, int to) {
+			if ((from < 0) || (to > length) || (from > to)) {
+				throw new IndexOutOfBoundsException("from " + from + " to " + to + " of " + length);
+			}
+			return new String(chars, start + from, to - from);
+		}
+
+		@Override
+		public String toString() {
+			return new String(chars, start, length);
+		}
+	}
+
+	/** Lines longer than this are handed over in pieces rather than growing the buffer further. */
+	static final int MAX_LINE_LENGTH = 64 * 1024;
+
+	private final CharsetDecoder decoder;
+	private final LineHandler handler;
+	private final Line line = new Line();
+
+	/** Decoded text.  Everything before the position has been decoded but not yet handed over. */
+	private CharBuffer chars = CharBuffer.allocate(Session.READ_BUFFER_SIZE);
+
+	/** How far we've already looked for a newline in the decoded text. */
+	private int scanned = 0;
+
+	LineFramer(Charset charset, LineHandler handler) {
+		this.decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.handler = handler;
+	}
+
+	/**
+	 * Decode bytes and hand over every line they complete.  Any trailing partial line is kept for the
+	 * next call.
+	 * @param bytes bytes ready to be read.  Bytes of an incomplete character are left in the buffer.
+	 */
+	void feed(ByteBuffer bytes) {
+		while (true) {
+			CoderResult result = decoder.decode(bytes, chars, false);
+			frameLines();
+			if (!result.isOverflow()) {
+				return;
+			}
+			if (chars.remaining() < 2) {
+				// One line fills the whole buffer.  (Two chars leaves room for a surrogate pair.)
+				if (chars.capacity() < MAX_LINE_LENGTH) {
+					CharBuffer bigger = CharBuffer.allocate(chars.capacity() * 2);
+					chars.flip();
+					bigger.put(chars);
+					chars = bigger;
+				} else {
+					flush();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hand over whatever partial line is pending, as though it ended here.
+	 */
+	void flush() {
+		if (chars.position() > 0) {
+			line.set(chars.array(), 0, chars.position());
+			handler.line(line);
+			chars.clear();
+		}
+		scanned = 0;
+	}
+
+	/**
+	 * Hand over every complete line in the decoded text and shift any partial line to the front.
+	 */
+	private void frameLines() {
+		char[] array = chars.array();
+		int end = chars.position();
+		int lineStart = 0;
+		for (int i = scanned; i < end; ++i) {
+			if (array[i] == '\n') {
+				line.set(array, lineStart, i + 1 - lineStart);
+				handler.line(line);
+				lineStart = i + 1;
+			}
+		}
+		if (lineStart > 0) {
+			System.arraycopy(array, lineStart, array, 0, end - lineStart);
+			chars.position(end - lineStart);
+		}
+		scanned = chars.position();
+	}
+}
@@ -0,0 +1,1185 @@
+package mdexplorer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A regular expression run by a Pike VM.  The expression is compiled to a small program, and the input
+ * is read once, one character at a time, following every way the program could be matching at that
+ * character in step.  Matching takes time in proportion to the input times the size of the program,
+ * whatever the input is, since nothing is ever backtracked.  The match found is the one java.util.regex
+ * would find with DOTALL, except sometimes when a repeated group can match nothing, like (a*)*, where
+ * java.util.regex stops repeating and this doesn't.
+ * <p>
+ * The price is a smaller syntax: characters and escapes, ".", character classes with ranges and the
+ * \d \w \s classes, groups (capturing, named and non-capturing), "|", the greedy and lazy quantifiers,
+ * and the ^ $ \b \B \A \z anchors.  Back references, lookaround, possessive quantifiers, flags, Unicode
+ * properties and class intersections aren't supported, since they can't be matched this way.
+ * <p>
+ * Also reads any regular expression java.util.regex could backtrack badly on, for RegexTrigger to warn about,
+ * and works out how much of its input a search that found nothing has to go over again when more arrives.
+ */
+final class LinearRegex {
+
+	/** Programs bigger than this, say from a large counted repeat, are refused. */
+	private static final int MAX_PROGRAM_SIZE = 20000;
+
+	// Instructions
+	private static final int CHAR = 0;
+	private static final int CLASS = 1;
+	private static final int ANY = 2;
+	/** Try arg1 first, then arg2. */
+	private static final int SPLIT = 3;
+	private static final int JUMP = 4;
+	/** Note the position in capture slot arg1. */
+	private static final int SAVE = 5;
+	private static final int ASSERT = 6;
+	private static final int MATCH = 7;
+
+	// Assertions
+	private static final int START_OF_INPUT = 0;
+	private static final int END_OF_INPUT = 1;
+	/** $ without MULTILINE: the end of the input, or right before a line terminator that ends it. */
+	private static final int END_OF_LINE = 2;
+	private static final int WORD_BOUNDARY = 3;
+	private static final int NOT_WORD_BOUNDARY = 4;
+
+	private final String regex;
+	private final int[] ops;
+	private final int[] args1;
+	private final int[] args2;
+	private final CharRanges[] classes;
+	/** Two per group, counting the whole match as group 0. */
+	private final int slots;
+
+	private LinearRegex(String regex, Compiler compiler, int groups) {
+		this.regex = regex;
+		this.ops = Arrays.copyOf(compiler.ops, compiler.size);
+		this.args1 = Arrays.copyOf(compiler.args1, compiler.size);
+		this.args2 = Arrays.copyOf(compiler.args2, compiler.size);
+		this.classes = compiler.classes.toArray(new CharRanges[compiler.classes.size()]);
+		this.slots = 2 * (groups + 1);
+	}
+
+	/**
+	 * @throws RuntimeException if the expression isn't valid, or uses syntax that can't be matched in linear time
+	 */
+	static LinearRegex compile(String regex) {
+		Parser parser = new Parser(regex);
+		Node root = parser.parse();
+		Compiler compiler = new Compiler(regex);
+		compiler.emit(SAVE, 0, 0);
+		compiler.emit(root);
+		compiler.emit(SAVE, 1, 0);
+		compiler.emit(MATCH, 0, 0);
+		return new LinearRegex(regex, compiler, parser.groups);
+	}
+
+	String getRegex() {
+		return regex;
+	}
+
+	/**
+	 * @return a new search, with room for every thread the program can have
+	 */
+	Search newSearch() {
+		return new Search();
+	}
+
+	/**
+	 * @return what could make java.util.regex backtrack badly on the expression, or null if nothing was
+	 * found.  Also null for expressions this class can't read, so they can't be vouched for either way.
+	 */
+	static String backtrackingRisk(String regex) {
+		Node root;
+		try {
+			root = new Parser(regex).parse();
+		} catch (RuntimeException e) {
+			return null;
+		}
+		return root.risk(regex);
+	}
+
+	/**
+	 * @return how a search of the expression that found nothing can pick up once more input arrives, or
+	 * null if the expression can't be read, so searches have to start over
+	 */
+	static Resume resume(String regex) {
+		Node root;
+		try {
+			root = new Parser(regex).parse();
+		} catch (RuntimeException e) {
+			return null;
+		}
+		return new Resume(root.longest(), root.reads('\n'), root.looksBehind());
+	}
+
+	/**
+	 * How far back a search that found nothing has to start again when more input is added to the end.
+	 * Any new match has to reach the new input, since one that didn't would have been found already.  So
+	 * it starts no further back than the longest a match can be, or if matches never take in a newline,
+	 * than the start of the last line.  Otherwise it could start anywhere.
+	 */
+	static final class Resume {
+		/** The most characters a match can span, or -1 if there's no limit. */
+		private final int longestMatch;
+		private final boolean crossesLines;
+		/** Whether a match depends on the character before it, which dropping input from the start can change. */
+		private final boolean looksBehind;
+
+		private Resume(int longestMatch, boolean crossesLines, boolean looksBehind) {
+			this.longestMatch = longestMatch;
+			this.crossesLines = crossesLines;
+			this.looksBehind = looksBehind;
+		}
+
+		/**
+		 * @param input the input now
+		 * @param searched how much of the input now was searched, with nothing found
+		 * @param sameStart false if input has been dropped from the start since the search
+		 * @return where the next search has to start
+		 */
+		int from(CharSequence input, int searched, boolean sameStart) {
+			if (looksBehind && !sameStart) {
+				return 0;
+			}
+			if (longestMatch >= 0) {
+				return Math.max(0, searched - longestMatch);
+			}
+			if (!crossesLines) {
+				int lineStart = Math.min(searched, input.length());
+				while ((lineStart > 0) && (input.charAt(lineStart - 1) != '\n')) {
+					--lineStart;
+				}
+				return lineStart;
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * One run's threads and captures.  Reused for every find, so searching creates no garbage.
+	 */
+	final class Search {
+		private ThreadList current = new ThreadList(ops.length, slots);
+		private ThreadList next = new ThreadList(ops.length, slots);
+		private final int[] matched = new int[slots];
+		private final int[] start = new int[slots];
+		// The closure stack.  A pc of -1 means put a capture slot back.
+		private final int[] stackPcs = new int[2 * ops.length + 2];
+		private final int[] stackSlots = new int[2 * ops.length + 2];
+		private final int[] stackValues = new int[2 * ops.length + 2];
+
+		/**
+		 * Find the leftmost match.
+		 * @param from where matches may start from
+		 * @param prefix text every match starts with, to skip to when no thread is running, or empty
+		 * @return the index just past the match, or -1 if there is no match
+		 */
+		int find(CharSequence input, int from, String prefix) {
+			int length = input.length();
+			boolean found = false;
+			current.clear();
+			for (int pos = from; pos <= length; ++pos) {
+				if (!found) {
+					if ((current.runnable == 0) && !prefix.isEmpty()) {
+						pos = indexOf(input, prefix, pos);
+						if (pos < 0) {
+							break;
+						}
+					}
+					// The lowest priority, since any thread already running started further left
+					Arrays.fill(start, -1);
+					addThread(current, 0, pos, start, input);
+				}
+				if (current.runnable == 0) {
+					if (found) {
+						break;
+					}
+					// Nothing got past an assertion.  Start again at the next position.
+					current.clear();
+					continue;
+				}
+				next.clear();
+				char c = (pos < length ? input.charAt(pos) : 0);
+				for (int i=0; i<current.runnable; ++i) {
+					int pc = current.runnablePcs[i];
+					int[] caps = current.caps[pc];
+					int op = ops[pc];
+					if (op == MATCH) {
+						System.arraycopy(caps, 0, matched, 0, slots);
+						found = true;
+						// Every thread after this one has a lower priority
+						break;
+					}
+					if (pos >= length) {
+						continue;
+					}
+					if (((op == CHAR) && (c == args1[pc])) || (op == ANY) || ((op == CLASS) && classes[args1[pc]].contains(c))) {
+						addThread(next, pc + 1, pos + 1, caps, input);
+					}
+				}
+				ThreadList swap = current;
+				current = next;
+				next = swap;
+			}
+			return (found ? matched[1] : -1);
+		}
+
+		/**
+		 * @return where a group of the last match started, or -1 if it didn't take part
+		 */
+		int start(int group) {
+			return matched[2 * group];
+		}
+
+		int end(int group) {
+			return matched[2 * group + 1];
+		}
+
+		/**
+		 * Add a thread, and every thread it leads to without reading a character, in priority order.
+		 * @param caps the thread's captures.  Changed along the way but put back before returning.
+		 */
+		private void addThread(ThreadList list, int pc0, int pos, int[] caps, CharSequence input) {
+			int top = 0;
+			stackPcs[top++] = pc0;
+			while (top > 0) {
+				--top;
+				int pc = stackPcs[top];
+				if (pc < 0) {
+					caps[stackSlots[top]] = stackValues[top];
+					continue;
+				}
+				while (!list.contains(pc)) {
+					list.add(pc);
+					int op = ops[pc];
+					if (op == JUMP) {
+						pc = args1[pc];
+					} else if (op == SPLIT) {
+						stackPcs[top++] = args2[pc];
+						pc = args1[pc];
+					} else if (op == SAVE) {
+						stackPcs[top] = -1;
+						stackSlots[top] = args1[pc];
+						stackValues[top] = caps[args1[pc]];
+						++top;
+						caps[args1[pc]] = pos;
+						++pc;
+					} else if (op == ASSERT) {
+						if (!holds(args1[pc], input, pos)) {
+							break;
+						}
+						++pc;
+					} else {
+						list.run(pc, caps);
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The threads at one position: a sparse set of the program counters visited, and in priority order the
+	 * ones that read a character or match, with each one's captures.
+	 */
+	private static final class ThreadList {
+		final int[] dense;
+		final int[] sparse;
+		final int[] runnablePcs;
+		/** Made the first time they're needed, since most searches only ever reach a few instructions. */
+		final int[][] caps;
+		final int slots;
+		int size = 0;
+		int runnable = 0;
+
+		ThreadList(int programSize, int slots) {
+			dense = new int[programSize];
+			sparse = new int[programSize];
+			runnablePcs = new int[programSize];
+			caps = new int[programSize][];
+			this.slots = slots;
+		}
+
+		boolean contains(int pc) {
+			int index = sparse[pc];
+			return (index < size) && (dense[index] == pc);
+		}
+
+		void add(int pc) {
+			sparse[pc] = size;
+			dense[size++] = pc;
+		}
+
+		/**
+		 * Add a thread that reads a character or matches, with a copy of its captures.
+		 */
+		void run(int pc, int[] threadCaps) {
+			if (caps[pc] == null) {
+				caps[pc] = new int[slots];
+			}
+			System.arraycopy(threadCaps, 0, caps[pc], 0, slots);
+			runnablePcs[runnable++] = pc;
+		}
+
+		void clear() {
+			size = 0;
+			runnable = 0;
+		}
+	}
+
+	private static boolean holds(int assertion, CharSequence input, int pos) {
+		int length = input.length();
+		switch (assertion) {
+		case START_OF_INPUT:
+			return pos == 0;
+		case END_OF_INPUT:
+			return pos == length;
+		case END_OF_LINE:
+			if (pos == length) {
+				return true;
+			}
+			if ((pos == length - 2) && (input.charAt(pos) == '\r') && (input.charAt(pos + 1) == '\n')) {
+				return true;
+			}
+			return (pos == length - 1) && isLineTerminator(input.charAt(pos));
+		case WORD_BOUNDARY:
+		case NOT_WORD_BOUNDARY:
+			boolean before = (pos > 0) && isWord(input.charAt(pos - 1));
+			boolean after = (pos < length) && isWord(input.charAt(pos));
+			return (before != after) == (assertion == WORD_BOUNDARY);
+		default:
+			return false;
+		}
+	}
+
+	private static boolean isLineTerminator(char c) {
+		// Line and paragraph separators, written as numbers since their escapes would end the line here
+		return (c == '\n') || (c == '\r') || (c == '\u0085') || (c == (char)0x2028) || (c == (char)0x2029);
+	}
+
+	/** What \b counts as part of a word, the same as java.util.regex. */
+	private static boolean isWord(char c) {
+		return (c == '_') || Character.isLetterOrDigit(c);
+	}
+
+	private static int indexOf(CharSequence input, String literal, int from) {
+		int last = input.length() - literal.length();
+		for (int i=from; i<=last; ++i) {
+			int j = 0;
+			while ((j < literal.length()) && (input.charAt(i + j) == literal.charAt(j))) {
+				++j;
+			}
+			if (j == literal.length()) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * A piece of a parsed expression.
+	 */
+	private abstract static class Node {
+		/** Where the piece is in the expression, for messages. */
+		int from;
+		int to;
+
+		/** @return true if it can match without reading anything */
+		abstract boolean nullable();
+
+		/** @return every character a match could start with */
+		abstract CharRanges first();
+
+		/** @return the characters it matches if it always matches exactly one, else null */
+		CharRanges single() {
+			return null;
+		}
+
+		/** @return true if it contains a repeat with no upper limit */
+		boolean unbounded() {
+			return false;
+		}
+
+		/** @return the characters of repeats with no upper limit that a match could end with */
+		CharRanges endRepeats() {
+			return CharRanges.NONE;
+		}
+
+		/** @return the most characters it can match, or -1 if there's no limit */
+		int longest() {
+			return 0;
+		}
+
+		/** @return true if it can match the character, here or further down */
+		boolean reads(char c) {
+			for (Node child: children()) {
+				if (child.reads(c)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/** @return true if whether it matches depends on the character before it, as with ^ or \b */
+		boolean looksBehind() {
+			for (Node child: children()) {
+				if (child.looksBehind()) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		List<Node> children() {
+			return new ArrayList<Node>();
+		}
+
+		/** @return what could make java.util.regex backtrack badly, here or further down, or null */
+		String risk(String regex) {
+			for (Node child: children()) {
+				String risk = child.risk(regex);
+				if (risk != null) {
+					return risk;
+				}
+			}
+			return null;
+		}
+
+		String text(String regex) {
+			return regex.substring(from, to);
+		}
+	}
+
+	private static class Chars extends Node {
+		final CharRanges chars;
+
+		Chars(CharRanges chars) {
+			this.chars = chars;
+		}
+
+		boolean nullable() {
+			return false;
+		}
+
+		CharRanges first() {
+			return chars;
+		}
+
+		CharRanges single() {
+			return chars;
+		}
+
+		int longest() {
+			return 1;
+		}
+
+		boolean reads(char c) {
+			return chars.contains(c);
+		}
+	}
+
+	private static class Assertion extends Node {
+		final int kind;
+
+		Assertion(int kind) {
+			this.kind = kind;
+		}
+
+		boolean nullable() {
+			return true;
+		}
+
+		CharRanges first() {
+			return CharRanges.NONE;
+		}
+
+		boolean looksBehind() {
+			return (kind == START_OF_INPUT) || (kind == WORD_BOUNDARY) || (kind == NOT_WORD_BOUNDARY);
+		}
+	}
+
+	private static class Sequence extends Node {
+		final List<Node> items = new ArrayList<Node>();
+
+		boolean nullable() {
+			for (Node item: items) {
+				if (!item.nullable()) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		CharRanges first() {
+			CharRanges.Builder first = new CharRanges.Builder();
+			for (Node item: items) {
+				first.add(item.first());
+				if (!item.nullable()) {
+					break;
+				}
+			}
+			return first.build(false);
+		}
+
+		CharRanges single() {
+			return (items.size() == 1 ? items.get(0).single() : null);
+		}
+
+		CharRanges endRepeats() {
+			CharRanges.Builder end = new CharRanges.Builder();
+			for (int i=items.size() - 1; i>=0; --i) {
+				end.add(items.get(i).endRepeats());
+				if (!items.get(i).nullable()) {
+					break;
+				}
+			}
+			return end.build(false);
+		}
+
+		boolean unbounded() {
+			for (Node item: items) {
+				if (item.unbounded()) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		int longest() {
+			long longest = 0;
+			for (Node item: items) {
+				if (item.longest() < 0) {
+					return -1;
+				}
+				longest += item.longest();
+			}
+			return (longest > Integer.MAX_VALUE ? -1 : (int)longest);
+		}
+
+		List<Node> children() {
+			return items;
+		}
+
+		String risk(String regex) {
+			// Two repeats of the same characters in a row, like .*.* or \d+\d*, can split a run of them any number of ways
+			for (int i=0; i<items.size(); ++i) {
+				CharRanges repeated = repeatedChars(items.get(i));
+				if (repeated == null) {
+					continue;
+				}
+				for (int j=i + 1; j<items.size(); ++j) {
+					CharRanges following = repeatedChars(items.get(j));
+					if ((following != null) && repeated.overlaps(following)) {
+						return "\"" + regex.substring(items.get(i).from, items.get(j).to) + "\" has repeats next to each other that match the same characters";
+					}
+					if (!items.get(j).nullable()) {
+						break;
+					}
+				}
+			}
+			return super.risk(regex);
+		}
+
+		/**
+		 * @return the characters an unlimited repeat of one character at a time matches, or null if it isn't one
+		 */
+		private static CharRanges repeatedChars(Node node) {
+			if (node instanceof Group) {
+				return repeatedChars(((Group)node).child);
+			}
+			if ((node instanceof Repeat) && (((Repeat)node).max < 0)) {
+				return ((Repeat)node).child.single();
+			}
+			return null;
+		}
+	}
+
+	private static class Alternation extends Node {
+		final List<Node> branches = new ArrayList<Node>();
+
+		boolean nullable() {
+			for (Node branch: branches) {
+				if (branch.nullable()) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		CharRanges first() {
+			CharRanges.Builder first = new CharRanges.Builder();
+			for (Node branch: branches) {
+				first.add(branch.first());
+			}
+			return first.build(false);
+		}
+
+		boolean unbounded() {
+			for (Node branch: branches) {
+				if (branch.unbounded()) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		int longest() {
+			int longest = 0;
+			for (Node branch: branches) {
+				if (branch.longest() < 0) {
+					return -1;
+				}
+				longest = Math.max(longest, branch.longest());
+			}
+			return longest;
+		}
+
+		CharRanges endRepeats() {
+			CharRanges.Builder end = new CharRanges.Builder();
+			for (Node branch: branches) {
+				end.add(branch.endRepeats());
+			}
+			return end.build(false);
+		}
+
+		List<Node> children() {
+			return branches;
+		}
+
+		/**
+		 * @return true if two branches can start with the same character
+		 */
+		boolean overlapping() {
+			for (int i=0; i<branches.size(); ++i) {
+				for (int j=i + 1; j<branches.size(); ++j) {
+					if (branches.get(i).nullable() || branches.get(i).first().overlaps(branches.get(j).first())) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+	}
+
+	private static class Group extends Node {
+		/** The group's number, or -1 if it doesn't capture. */
+		final int number;
+		final Node child;
+
+		Group(int number, Node child) {
+			this.number = number;
+			this.child = child;
+		}
+
+		boolean nullable() {
+			return child.nullable();
+		}
+
+		CharRanges first() {
+			return child.first();
+		}
+
+		CharRanges single() {
+			return child.single();
+		}
+
+		boolean unbounded() {
+			return child.unbounded();
+		}
+
+		int longest() {
+			return child.longest();
+		}
+
+		CharRanges endRepeats() {
+			return child.endRepeats();
+		}
+
+		List<Node> children() {
+			return Arrays.asList(child);
+		}
+	}
+
+	private static class Repeat extends Node {
+		final Node child;
+		final int min;
+		/** -1 for no limit. */
+		final int max;
+		final boolean greedy;
+
+		Repeat(Node child, int min, int max, boolean greedy) {
+			this.child = child;
+			this.min = min;
+			this.max = max;
+			this.greedy = greedy;
+		}
+
+		boolean nullable() {
+			return (min == 0) || child.nullable();
+		}
+
+		CharRanges first() {
+			return child.first();
+		}
+
+		boolean unbounded() {
+			return (max < 0) || child.unbounded();
+		}
+
+		int longest() {
+			if ((max < 0) || (child.longest() < 0)) {
+				return -1;
+			}
+			long longest = (long)max * child.longest();
+			return (longest > Integer.MAX_VALUE ? -1 : (int)longest);
+		}
+
+		CharRanges endRepeats() {
+			if (max < 0) {
+				return new CharRanges.Builder().add(child.first()).add(child.endRepeats()).build(false);
+			}
+			return child.endRepeats();
+		}
+
+		List<Node> children() {
+			return Arrays.asList(child);
+		}
+
+		String risk(String regex) {
+			if ((max < 0) || (max > 1)) {
+				// A repeat inside a repeat, like (a+)+, can split the same text between them any number of ways.
+				// Not if something else has to end each time around, like the newline in (\w+\n)+.
+				if (child.unbounded() && (child.nullable() || child.endRepeats().overlaps(child.first()))) {
+					return "\"" + text(regex) + "\" repeats something that has a repeat of its own";
+				}
+				Node inner = child;
+				while (inner instanceof Group) {
+					inner = ((Group)inner).child;
+				}
+				if ((inner instanceof Alternation) && ((Alternation)inner).overlapping()) {
+					return "\"" + text(regex) + "\" repeats alternatives that can match the same text";
+				}
+			}
+			return super.risk(regex);
+		}
+	}
+
+	/**
+	 * Reads an expression into Nodes, numbering the capturing groups the way java.util.regex does.
+	 */
+	private static class Parser {
+		private final String regex;
+		private int pos = 0;
+		int groups = 0;
+
+		Parser(String regex) {
+			this.regex = regex;
+		}
+
+		Node parse() {
+			Node root = alternation();
+			if (pos < regex.length()) {
+				throw error("Unmatched closing ')'");
+			}
+			return root;
+		}
+
+		private Node alternation() {
+			int from = pos;
+			Node first = sequence();
+			if (!peek('|')) {
+				return first;
+			}
+			Alternation alternation = new Alternation();
+			alternation.branches.add(first);
+			while (peek('|')) {
+				++pos;
+				alternation.branches.add(sequence());
+			}
+			return span(alternation, from);
+		}
+
+		private Node sequence() {
+			int from = pos;
+			Sequence sequence = new Sequence();
+			while ((pos < regex.length()) && !peek('|') && !peek(')')) {
+				sequence.items.add(repeat());
+			}
+			return span(sequence, from);
+		}
+
+		private Node repeat() {
+			int from = pos;
+			Node node = atom();
+			while (pos < regex.length()) {
+				char c = regex.charAt(pos);
+				int min;
+				int max;
+				if (c == '*') {
+					min = 0;
+					max = -1;
+					++pos;
+				} else if (c == '+') {
+					min = 1;
+					max = -1;
+					++pos;
+				} else if (c == '?') {
+					min = 0;
+					max = 1;
+					++pos;
+				} else if (c == '{') {
+					int close = regex.indexOf('}', pos);
+					if (close < 0) {
+						throw error("Unclosed counted closure");
+					}
+					String[] bounds = regex.substring(pos + 1, close).split(",", -1);
+					try {
+						min = Integer.parseInt(bounds[0]);
+						max = (bounds.length == 1 ? min : (bounds[1].isEmpty() ? -1 : Integer.parseInt(bounds[1])));
+					} catch (NumberFormatException e) {
+						throw error("Illegal repetition");
+					}
+					if ((bounds.length > 2) || ((max >= 0) && (max < min))) {
+						throw error("Illegal repetition range");
+					}
+					pos = close + 1;
+				} else {
+					break;
+				}
+				boolean greedy = true;
+				if (peek('?')) {
+					greedy = false;
+					++pos;
+				} else if (peek('+')) {
+					throw error("Possessive quantifiers can't be matched in linear time");
+				}
+				if ((node instanceof Sequence) && !((Sequence)node).items.isEmpty()) {
+					// Like java.util.regex, a quantifier after \Q...\E repeats just the last character
+					List<Node> items = ((Sequence)node).items;
+					items.set(items.size() - 1, span(new Repeat(items.get(items.size() - 1), min, max, greedy), from));
+				} else {
+					node = span(new Repeat(node, min, max, greedy), from);
+				}
+			}
+			return node;
+		}
+
+		private Node atom() {
+			int from = pos;
+			char c = regex.charAt(pos++);
+			switch (c) {
+			case '(':
+				int number = -1;
+				if (peek('?')) {
+					if (regex.startsWith("?:", pos)) {
+						pos += 2;
+					} else if (regex.startsWith("?<", pos) && (pos + 2 < regex.length()) && Character.isLetter(regex.charAt(pos + 2))) {
+						int nameEnd = regex.indexOf('>', pos);
+						if (nameEnd < 0) {
+							throw error("Named group is missing trailing '>'");
+						}
+						number = ++groups;
+						pos = nameEnd + 1;
+					} else {
+						throw error("Lookaround, atomic groups and flags can't be matched in linear time");
+					}
+				} else {
+					number = ++groups;
+				}
+				Node child = alternation();
+				if (!peek(')')) {
+					throw error("Unclosed group");
+				}
+				++pos;
+				return span(new Group(number, child), from);
+			case '[':
+				return span(new Chars(characterClass()), from);
+			case '.':
+				return span(new Chars(CharRanges.ANY), from);
+			case '^':
+				return span(new Assertion(START_OF_INPUT), from);
+			case '$':
+				return span(new Assertion(END_OF_LINE), from);
+			case '\\':
+				return span(escape(), from);
+			case '*':
+			case '+':
+			case '?':
+			case '{':
+				--pos;
+				throw error("Dangling meta character '" + c + "'");
+			default:
+				return span(new Chars(new CharRanges.Builder().add(c, c).build(false)), from);
+			}
+		}
+
+		/**
+		 * Read an escape outside a character class, after the backslash.
+		 */
+		private Node escape() {
+			if (pos >= regex.length()) {
+				throw error("Unexpected internal error");
+			}
+			char c = regex.charAt(pos);
+			switch (c) {
+			case 'b':
+				++pos;
+				return new Assertion(WORD_BOUNDARY);
+			case 'B':
+				++pos;
+				return new Assertion(NOT_WORD_BOUNDARY);
+			case 'A':
+				++pos;
+				return new Assertion(START_OF_INPUT);
+			case 'z':
+				++pos;
+				return new Assertion(END_OF_INPUT);
+			case 'Z':
+				++pos;
+				return new Assertion(END_OF_LINE);
+			case 'Q':
+				int quoteEnd = regex.indexOf("\\E", pos + 1);
+				String quoted = regex.substring(pos + 1, (quoteEnd < 0 ? regex.length() : quoteEnd));
+				pos = (quoteEnd < 0 ? regex.length() : quoteEnd + 2);
+				Sequence sequence = new Sequence();
+				for (int i=0; i<quoted.length(); ++i) {
+					sequence.items.add(new Chars(new CharRanges.Builder().add(quoted.charAt(i), quoted.charAt(i)).build(false)));
+				}
+				return sequence;
+			default:
+				return new Chars(escapedChars());
+			}
+		}
+
+		/**
+		 * Read an escape that stands for characters, after the backslash.
+		 */
+		private CharRanges escapedChars() {
+			char c = regex.charAt(pos++);
+			switch (c) {
+			case 'd':
+				return CharRanges.DIGITS;
+			case 'D':
+				return new CharRanges.Builder().add(CharRanges.DIGITS).build(true);
+			case 'w':
+				return CharRanges.WORD;
+			case 'W':
+				return new CharRanges.Builder().add(CharRanges.WORD).build(true);
+			case 's':
+				return CharRanges.SPACE;
+			case 'S':
+				return new CharRanges.Builder().add(CharRanges.SPACE).build(true);
+			case 'n':
+				return one('\n');
+			case 't':
+				return one('\t');
+			case 'r':
+				return one('\r');
+			case 'f':
+				return one('\f');
+			case 'a':
+				return one('\u0007');
+			case 'e':
+				return one('\u001B');
+			case '0':
+				int octalEnd = pos;
+				while ((octalEnd < regex.length()) && (octalEnd < pos + 3) && (regex.charAt(octalEnd) >= '0') && (regex.charAt(octalEnd) <= '7')) {
+					++octalEnd;
+				}
+				return one(parseCode(pos, octalEnd, 8));
+			case 'x':
+				return one(parseCode(pos, pos + 2, 16));
+			case 'u':
+				return one(parseCode(pos, pos + 4, 16));
+			default:
+				if (Character.isLetterOrDigit(c)) {
+					--pos;
+					throw error("\\" + c + " can't be matched in linear time");
+				}
+				return one(c);
+			}
+		}
+
+		private char parseCode(int from, int to, int radix) {
+			try {
+				char code = (char)Integer.parseInt(regex.substring(from, to), radix);
+				pos = to;
+				return code;
+			} catch (RuntimeException e) {
+				throw error("Illegal character code");
+			}
+		}
+
+		private CharRanges characterClass() {
+			boolean negate = false;
+			if (peek('^')) {
+				negate = true;
+				++pos;
+			}
+			CharRanges.Builder chars = new CharRanges.Builder();
+			boolean first = true;
+			while (true) {
+				if (pos >= regex.length()) {
+					throw error("Unclosed character class");
+				}
+				char c = regex.charAt(pos);
+				if ((c == ']') && !first) {
+					++pos;
+					return chars.build(negate);
+				}
+				first = false;
+				if ((c == '[') || regex.startsWith("&&", pos)) {
+					throw error("Nested classes and intersections aren't supported");
+				}
+				CharRanges item;
+				++pos;
+				if (c == '\\') {
+					item = escapedChars();
+				} else {
+					item = one(c);
+				}
+				if (!item.isSingle()) {
+					chars.add(item);
+					continue;
+				}
+				char low = item.lowest();
+				if (peek('-') && (pos + 1 < regex.length()) && (regex.charAt(pos + 1) != ']')) {
+					++pos;
+					char highChar = regex.charAt(pos++);
+					CharRanges high = (highChar == '\\' ? escapedChars() : one(highChar));
+					if (!high.isSingle() || (high.lowest() < low)) {
+						throw error("Illegal character range");
+					}
+					chars.add(low, high.lowest());
+				} else {
+					chars.add(low, low);
+				}
+			}
+		}
+
+		static CharRanges one(char c) {
+			return new CharRanges.Builder().add(c, c).build(false);
+		}
+
+		private boolean peek(char c) {
+			return (pos < regex.length()) && (regex.charAt(pos) == c);
+		}
+
+		private Node span(Node node, int from) {
+			node.from = from;
+			node.to = pos;
+			return node;
+		}
+
+		private RuntimeException error(String description) {
+			return new RuntimeException(description + " near index " + pos + " of \"" + regex + "\"");
+		}
+	}
+
+	/**
+	 * Turns Nodes into instructions.
+	 */
+	private static class Compiler {
+		private final String regex;
+		int[] ops = new int[64];
+		int[] args1 = new int[64];
+		int[] args2 = new int[64];
+		final List<CharRanges> classes = new ArrayList<CharRanges>();
+		int size = 0;
+
+		Compiler(String regex) {
+			this.regex = regex;
+		}
+
+		int emit(int op, int arg1, int arg2) {
+			if (size == MAX_PROGRAM_SIZE) {
+				throw new RuntimeException("\"" + regex + "\" is too big to match in linear time");
+			}
+			if (size == ops.length) {
+				ops = Arrays.copyOf(ops, size * 2);
+				args1 = Arrays.copyOf(args1, size * 2);
+				args2 = Arrays.copyOf(args2, size * 2);
+			}
+			ops[size] = op;
+			args1[size] = arg1;
+			args2[size] = arg2;
+			return size++;
+		}
+
+		void emit(Node node) {
+			if (node instanceof Chars) {
+				CharRanges chars = ((Chars)node).chars;
+				if (chars == CharRanges.ANY) {
+					emit(ANY, 0, 0);
+				} else if (chars.isSingle()) {
+					emit(CHAR, chars.lowest(), 0);
+				} else {
+					classes.add(chars);
+					emit(CLASS, classes.size() - 1, 0);
+				}
+			} else if (node instanceof Assertion) {
+				emit(ASSERT, ((Assertion)node).kind, 0);
+			} else if (node instanceof Sequence) {
+				for (Node item: ((Sequence)node).items) {
+					emit(item);
+				}
+			} else if (node instanceof Alternation) {
+				List<Node> branches = ((Alternation)node).branches;
+				List<Integer> jumps = new ArrayList<Integer>();
+				for (int i=0; i<branches.size(); ++i) {
+					if (i < branches.size() - 1) {
+						int split = emit(SPLIT, size + 1, 0);
+						emit(branches.get(i));
+						jumps.add(emit(JUMP, 0, 0));
+						args2[split] = size;
+					} else {
+						emit(branches.get(i));
+					}
+				}
+				for (int jump: jumps) {
+					args1[jump] = size;
+				}
+			} else if (node instanceof Group) {
+				Group group = (Group)node;
+				if (group.number >= 0) {
+					emit(SAVE, 2 * group.number, 0);
+				}
+				emit(group.child);
+				if (group.number >= 0) {
+					emit(SAVE, 2 * group.number + 1, 0);
+				}
+			} else {
+				Repeat repeat = (Repeat)node;
+				for (int i=0; i<repeat.min; ++i) {
+					emit(repeat.child);
+				}
+				if (repeat.max < 0) {
+					int split = emit(SPLIT, 0, 0);
+					emit(repeat.child);
+					emit(JUMP, split, 0);
+					branch(split, split + 1, size, repeat.greedy);
+				} else {
+					List<Integer> splits = new ArrayList<Integer>();
+					for (int i=repeat.min; i<repeat.max; ++i) {
+						splits.add(emit(SPLIT, 0, 0));
+						emit(repeat.child);
+					}
+					for (int split: splits) {
+						branch(split, split + 1, size, repeat.greedy);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Point a split at the body of a repeat and past it, preferring the body if greedy.
+		 */
+		private void branch(int split, int body, int exit, boolean greedy) {
+			args1[split] = (greedy ? body : exit);
+			args2[split] = (greedy ? exit : body);
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package mdexplorer;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.w3c.dom.Node;
+
+/**
+ * A regular expression trigger that matches in time linear in the length of the input, however the
+ * expression is written, so it can't hang a session on a line it didn't expect.  Takes the same
+ * <Trigger> tag as RegexTrigger, named captures and all, but not backreferences, lookaround,
+ * possessive or atomic groups, or flags.  Use it for expressions RegexTrigger warns could backtrack badly.
+ */
+public class LinearTrigger extends RegexTrigger {
+
+	private final LinearRegex linear;
+
+	public LinearTrigger() {
+		// Prototype constructor.
+		linear = null;
+	}
+
+	public LinearTrigger(String regexStr) {
+		this(regexStr, Collections.<String>emptyList());
+	}
+
+	/**
+	 * @param regexStr the regular expression
+	 * @param keys the named groups to put in the vars map when the trigger fires
+	 * @throws RuntimeException if the expression uses syntax that can't be matched in linear time
+	 */
+	public LinearTrigger(String regexStr, List<String> keys) {
+		super(regexStr, keys, 0);
+		linear = LinearRegex.compile(regexStr);
+	}
+
+	@Override
+	public LinearTrigger load(Node node) {
+		Node keyNode = node.getAttributes().getNamedItem("keys");
+		return new LinearTrigger(node.getTextContent().trim(), readKeys(keyNode != null ? keyNode.getNodeValue() : null));
+	}
+
+	@Override
+	Search newSearch() {
+		return new Search() {
+			private final LinearRegex.Search search = linear.newSearch();
+
+			@Override
+			int find(CharSequence input, int from, Map<String, Object> vars) {
+				int end = search.find(input, from, getLiteralPrefix());
+				if (end >= 0) {
+					// Add any parsed values to the vars map.  Keys with no group in the regex get no entry.
+					for (int i=0; i<captureGroups.length; ++i) {
+						int group = captureGroups[i];
+						if ((group >= 0) && (search.start(group) >= 0)) {
+							vars.put(namedCaptures.get(i), input.subSequence(search.start(group), search.end(group)).toString());
+						}
+					}
+				}
+				return end;
+			}
+		};
+	}
+}
@@ -0,0 +1,147 @@
+package mdexplorer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+
+/**
+ * Finds which of a set of literal strings appear in some text, in one pass over the text
+ * (an Aho-Corasick automaton).  Each literal is tagged with a bit, and a scan reports the bits of
+ * every literal found.  Immutable once built, so safe to share between threads.
+ */
+class LiteralScanner {
+
+	/** For each state, the characters it has an edge for, sorted. */
+	private final char[][] edgeChars;
+	/** For each state, the state each edge leads to. */
+	private final int[][] edgeTargets;
+	/** For each state, where to fall back to when there is no edge for the next character. */
+	private final int[] fail;
+	/** For each state, the bits of every literal that ends there. */
+	private final long[] found;
+	/** The bits of every literal.  Scanning stops early once all have been found. */
+	private final long allBits;
+	/** The length of the longest literal. */
+	private final int longest;
+
+	/**
+	 * @param literals the literals to look for.  Empty literals are ignored.
+	 * @param bits the bit to report for each literal
+	 */
+	LiteralScanner(List<String> literals, List<Long> bits) {
+		// Build the trie
+		List<TreeMap<Character, Integer>> trie = new ArrayList<TreeMap<Character, Integer>>();
+		List<Long> foundList = new ArrayList<Long>();
+		trie.add(new TreeMap<Character, Integer>());
+		foundList.add(0L);
+		long all = 0;
+		int longestLiteral = 0;
+		for (int i=0; i<literals.size(); ++i) {
+			String literal = literals.get(i);
+			if (literal.isEmpty()) {
+				continue;
+			}
+			longestLiteral = Math.max(longestLiteral, literal.length());
+			int state = 0;
+			for (int c=0; c<literal.length(); ++c) {
+				Integer next = trie.get(state).get(literal.charAt(c));
+				if (next == null) {
+					next = trie.size();
+					trie.add(new TreeMap<Character, Integer>());
+					foundList.add(0L);
+					trie.get(state).put(literal.charAt(c), next);
+				}
+				state = next;
+			}
+			foundList.set(state, foundList.get(state) | bits.get(i));
+			all |= bits.get(i);
+		}
+		allBits = all;
+		longest = longestLiteral;
+
+		// Flatten it into arrays
+		int numStates = trie.size();
+		edgeChars = new char[numStates][];
+		edgeTargets = new int[numStates][];
+		fail = new int[numStates];
+		found = new long[numStates];
+		for (int s=0; s<numStates; ++s) {
+			TreeMap<Character, Integer> edges = trie.get(s);
+			edgeChars[s] = new char[edges.size()];
+			edgeTargets[s] = new int[edges.size()];
+			int e = 0;
+			for (Map.Entry<Character, Integer> next: edges.entrySet()) {
+				edgeChars[s][e] = next.getKey();
+				edgeTargets[s][e] = next.getValue();
+				++e;
+			}
+			found[s] = foundList.get(s);
+		}
+
+		// Breadth first, point each state at the longest suffix of it that is also in the trie
+		Queue<Integer> toVisit = new LinkedList<Integer>();
+		for (int target: edgeTargets[0]) {
+			fail[target] = 0;
+			toVisit.add(target);
+		}
+		while (!toVisit.isEmpty()) {
+			int state = toVisit.remove();
+			for (int e=0; e<edgeChars[state].length; ++e) {
+				char c = edgeChars[state][e];
+				int target = edgeTargets[state][e];
+				int fallback = fail[state];
+				while ((fallback != 0) && (step(fallback, c) < 0)) {
+					fallback = fail[fallback];
+				}
+				int next = step(fallback, c);
+				fail[target] = ((next >= 0) && (next != target) ? next : 0);
+				found[target] |= found[fail[target]];
+				toVisit.add(target);
+			}
+		}
+	}
+
+	/**
+	 * @return the bits of every literal that appears somewhere in the input
+	 */
+	long scan(CharSequence input) {
+		return scan(input, 0);
+	}
+
+	/**
+	 * Scan only the end of the input, for when the rest has been scanned before.
+	 * @param from where the text not scanned before starts.  Literals that straddle it are still found.
+	 * @return the bits of every literal that appears in the input from there
+	 */
+	long scan(CharSequence input, int from) {
+		long result = 0;
+		int state = 0;
+		int length = input.length();
+		for (int i=Math.max(0, from - longest + 1); i<length; ++i) {
+			char c = input.charAt(i);
+			int next = step(state, c);
+			while ((next < 0) && (state != 0)) {
+				state = fail[state];
+				next = step(state, c);
+			}
+			state = (next < 0 ? 0 : next);
+			result |= found[state];
+			if (result == allBits) {
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the state an edge leads to, or -1 if the state has no edge for the character
+	 */
+	private int step(int state, char c) {
+		int e = Arrays.binarySearch(edgeChars[state], c);
+		return (e >= 0 ? edgeTargets[state][e] : -1);
+	}
+}
@@ -1,35 +1,69 @@
 package mdexplorer;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.PrintStream;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * An interface to a MUD on the internet.  Any number of users can be logged in at once.  Every session
+ * is serviced by a single selector thread, so adding users costs a read buffer, not a thread.
+ */
 public class MUD {
 
 	/**
 	 * The delegate interface used to feed MUD output to any Java class.
 	 */
 	public interface Listener {
-		
+
 		/**
 		 * Notify that a user is now connected.
 		 * @param user the user connected
 		 */
 		void connected(String user);
-		
+
 		/**
 		 * Called whenever a new line of text is received from the MUD.
 		 * @param user the user seeing this text (there could be multiple logged in)
 		 * @param lineOfText the next line of text.  Will be an entire line
-		 * terminated by a newline
+		 * terminated by a newline.  The characters are only valid for the duration of the call,
+		 * so call toString() on it to keep it.  Cleaned up as setNormalization() says, in which case it is a
+		 * NormalizedLine, and NormalizedLine.rawOf() gives the line as it was read.
+		 */
+		void newText(String user, CharSequence lineOfText);
+
+		/**
+		 * Called when the MUD has finished responding and is waiting on the user, usually right after
+		 * a prompt.  Servers that mark their prompts (telnet GO-AHEAD or END-OF-RECORD) are followed exactly.
+		 * For other servers a response is assumed complete once the server goes quiet briefly.
+		 * @param user the user seeing the response
 		 */
-		void newText(String user, String lineOfText);
-		
+		void responseComplete(String user);
+
 		/**
 		 * Called when the connection to the MUD is closed.
 		 * @param user the user who got disconnected (there could be multiple logged in)
@@ -37,184 +71,659 @@ public class MUD {
 		 */
 		void disconnected(String user, boolean expected);
 	}
-	
+
+	/**
+	 * Told about every command sent to the MUD.
+	 */
+	public interface CommandListener {
+
+		/**
+		 * Called as a command is written to the MUD, on the thread that releases queued commands.
+		 * Must be quick.
+		 * @param user the user the command was sent for
+		 * @param command the command, without its line ending
+		 */
+		void commandSent(String user, String command);
+	}
+
+	/**
+	 * What an asynchronous listener does when it falls so far behind its queue is full.  Only BLOCK ever
+	 * holds up reading from the MUD.
+	 */
+	public enum OverflowPolicy {
+		/** Hold up reading from the MUD until the listener catches up. */
+		BLOCK,
+		/**
+		 * Throw away the oldest queued text or response completion.  Connects and disconnects are never thrown
+		 * away.  If they are all that's queued, new text is thrown away instead, and a new connect or
+		 * disconnect makes the queue bigger.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Join new text onto the same user's newest queued text, so nothing is lost but calls are fewer.  When
+		 * the user's newest queued event is some other kind, falls back to DROP_OLDEST.
+		 */
+		COALESCE
+	}
+
+	/**
+	 * Ways lines are cleaned up before the listeners see them.  Listeners can still get each line as it
+	 * was read from NormalizedLine.
+	 */
+	public enum Normalization {
+		/** Remove ANSI escape sequences, like colour codes and cursor movement. */
+		STRIP_ANSI,
+		/** Drop carriage returns, so every line ends with a plain newline however the server ends them. */
+		LINE_ENDINGS,
+		/** Drop control characters other than newline and tab, like the bell. */
+		CONTROL_CHARACTERS,
+		/** Turn every run of spaces and tabs into one space, and drop any at the end of a line. */
+		COLLAPSE_WHITE_SPACE
+	}
+
+	/** How lines are cleaned up unless told otherwise.  Everything but collapsing white space. */
+	public static final Set<Normalization> DEFAULT_NORMALIZATION = Collections.unmodifiableSet(
+			EnumSet.of(Normalization.STRIP_ANSI, Normalization.LINE_ENDINGS, Normalization.CONTROL_CHARACTERS));
+
+	/** How long a server that doesn't mark its prompts must be quiet before we assume a response is complete. */
+	public static final long RESPONSE_IDLE_MILLIS = 100;
+
+	/**
+	 * The steady rate commands are sent at, per user.  The MUD allows 10 commands per second, so this
+	 * plus the burst stays under that in any one second.
+	 */
+	public static final double DEFAULT_COMMANDS_PER_SECOND = 5;
+
+	/** How many commands a user can send at once after a quiet spell. */
+	public static final int DEFAULT_COMMAND_BURST = 4;
+
+	/** The character set used when none is specified. */
+	public static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
 	private String server;
 	private int port;
-	private Socket socket;
-	private List<Listener> listeners = new ArrayList<Listener>();
-	private PrintStream mudInput;
-	private Thread listenThread;
-	
-	/** The time when the MUD is next scheduled to reboot.  Negative number means unknown. */
-	private long rebootTime = -1;
-	
-	/** Timestamp of last command.  Used to throttle commands. */
-	private long timeOfLastCommand; 
-	
-	/** Whether we have asked the server to disconnect, like with a 'quit' command. */
-	private boolean expectingDisconnect = false;
-	
+	private Charset charset;
+	/** Copied on write, so the selector thread can walk it while other threads register listeners. */
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	/** Copied on write, like the listeners. */
+	private final CopyOnWriteArrayList<CommandListener> commandListeners = new CopyOnWriteArrayList<CommandListener>();
+
+	/** Every open session indexed by the name of the user logged in. */
+	private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+
+	/** Sessions waiting to be registered.  Registration has to happen on the selector thread. */
+	private final Queue<Session> pendingRegistrations = new ConcurrentLinkedQueue<Session>();
+
+	/** Sessions with queued output.  Writing has to happen on the selector thread. */
+	private final Queue<Session> pendingFlushes = new ConcurrentLinkedQueue<Session>();
+
+	private Selector selector;
+	private Thread selectorThread;
+
+	/** Whether to let the server compress its output (MCCP2). */
+	private boolean compressionEnabled = true;
+
+	/** How lines are cleaned up for the listeners. */
+	private Set<Normalization> normalization = DEFAULT_NORMALIZATION;
+
+	private double commandsPerSecond = DEFAULT_COMMANDS_PER_SECOND;
+	private int commandBurst = DEFAULT_COMMAND_BURST;
+
+	/** Releases queued commands as each user's command limit allows.  Shared by every session. */
+	private ScheduledExecutorService commandScheduler;
+
+	/** The result of a command future.  Sending has no result. */
+	private static final Callable<Void> NOTHING = new Callable<Void>() {
+		public Void call() {
+			return null;
+		}
+	};
+
+	/** Learns the reboot time from whatever any session sees. */
+	private RebootClock rebootClock;
+
+	/** Times out scenario states for every session.  Its thread starts with the first timeout. */
+	private final TimerWheel timerWheel = new TimerWheel("MUD Timer Wheel", 100, 512);
+
+	/** What every session and scenario has been doing. */
+	private final Metrics metrics;
+
 	/**
 	 * Create an interface to a MUD on the internet
 	 * @param server the server name of the mud
 	 * @param port the port of the mud
 	 */
 	public MUD(String server, int port) {
+		this(server, port, DEFAULT_CHARSET);
+	}
+
+	/**
+	 * Create an interface to a MUD on the internet
+	 * @param server the server name of the mud
+	 * @param port the port of the mud
+	 * @param charset the character set the mud talks in
+	 */
+	public MUD(String server, int port, Charset charset) {
 		this.server = server;
 		this.port = port;
+		this.charset = charset;
+		this.metrics = new Metrics(server + ":" + port);
+		setRebootClock(new RebootClock());
 	}
-	
+
 	/**
-	 * Register a listener to receive text from the MUD.
+	 * Use a different clock to track reboots, such as one that remembers the reboot time between runs.
+	 */
+	public synchronized void setRebootClock(RebootClock clock) {
+		if (rebootClock != null) {
+			stopListening(rebootClock);
+		}
+		rebootClock = clock;
+		listen(clock);
+	}
+
+	public RebootClock getRebootClock() {
+		return rebootClock;
+	}
+
+	TimerWheel getTimerWheel() {
+		return timerWheel;
+	}
+
+	Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Publish counters and latency histograms for every session and scenario as JMX MBeans, under the
+	 * "mdexplorer" domain of the platform MBean server.
+	 */
+	public void publishMetrics() {
+		metrics.publish();
+	}
+
+	/**
+	 * Choose whether sessions connected from now on agree to MCCP2 compression when the server offers it.
+	 * On by default.  Servers that don't offer it are read uncompressed either way.
+	 */
+	public void setCompressionEnabled(boolean enabled) {
+		compressionEnabled = enabled;
+	}
+
+	/**
+	 * Choose how lines are cleaned up for sessions connected from now on.  DEFAULT_NORMALIZATION unless
+	 * set.  With none, lines are handed over exactly as they were read.
+	 */
+	public void setNormalization(Set<Normalization> normalization) {
+		this.normalization = (normalization.isEmpty() ? Collections.<Normalization>emptySet() :
+			Collections.unmodifiableSet(EnumSet.copyOf(normalization)));
+	}
+
+	/**
+	 * Set the command limit for users connected from now on.
+	 * @param commandsPerSecond the steady rate each user's commands are sent at
+	 * @param burst how many commands a user can send at once after a quiet spell
+	 */
+	public void setCommandRate(double commandsPerSecond, int burst) {
+		this.commandsPerSecond = commandsPerSecond;
+		this.commandBurst = burst;
+	}
+
+	/**
+	 * Register a listener to receive text from the MUD.  It is called on the thread reading from the MUD,
+	 * so it must be quick.
 	 * If called more than once with the same listener, duplicate registrations are ignored.
 	 */
-	public void listen(Listener newListener) {
-		if (!listeners.contains(newListener)) {
+	public synchronized void listen(Listener newListener) {
+		if (findListener(newListener) < 0) {
 			listeners.add(newListener);
 		}
 	}
-	
+
+	/**
+	 * Register a listener to receive text from the MUD on a thread of its own, so it can take as long as it
+	 * likes without holding up reading from the MUD.  Events wait in a queue until the listener is ready.
+	 * If called more than once with the same listener, duplicate registrations are ignored.
+	 * @param newListener the listener to register
+	 * @param queueSize how many events can wait for the listener
+	 * @param overflow what to do when that many are waiting
+	 */
+	public synchronized void listenAsync(Listener newListener, int queueSize, OverflowPolicy overflow) {
+		if (findListener(newListener) < 0) {
+			listeners.add(new AsyncListener(newListener, queueSize, overflow));
+		}
+	}
+
+	/**
+	 * Register a listener to be told about every command sent.
+	 * If called more than once with the same listener, duplicate registrations are ignored.
+	 */
+	public void listenToCommands(CommandListener newListener) {
+		commandListeners.addIfAbsent(newListener);
+	}
+
+	public void stopListeningToCommands(CommandListener listener) {
+		commandListeners.remove(listener);
+	}
+
 	/**
 	 * Unregister a listener.  Will no longer receive text from the MUD.
 	 * @param listener the listener to unregister
 	 */
-	public void stopListening(Listener listener) {
-		listeners.remove(listener);
+	public synchronized void stopListening(Listener listener) {
+		int index = findListener(listener);
+		if (index >= 0) {
+			Listener removed = listeners.remove(index);
+			if (removed instanceof AsyncListener) {
+				((AsyncListener)removed).stop();
+			}
+		}
+	}
+
+	/**
+	 * @return where a listener is registered, directly or asynchronously, or -1 if it isn't
+	 */
+	private int findListener(Listener listener) {
+		for (int i=0; i<listeners.size(); ++i) {
+			Listener next = listeners.get(i);
+			if (next == listener) {
+				return i;
+			}
+			if ((next instanceof AsyncListener) && (((AsyncListener)next).getDelegate() == listener)) {
+				return i;
+			}
+		}
+		return -1;
 	}
-	
-	/** 
+
+	/**
 	 * Connect a user to the MUD
-	 * @param username name of user 
+	 * @param username name of user
 	 * @param password password of user
 	 */
 	public void connect(String username, String password) throws IOException {
-		expectingDisconnect = username.trim().isEmpty();
-		// Reset reboot time if its from an ended MUD session
-		if (rebootTime < System.currentTimeMillis()) {
-			rebootTime = -1;
+		if (sessions.containsKey(username)) {
+			throw new RuntimeException(username + " is already connected");
 		}
-		// TBD: Only supports one user right now
-		if (socket != null) {
-			throw new RuntimeException("Only supports one user");
+		startSelector();
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress(server, port));
+		channel.configureBlocking(false);
+		final Session session = new Session(username, channel);
+		if (!normalization.isEmpty()) {
+			session.normalizer = new TextNormalizer(normalization);
 		}
-		socket = new Socket(server, port);
-		// TBD: Be a little more reactive to what the MUD is reporting
-		startListening(username, socket.getInputStream());
-		mudInput = new PrintStream(socket.getOutputStream());
-		mudInput.println(username);
-		mudInput.println(password);
+		session.framer = new LineFramer(charset, new LineFramer.LineHandler() {
+			public void line(CharSequence line) {
+				dispatchText(session, (session.normalizer != null ? session.normalizer.normalize(line) : line));
+			}
+		});
+		session.telnet = new TelnetDecoder(new TelnetDecoder.Handler() {
+			public void text(ByteBuffer text) {
+				session.framer.feed(text);
+			}
+			public void endOfResponse() {
+				completeResponse(session);
+			}
+			public void send(byte[] command) {
+				// Called while reading, so the selector flushes it right after
+				session.queueWrite(ByteBuffer.wrap(command));
+			}
+			public void compressionStarted() {
+				session.mccp.start();
+			}
+		}, compressionEnabled);
+		session.expectingDisconnect = username.trim().isEmpty();
+		session.commands = new CommandQueue(commandsPerSecond, commandBurst);
+		session.metrics = metrics.session(username);
+		session.metrics.setCommandQueue(session.commands);
+		session.drainCommands = new Runnable() {
+			public void run() {
+				drainCommands(session);
+			}
+		};
+		if (sessions.putIfAbsent(username, session) != null) {
+			// Lost a race with another connect for the same user.  Leave theirs alone.
+			channel.close();
+			throw new RuntimeException(username + " is already connected");
+		}
+		// Before the selector can read anything, so listeners hear of the session before its text
 		for(Listener nextListener: listeners) {
 			nextListener.connected(username);
 		}
+		pendingRegistrations.add(session);
+		// TBD: Be a little more reactive to what the MUD is reporting
+		write(session, username);
+		write(session, password);
 	}
 
 	/**
-	 * Have the user currently logged in execute a command in the MUD
+	 * Have a user currently logged in execute a command in the MUD.  Never blocks.  The command
+	 * is queued and sent as soon as the user's command limit allows.
+	 * @param user the user executing the command
 	 * @param command the command to execute
+	 * @return completes once the command has been written to the MUD.  Cancelled if the user disconnects first.
 	 */
-	public void send(String user, String command) {
-		// TBD: Recognize a 'quit' command so we can expect a disconnect
-		long now = System.currentTimeMillis();
-		long sinceLast = now-timeOfLastCommand;
-		long THROTTLE = 200;
-		if (sinceLast < THROTTLE) {
-			// Throttle commands so we don't
-			// exceed the 10 commands per second limit
-			try {
-				Thread.sleep(THROTTLE-sinceLast);
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
-			}
+	public Future<Void> send(String user, String command) {
+		FutureTask<Void> sent = new FutureTask<Void>(NOTHING);
+		Session session = sessions.get(user);
+		if (session == null) {
+			System.err.println("Dropping command for " + user + ".  Not connected.");
+			sent.cancel(false);
+			return sent;
 		}
-		
 		if (command.trim().equals("quit")) {
-			expectingDisconnect = true;
+			session.expectingDisconnect = true;
+		}
+		if (session.commands.add(new CommandQueue.Command(command, sent))) {
+			commandScheduler.execute(session.drainCommands);
 		}
-		mudInput.println(command);
-		timeOfLastCommand = System.currentTimeMillis();;
+		return sent;
 	}
-	
+
 	/**
-	 * Block this thread until the MUD disconnects
-	 * @throws InterruptedException 
+	 * Block this thread until every user has disconnected from the MUD
+	 * @throws InterruptedException
 	 */
 	public synchronized void waitFor() throws InterruptedException {
-		while (listenThread != null) {
+		while (!sessions.isEmpty()) {
 			this.wait();
 		}
 	}
-	
+
+	/**
+	 * Block this thread until a user has disconnected from the MUD
+	 * @param user the user to wait on
+	 * @throws InterruptedException
+	 */
+	public synchronized void waitFor(String user) throws InterruptedException {
+		while (sessions.containsKey(user)) {
+			this.wait();
+		}
+	}
+
 	/**
 	 * Log the user out of the MUD and close the connection
 	 * @param user the user to log out
 	 */
 	public void disconnect(String user) {
-		doDisconnect(user, true);
+		Session session = sessions.get(user);
+		if (session != null) {
+			doDisconnect(session, true);
+		}
 	}
-	
+
+	/**
+	 * @return the time when the MUD next reboots, or -1 if unknown
+	 */
 	public long getRebootTime() {
-		return (rebootTime < System.currentTimeMillis() ? -1 : rebootTime);
+		return rebootClock.getRebootTime();
 	}
-	
-	private void startListening(final String username, final InputStream mudOutput) {
-		final MUD thisMud = this;
-		Runnable broadcastOutput = new Runnable() {
+
+	/**
+	 * Queue a line of output for a session and wake the selector to write it.
+	 */
+	private void write(Session session, String line) {
+		byte[] bytes = (line + "\r\n").getBytes(charset);
+		session.queueWrite(ByteBuffer.wrap(escapeTelnet(bytes)));
+		pendingFlushes.add(session);
+		selector.wakeup();
+	}
+
+	/**
+	 * Send every queued command the user's command limit allows in one write, and come back when
+	 * the limit allows more.
+	 */
+	private void drainCommands(Session session) {
+		List<CommandQueue.Command> taken = new ArrayList<CommandQueue.Command>();
+		long delay = session.commands.take(System.currentTimeMillis(), taken);
+		if (!taken.isEmpty() && session.isClosed()) {
+			// Closed after they were taken, so close() didn't see them
+			for(CommandQueue.Command next: taken) {
+				next.sent.cancel(false);
+			}
+		} else if (!taken.isEmpty()) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			List<FutureTask<Void>> sent = new ArrayList<FutureTask<Void>>(taken.size());
+			long now = System.nanoTime();
+			for(CommandQueue.Command next: taken) {
+				session.metrics.throttleWait.record(now - next.queuedNanos);
+				session.metrics.commandsSent.incrementAndGet();
+				byte[] line = escapeTelnet((next.text + "\r\n").getBytes(charset));
+				bytes.write(line, 0, line.length);
+				sent.add(next.sent);
+				for(CommandListener nextListener: commandListeners) {
+					try {
+						nextListener.commandSent(session.user, next.text);
+					}
+					catch (Exception e) {
+						// Log it and keep going
+						e.printStackTrace();
+					}
+				}
+			}
+			session.queueWrite(ByteBuffer.wrap(bytes.toByteArray()), sent);
+			pendingFlushes.add(session);
+			selector.wakeup();
+		}
+		if (delay >= 0) {
+			commandScheduler.schedule(session.drainCommands, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Double any byte that telnet would mistake for the start of a command.
+	 */
+	private static byte[] escapeTelnet(byte[] bytes) {
+		int numIACs = 0;
+		for(byte next: bytes) {
+			if (next == TelnetDecoder.IAC) {
+				++numIACs;
+			}
+		}
+		if (numIACs == 0) {
+			return bytes;
+		}
+		byte[] escaped = new byte[bytes.length + numIACs];
+		int i = 0;
+		for(byte next: bytes) {
+			escaped[i++] = next;
+			if (next == TelnetDecoder.IAC) {
+				escaped[i++] = next;
+			}
+		}
+		return escaped;
+	}
+
+	private synchronized void startSelector() throws IOException {
+		if (selectorThread != null) {
+			return;
+		}
+		selector = Selector.open();
+		commandScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "MUD Command Scheduler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		Runnable selectLoop = new Runnable() {
 			public void run() {
-				byte[] buffer = new byte[4096];
-				int numBytes = 0;
 				while (!Thread.interrupted()) {
-					
 					try {
-						numBytes = mudOutput.read(buffer);
+						selector.select(timeUntilIdleResponse());
 					}
 					catch (IOException e) {
-						System.err.println("Exception encountered reading " + username + "'s MUD session.");
+						System.err.println("Exception encountered waiting on MUD sessions.");
 						e.printStackTrace();
-						thisMud.listenThread.interrupt();
-					}
-					if (numBytes < 0) {
-						if (!expectingDisconnect) {
-							System.err.println("Server terminated " + username + "'s MUD session.");
-						}
-						thisMud.listenThread.interrupt();
+						break;
 					}
-					else {
-						String nextOutput = new String(buffer, 0, numBytes);
-						if (rebootTime < 0) {
-							parseRebootTime(nextOutput);
-						}
-						for(Listener nextListener: listeners) {
-							try {
-								nextListener.newText(username, nextOutput);
-							}
-							catch (ArithmeticException e) {
-								// Log it and keep going
-								e.printStackTrace();
-							}
-						}
+					registerPending();
+					flushPending();
+					completeIdleResponses();
+					Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+					while (selected.hasNext()) {
+						SelectionKey key = selected.next();
+						selected.remove();
+						service((Session)key.attachment());
 					}
 				}
-				// Thread has been interrupted.  Disconnect.
-				doDisconnect(username, expectingDisconnect);
+				// Thread has been interrupted.  Disconnect everyone.
+				for(Session session: sessions.values()) {
+					doDisconnect(session, session.expectingDisconnect);
+				}
 			}
 		};
-		listenThread = new Thread(broadcastOutput, "MUD Output Listen Thread");
-		listenThread.start();
+		selectorThread = new Thread(selectLoop, "MUD Selector Thread");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
 	}
-	
-	private void doDisconnect(String user, boolean expected) {
-		listenThread = null;
+
+	private void registerPending() {
+		Session next;
+		while ((next = pendingRegistrations.poll()) != null) {
+			try {
+				next.key = next.channel.register(selector, SelectionKey.OP_READ, next);
+			} catch (ClosedChannelException e) {
+				doDisconnect(next, next.expectingDisconnect);
+			}
+		}
+	}
+
+	private void flushPending() {
+		Session next;
+		while ((next = pendingFlushes.poll()) != null) {
+			if ((next.key != null) && next.key.isValid()) {
+				service(next);
+			}
+			else if (next.key == null && !next.isClosed()) {
+				// Not registered yet.  Try again on the next pass.
+				pendingFlushes.add(next);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return how long the selector can wait before a quiet session's response must be completed,
+	 * or zero if no session is waiting on one
+	 */
+	private long timeUntilIdleResponse() {
+		long soonest = Long.MAX_VALUE;
+		for(Session session: sessions.values()) {
+			if (session.idleResponseDeadline > 0) {
+				soonest = Math.min(soonest, session.idleResponseDeadline);
+			}
+		}
+		if (soonest == Long.MAX_VALUE) {
+			return 0;
+		}
+		return Math.max(1, soonest - System.currentTimeMillis());
+	}
+
+	private void completeIdleResponses() {
+		long now = System.currentTimeMillis();
+		for(Session session: sessions.values()) {
+			if ((session.idleResponseDeadline > 0) && (session.idleResponseDeadline <= now)) {
+				completeResponse(session);
+			}
+		}
+	}
+
+	/**
+	 * Hand over any pending prompt and tell the listeners the MUD is done responding.
+	 */
+	private void completeResponse(Session session) {
+		session.idleResponseDeadline = 0;
+		session.framer.flush();
+		session.metrics.responsesDispatched.incrementAndGet();
+		for(Listener nextListener: listeners) {
+			try {
+				nextListener.responseComplete(session.user);
+			}
+			catch (RuntimeException e) {
+				// Log it and keep going.  Other sessions share this thread.
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Read whatever the MUD has sent a session and write whatever the session has queued.
+	 */
+	private void service(Session session) {
+		SelectionKey key = session.key;
 		try {
-			socket.close();
-		} catch (IOException e) {
-			// Don't care.  We're closing it out.
-		} catch (RuntimeException e) {
-			// Don't care.  We're closing it out.
+			if (key.isValid() && key.isReadable()) {
+				read(session);
+			}
+			if (key.isValid()) {
+				boolean flushed = session.flush();
+				key.interestOps(flushed ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+		catch (CancelledKeyException e) {
+			// Session was closed out from under us.
+		}
+		catch (IOException e) {
+			System.err.println("Exception encountered reading " + session.user + "'s MUD session.");
+			e.printStackTrace();
+			doDisconnect(session, session.expectingDisconnect);
+		}
+	}
+
+	private void read(Session session) throws IOException {
+		ByteBuffer buffer = session.readBuffer;
+		int numBytes = session.channel.read(buffer);
+		if (numBytes < 0) {
+			// Whatever was sent without a newline is still worth seeing
+			completeResponse(session);
+			if (!session.expectingDisconnect) {
+				System.err.println("Server terminated " + session.user + "'s MUD session.");
+			}
+			doDisconnect(session, session.expectingDisconnect);
+		}
+		else if (numBytes > 0) {
+			session.metrics.bytesRead.addAndGet(numBytes);
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				// Compression can start or stop part way through a read
+				if (session.mccp.isActive()) {
+					session.mccp.inflate(buffer, session.telnet);
+				} else {
+					session.telnet.decode(buffer);
+				}
+			}
+			buffer.clear();
+			if (!session.telnet.isMarkingPrompts()) {
+				// No way to know if the server is done.  Wait until it goes quiet.
+				session.idleResponseDeadline = System.currentTimeMillis() + RESPONSE_IDLE_MILLIS;
+			}
+		}
+	}
+
+	private void dispatchText(Session session, CharSequence line) {
+		session.metrics.linesDispatched.incrementAndGet();
+		for(Listener nextListener: listeners) {
+			try {
+				nextListener.newText(session.user, line);
+			}
+			catch (RuntimeException e) {
+				// Log it and keep going.  Other sessions share this thread.
+				e.printStackTrace();
+			}
 		}
-		socket = null;
+	}
+
+	private void doDisconnect(Session session, boolean expected) {
+		if (!session.close()) {
+			return;
+		}
+		// A reconnect may already have put a new session in its place
+		sessions.remove(session.user, session);
 		for(Listener nextListener: listeners) {
 			try {
-				nextListener.disconnected(user, expected);
+				nextListener.disconnected(session.user, expected);
 			}
 			catch (Exception e) {
 				// Log it and keep going
@@ -222,24 +731,7 @@ public class MUD {
 			}
 		}
 		synchronized(this) {
-			this.notify();
-		}
-	}
-	
-	private void parseRebootTime(String mudOutput) {
-		String regex = "Next reboot: [^\\n]*(\\d\\d?)h (\\d\\d?)m (\\d\\d?)s";
-		Pattern pattern = Pattern.compile(regex);
-		Matcher matcher = pattern.matcher(mudOutput);
-		if (matcher.find()) {
-			long time = System.currentTimeMillis();
-			String hourStr = matcher.group(1);
-			time += Long.parseLong(hourStr) * 60 * 60 * 1000;
-			String minuteStr = matcher.group(2);
-			time += Long.parseLong(minuteStr) * 60 * 1000;
-			String secondStr = matcher.group(3);
-			time += Long.parseLong(secondStr) * 1000;
-			
-			rebootTime = time;
-		}
-	}
-}
\ No newline at end of file
+			this.notifyAll();
+		}
+	}
+}
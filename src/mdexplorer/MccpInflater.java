@@ -0,0 +1,80 @@
+package mdexplorer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates a session's server stream once the server starts MCCP version 2 compression.  The same
+ * Inflater and output buffer are reused for every read, and again if the server restarts compression.
+ */
+class MccpInflater {
+
+	/** The telnet option for MCCP version 2. */
+	static final int OPTION_MCCP2 = 86;
+
+	private final Inflater inflater = new Inflater();
+	private final ByteBuffer inflated = ByteBuffer.allocate(Session.READ_BUFFER_SIZE * 4);
+	private boolean active = false;
+	private boolean ended = false;
+
+	/**
+	 * Everything after this point in the stream is compressed.
+	 */
+	synchronized void start() {
+		inflater.reset();
+		active = true;
+	}
+
+	synchronized boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * Inflate compressed bytes and hand the result to the telnet decoder.  Stops early if the
+	 * compressed stream ends, leaving the uncompressed bytes that follow it in the buffer.
+	 * @param raw bytes read from the server, ready to be read
+	 * @param telnet where inflated bytes go
+	 * @throws IOException if the server sent a corrupt stream
+	 */
+	synchronized void inflate(ByteBuffer raw, TelnetDecoder telnet) throws IOException {
+		if (ended) {
+			raw.position(raw.limit());
+			return;
+		}
+		inflater.setInput(raw.array(), raw.arrayOffset() + raw.position(), raw.remaining());
+		try {
+			while (!inflater.needsInput() && !inflater.finished()) {
+				int numBytes = inflater.inflate(inflated.array(), inflated.position(), inflated.remaining());
+				inflated.position(inflated.position() + numBytes);
+				if ((numBytes == 0) || !inflated.hasRemaining() || inflater.needsInput() || inflater.finished()) {
+					inflated.flip();
+					telnet.decode(inflated);
+					inflated.clear();
+				}
+				if ((numBytes == 0) && inflater.needsDictionary()) {
+					throw new IOException("Compressed MUD stream asked for a dictionary.");
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed MUD stream", e);
+		}
+		if (inflater.finished()) {
+			// Server turned compression off.  What's left is plain telnet.
+			active = false;
+			raw.position(raw.limit() - inflater.getRemaining());
+		} else {
+			raw.position(raw.limit());
+		}
+	}
+
+	/**
+	 * Free the native memory held by the Inflater.  Nothing is inflated after this.
+	 */
+	synchronized void end() {
+		ended = true;
+		active = false;
+		inflater.end();
+	}
+}
@@ -0,0 +1,183 @@
+package mdexplorer;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Every session's and scenario's metrics for one MUD.  Once published, they show up over JMX as
+ * mdexplorer:type=Session for each user, mdexplorer:type=Scenario for each scenario run, and
+ * mdexplorer:type=Sessions for every session added together.
+ */
+class Metrics {
+
+	static final String DOMAIN = "mdexplorer";
+
+	private final String mudName;
+	private final ConcurrentMap<String, SessionMetrics> sessions = new ConcurrentHashMap<String, SessionMetrics>();
+	private final ConcurrentMap<String, ScenarioMetrics> scenarios = new ConcurrentHashMap<String, ScenarioMetrics>();
+
+	/** Where the metrics are published, or null if they aren't. */
+	private MBeanServer server;
+
+	/**
+	 * Adds up every session each time it is read, so the sessions themselves never share a counter.
+	 */
+	private class Total implements SessionMetricsMBean {
+		private SessionMetrics sum() {
+			SessionMetrics total = new SessionMetrics();
+			for (SessionMetrics next: sessions.values()) {
+				next.addTo(total);
+			}
+			return total;
+		}
+		public long getBytesRead() {
+			return sum().getBytesRead();
+		}
+		public long getLinesDispatched() {
+			return sum().getLinesDispatched();
+		}
+		public long getResponsesDispatched() {
+			return sum().getResponsesDispatched();
+		}
+		public long getCommandsSent() {
+			return sum().getCommandsSent();
+		}
+		public int getCommandQueueDepth() {
+			int depth = 0;
+			for (SessionMetrics next: sessions.values()) {
+				depth += next.getCommandQueueDepth();
+			}
+			return depth;
+		}
+		public double getThrottleWaitMeanMillis() {
+			return sum().getThrottleWaitMeanMillis();
+		}
+		public double getThrottleWaitP99Millis() {
+			return sum().getThrottleWaitP99Millis();
+		}
+		public double getThrottleWaitMaxMillis() {
+			return sum().getThrottleWaitMaxMillis();
+		}
+		public long getThrottleWaitTotalNanos() {
+			return sum().getThrottleWaitTotalNanos();
+		}
+		public long[] getThrottleWaitBuckets() {
+			return sum().getThrottleWaitBuckets();
+		}
+		public long getTriggerEvaluations() {
+			return sum().getTriggerEvaluations();
+		}
+		public long getTriggerMatches() {
+			return sum().getTriggerMatches();
+		}
+		public double getTriggerTimeMeanMicros() {
+			return sum().getTriggerTimeMeanMicros();
+		}
+		public double getTriggerTimeP50Micros() {
+			return sum().getTriggerTimeP50Micros();
+		}
+		public double getTriggerTimeP99Micros() {
+			return sum().getTriggerTimeP99Micros();
+		}
+		public double getTriggerTimeMaxMicros() {
+			return sum().getTriggerTimeMaxMicros();
+		}
+		public long getTriggerTimeTotalNanos() {
+			return sum().getTriggerTimeTotalNanos();
+		}
+		public long[] getTriggerTimeBuckets() {
+			return sum().getTriggerTimeBuckets();
+		}
+		public long getStatesLeft() {
+			return sum().getStatesLeft();
+		}
+		public double getTimeInStateMeanMillis() {
+			return sum().getTimeInStateMeanMillis();
+		}
+		public double getTimeInStateP99Millis() {
+			return sum().getTimeInStateP99Millis();
+		}
+		public double getTimeInStateMaxMillis() {
+			return sum().getTimeInStateMaxMillis();
+		}
+	}
+
+	/**
+	 * @param mudName tells apart the MBeans of different MUDs in the same JVM, like "server:port"
+	 */
+	Metrics(String mudName) {
+		this.mudName = mudName;
+	}
+
+	/**
+	 * @return the user's metrics, created the first time they are asked for
+	 */
+	SessionMetrics session(String user) {
+		SessionMetrics metrics = sessions.get(user);
+		if (metrics == null) {
+			SessionMetrics created = new SessionMetrics();
+			metrics = sessions.putIfAbsent(user, created);
+			if (metrics == null) {
+				metrics = created;
+				register(metrics, SessionMetricsMBean.class, "Session", user);
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * Make sure a scenario's transition counts are published.  A reloaded scenario replaces the old one.
+	 */
+	void scenario(ScenarioDefinition definition) {
+		ScenarioMetrics current = scenarios.get(definition.getName());
+		if ((current != null) && (current.getDefinition() == definition)) {
+			return;
+		}
+		ScenarioMetrics metrics = new ScenarioMetrics(definition);
+		scenarios.put(definition.getName(), metrics);
+		register(metrics, ScenarioMetricsMBean.class, "Scenario", definition.getName());
+	}
+
+	/**
+	 * Publish every metric so far, and any created later, on the platform MBean server.
+	 */
+	synchronized void publish() {
+		if (server != null) {
+			return;
+		}
+		server = ManagementFactory.getPlatformMBeanServer();
+		register(new Total(), SessionMetricsMBean.class, "Sessions", null);
+		for (String user: sessions.keySet()) {
+			register(sessions.get(user), SessionMetricsMBean.class, "Session", user);
+		}
+		for (ScenarioMetrics next: scenarios.values()) {
+			register(next, ScenarioMetricsMBean.class, "Scenario", next.getDefinition().getName());
+		}
+	}
+
+	/**
+	 * Register an MBean, replacing any already registered under the same name.
+	 */
+	private synchronized <T> void register(T metrics, Class<T> mbeanInterface, String type, String name) {
+		if (server == null) {
+			return;
+		}
+		try {
+			ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",mud=" + ObjectName.quote(mudName) +
+					(name != null ? ",name=" + ObjectName.quote(name) : ""));
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(new StandardMBean(metrics, mbeanInterface), objectName);
+		} catch (JMException e) {
+			System.err.println("Could not publish " + type + " metrics for " + name + ".");
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package mdexplorer;
+
+/**
+ * A line of MUD output as listeners are given it: cleaned up the way the MUD was told to with
+ * MUD.setNormalization(), with the line as it was read still available from raw().  Both are views over
+ * reusable buffers, so neither is copied unless a caller asks for a String, and both are only valid for
+ * the duration of the call they were passed to.  Asynchronous listeners are given a copy of the
+ * cleaned up text only.
+ */
+public final class NormalizedLine implements CharSequence {
+
+	private char[] chars;
+	private int length;
+	private CharSequence raw;
+
+	NormalizedLine() {
+	}
+
+	void set(char[] chars, int length, CharSequence raw) {
+		this.chars = chars;
+		this.length = length;
+		this.raw = raw;
+	}
+
+	/**
+	 * @return the line as it was read, after telnet decoding but before it was cleaned up
+	 */
+	public CharSequence raw() {
+		return raw;
+	}
+
+	/**
+	 * @param lineOfText a line passed to MUD.Listener.newText()
+	 * @return the line as it was read, or the line itself if it wasn't cleaned up
+	 */
+	public static CharSequence rawOf(CharSequence lineOfText) {
+		return (lineOfText instanceof NormalizedLine ? ((NormalizedLine)lineOfText).raw() : lineOfText);
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if ((index < 0) || (index >= length)) {
+			throw new IndexOutOfBoundsException(Integer.toString(index));
+		}
+		return chars[index];
+	}
+
+	@Override
+	public CharSequence subSequence(int from, int to) {
+		if ((from < 0) || (to > length) || (from > to)) {
+			throw new IndexOutOfBoundsException("from " + from + " to " + to + " of " + length);
+		}
+		return new String(chars, from, to - from);
+	}
+
+	@Override
+	public String toString() {
+		return new String(chars, 0, length);
+	}
+}
@@ -0,0 +1,169 @@
+package mdexplorer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Knows when the MUD next reboots.  Listens to every session for the "Next reboot" banner, so any user
+ * logging in keeps it up to date, and remembers the time in a cache file so it survives restarts.  Only
+ * looks for the banner while the time it has is stale, and writes the cache on a thread of its own, so
+ * it costs the selector thread next to nothing.
+ */
+public class RebootClock implements MUD.Listener {
+
+	/** How long a learned reboot time is trusted by default. */
+	public static final long DEFAULT_VALIDITY_MILLIS = 6 * 60 * 60 * 1000;
+
+	private static final Pattern REBOOT_PATTERN = Pattern.compile("Next reboot: \\D*(\\d+)h (\\d+)m (\\d+)s");
+
+	private static final String REBOOT_TIME_PROP = "reboot_time";
+	private static final String LEARNED_AT_PROP = "learned_at";
+
+	private final File cacheFile;
+	private final long validityMillis;
+
+	/** Writes the cache file, or null if there is none. */
+	private final ExecutorService cacheWriter;
+
+	/** Reused for every line.  Guarded by this. */
+	private final Matcher matcher = REBOOT_PATTERN.matcher("");
+
+	/** The time when the MUD is next scheduled to reboot.  Negative number means unknown. */
+	private volatile long rebootTime = -1;
+
+	/** When the reboot time was read from the MUD. */
+	private volatile long learnedAt = -1;
+
+	/**
+	 * A clock that only knows what it sees this run.
+	 */
+	public RebootClock() {
+		this(null, DEFAULT_VALIDITY_MILLIS);
+	}
+
+	/**
+	 * @param cacheFile where to remember the reboot time between runs.  May be null.
+	 * @param validityMillis how long after learning a reboot time it is still trusted
+	 */
+	public RebootClock(File cacheFile, long validityMillis) {
+		this.cacheFile = cacheFile;
+		this.validityMillis = validityMillis;
+		loadCache();
+		cacheWriter = (cacheFile == null ? null : Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Reboot Clock Cache Writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}));
+	}
+
+	/**
+	 * @return the time when the MUD next reboots, or -1 if unknown or already past
+	 */
+	public long getRebootTime() {
+		long time = rebootTime;
+		return (time < System.currentTimeMillis() ? -1 : time);
+	}
+
+	/**
+	 * @return true if the reboot time needs to be read from the MUD again, because it is
+	 * unknown, already past or was learned too long ago to trust
+	 */
+	public boolean isStale() {
+		long now = System.currentTimeMillis();
+		return (rebootTime < now) || (learnedAt + validityMillis < now);
+	}
+
+	@Override
+	public void connected(String user) {
+		// Don't care
+	}
+
+	@Override
+	public synchronized void newText(String user, CharSequence lineOfText) {
+		if (!isStale()) {
+			return;
+		}
+		matcher.reset(lineOfText);
+		if (matcher.find()) {
+			long now = System.currentTimeMillis();
+			long time = now;
+			time += Long.parseLong(matcher.group(1)) * 60 * 60 * 1000;
+			time += Long.parseLong(matcher.group(2)) * 60 * 1000;
+			time += Long.parseLong(matcher.group(3)) * 1000;
+			rebootTime = time;
+			learnedAt = now;
+			if (cacheWriter != null) {
+				cacheWriter.execute(new Runnable() {
+					public void run() {
+						saveCache();
+					}
+				});
+			}
+		}
+		// Don't hang on to the listener's buffer
+		matcher.reset("");
+	}
+
+	@Override
+	public void responseComplete(String user) {
+		// Don't care
+	}
+
+	@Override
+	public void disconnected(String user, boolean expected) {
+		// Don't care
+	}
+
+	private void loadCache() {
+		if ((cacheFile == null) || !cacheFile.exists()) {
+			return;
+		}
+		Properties cached = new Properties();
+		try {
+			InputStream strm = new FileInputStream(cacheFile);
+			try {
+				cached.load(strm);
+			} finally {
+				strm.close();
+			}
+			rebootTime = Long.parseLong(cached.getProperty(REBOOT_TIME_PROP, "-1"));
+			learnedAt = Long.parseLong(cached.getProperty(LEARNED_AT_PROP, "-1"));
+		} catch (IOException e) {
+			System.err.println("Could not read reboot time cache " + cacheFile + ".  Ignoring it.");
+		} catch (NumberFormatException e) {
+			System.err.println("Could not read reboot time cache " + cacheFile + ".  Ignoring it.");
+		}
+	}
+
+	/**
+	 * Write the latest reboot time to the cache file.  Runs on the cache writer.
+	 */
+	private void saveCache() {
+		Properties cached = new Properties();
+		cached.setProperty(REBOOT_TIME_PROP, Long.toString(rebootTime));
+		cached.setProperty(LEARNED_AT_PROP, Long.toString(learnedAt));
+		try {
+			OutputStream strm = new FileOutputStream(cacheFile);
+			try {
+				cached.store(strm, "MUD Explorer reboot time cache");
+			} finally {
+				strm.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not write reboot time cache " + cacheFile + ".");
+			e.printStackTrace();
+		}
+	}
+}
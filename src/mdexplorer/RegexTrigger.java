@@ -2,6 +2,8 @@ package mdexplorer;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -11,45 +13,358 @@ import org.w3c.dom.Node;
 
 public class RegexTrigger implements Trigger {
 
-	private Pattern regex;
-	private List<String> namedCaptures = new ArrayList<String>();
-	
+	/** Characters that end a run of literal text in a regular expression. */
+	private static final String METACHARACTERS = ".[]{}()*+?^$|";
+
+	/**
+	 * How many characters of input java.util.regex may read looking for a match before giving up.  Far more
+	 * than any sane pattern reads in a full scrollback, but it stops one that backtracks badly from
+	 * freezing the thread for good.
+	 */
+	public static final int DEFAULT_MAX_STEPS = 10000000;
+
+	private final Pattern regex;
+	final List<String> namedCaptures;
+
+	/** The group number of each named capture, or -1 if the regex has no such group.  Resolved at load. */
+	final int[] captureGroups;
+
+	/** The most characters a search may read, or 0 for no limit. */
+	private final int maxSteps;
+
+	/** Text every match starts with.  Lets a state rule the trigger out without running the regex. */
+	private final String literalPrefix;
+
+	/** Whether the whole regex is literal text, so finding the prefix is finding a match. */
+	private final boolean literal;
+
+	/** How a search that found nothing picks up when more input arrives, or null if it has to start over. */
+	private final LinearRegex.Resume resume;
+
 	public RegexTrigger() {
 		// Prototype constructor.
+		regex = null;
+		namedCaptures = Collections.emptyList();
+		captureGroups = new int[0];
+		literalPrefix = "";
+		literal = false;
+		maxSteps = 0;
+		resume = null;
 	}
-	
+
 	public RegexTrigger(String regexStr) {
+		this(regexStr, Collections.<String>emptyList());
+	}
+
+	/**
+	 * @param regexStr the regular expression
+	 * @param keys the named groups to put in the vars map when the trigger fires
+	 */
+	public RegexTrigger(String regexStr, List<String> keys) {
+		this(regexStr, keys, DEFAULT_MAX_STEPS);
+	}
+
+	/**
+	 * @param maxSteps the most characters of input a search may read before giving up, or 0 for no limit
+	 */
+	public RegexTrigger(String regexStr, List<String> keys, int maxSteps) {
+		this.maxSteps = maxSteps;
 		regex = Pattern.compile(regexStr, Pattern.DOTALL);
+		namedCaptures = Collections.unmodifiableList(new ArrayList<String>(keys));
+		Map<String, Integer> groupNumbers = readGroupNumbers(regexStr);
+		captureGroups = new int[keys.size()];
+		for (int i=0; i<keys.size(); ++i) {
+			Integer group = groupNumbers.get(keys.get(i));
+			captureGroups[i] = (group != null ? group : -1);
+		}
+		StringBuilder prefix = new StringBuilder();
+		literal = readLiteralPrefix(regexStr, prefix);
+		literalPrefix = prefix.toString();
+		resume = LinearRegex.resume(regexStr);
 	}
-	
+
 	@Override
 	public RegexTrigger load(Node node) {
 		Node keyNode = node.getAttributes().getNamedItem("keys");
-		String keyStr = (keyNode != null ? keyNode.getNodeValue() : null);
-		String regexStr = node.getTextContent().trim();
-		RegexTrigger newTrigger = new RegexTrigger(regexStr);
+		Node stepsNode = node.getAttributes().getNamedItem("maxSteps");
+		return create(node.getTextContent(), (keyNode != null ? keyNode.getNodeValue() : null),
+				(stepsNode != null ? stepsNode.getNodeValue() : null));
+	}
+
+	/**
+	 * Create a trigger from the parts of its configuration.  Warns about a regex that could backtrack badly.
+	 * @param content the content of the <Trigger> tag
+	 * @param keyStr the "keys" attribute, or null if there is none
+	 * @param stepsStr the "maxSteps" attribute, or null if there is none
+	 */
+	static RegexTrigger create(String content, String keyStr, String stepsStr) {
+		String regexStr = content.trim();
+		int maxSteps = (stepsStr != null ? Integer.parseInt(stepsStr.trim()) : DEFAULT_MAX_STEPS);
+		RegexTrigger trigger = new RegexTrigger(regexStr, readKeys(keyStr), maxSteps);
+		String risk = LinearRegex.backtrackingRisk(regexStr);
+		if (risk != null) {
+			System.err.println("Trigger \"" + regexStr + "\" could backtrack badly: " + risk + ".  " +
+					(isLinear(regexStr) ? "Consider type=\"LinearTrigger\"." :
+						"Searches give up after reading " + maxSteps + " characters."));
+		}
+		return trigger;
+	}
+
+	/**
+	 * @return the keys in a "keys" attribute, which may be null
+	 */
+	static List<String> readKeys(String keyStr) {
+		List<String> keys = Collections.emptyList();
 		if (keyStr != null) {
-			newTrigger.namedCaptures = Arrays.asList(keyStr.trim().split(","));
+			keys = Arrays.asList(keyStr.trim().split(","));
+		}
+		return keys;
+	}
+
+	/**
+	 * @return true if a LinearTrigger could match the regex
+	 */
+	private static boolean isLinear(String regexStr) {
+		try {
+			LinearRegex.compile(regexStr);
+			return true;
+		} catch (RuntimeException e) {
+			return false;
 		}
-		return newTrigger;
 	}
 
 	@Override
-	public boolean triggeredBy(String input, Map<String, Object> vars) {
-		Matcher matcher = regex.matcher(input);
-		boolean success = matcher.find();
-		if (success) {
-			// Add any parsed values to the vars map.
-			for(String nextKey: namedCaptures) {
+	public boolean triggeredBy(CharSequence input, Map<String, Object> vars) {
+		return newSearch().find(input, 0, vars) >= 0;
+	}
+
+	/**
+	 * @param input the input now
+	 * @param searched how much of the input now was searched before, with nothing found
+	 * @param sameStart false if input has been dropped from the start since then
+	 * @return where in the input a match could start now that there's more of it
+	 */
+	int resumeFrom(CharSequence input, int searched, boolean sameStart) {
+		return (resume != null ? resume.from(input, searched, sameStart) : 0);
+	}
+
+	/**
+	 * One run's way of finding a trigger's matches.  Triggers are shared between runs, so each run has
+	 * its own, and reuses it so a trigger that doesn't fire creates no garbage.
+	 */
+	abstract static class Search {
+		/**
+		 * Like triggeredBy(), but says where the match ended.
+		 * @param from where in the input matches may start
+		 * @return the index just past the match, or -1 if there is no match
+		 */
+		abstract int find(CharSequence input, int from, Map<String, Object> vars);
+
+		/**
+		 * @return true if the last find gave up before it could say whether there is a match
+		 */
+		boolean gaveUp() {
+			return false;
+		}
+	}
+
+	/**
+	 * @return a new search for this trigger
+	 */
+	Search newSearch() {
+		return new Search() {
+			private final Matcher matcher = regex.matcher("");
+			private final StepCounter counter = new StepCounter();
+			private boolean gaveUp = false;
+
+			@Override
+			int find(CharSequence input, int from, Map<String, Object> vars) {
+				counter.reset(input, maxSteps);
+				matcher.reset(maxSteps > 0 ? counter : input);
+				int end = -1;
+				gaveUp = false;
 				try {
-					String nextValue = matcher.group(nextKey);
-					vars.put(nextKey, nextValue);
-				} catch (IllegalArgumentException e) {
-					// Don't care.  Just don't put in an entry for that key.
+					if (matcher.find(from)) {
+						end = matcher.end();
+						// Add any parsed values to the vars map.  Keys with no group in the regex get no entry.
+						for (int i=0; i<captureGroups.length; ++i) {
+							if (captureGroups[i] >= 0) {
+								vars.put(namedCaptures.get(i), matcher.group(captureGroups[i]));
+							}
+						}
+					}
+				} catch (StepCounter.OutOfSteps e) {
+					System.err.println("Gave up on trigger \"" + regex.pattern() + "\" after reading " + maxSteps +
+							" characters of " + input.length() + ".  " +
+							"Not trying it again until its state is entered again.");
+					gaveUp = true;
+				}
+				// Don't hang on to the caller's buffer
+				matcher.reset("");
+				counter.reset("", 0);
+				return end;
+			}
+
+			@Override
+			boolean gaveUp() {
+				return gaveUp;
+			}
+		};
+	}
+
+	/**
+	 * Input that counts the characters read from it, and stops the search once too many have been.
+	 * java.util.regex reads a character for nearly every step it takes, backtracking included.
+	 */
+	private static class StepCounter implements CharSequence {
+
+		/** Thrown to stop a search.  Made once, with no stack trace, since it is only ever caught. */
+		static class OutOfSteps extends RuntimeException {
+			private static final long serialVersionUID = 1L;
+
+			OutOfSteps() {
+				super("Out of steps", null, false, false);
+			}
+		}
+
+		private static final OutOfSteps OUT_OF_STEPS = new OutOfSteps();
+
+		private CharSequence input;
+		private int stepsLeft;
+
+		void reset(CharSequence input, int maxSteps) {
+			this.input = input;
+			this.stepsLeft = maxSteps;
+		}
+
+		@Override
+		public int length() {
+			return input.length();
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (--stepsLeft < 0) {
+				throw OUT_OF_STEPS;
+			}
+			return input.charAt(index);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return input.subSequence(start, end);
+		}
+
+		@Override
+		public String toString() {
+			return input.toString();
+		}
+	}
+
+	/**
+	 * Number the groups of a regular expression the way java.util.regex does, so captures can be
+	 * looked up by number instead of by name.
+	 * @return the named groups mapped to their numbers
+	 */
+	static Map<String, Integer> readGroupNumbers(String regexStr) {
+		Map<String, Integer> numbers = new HashMap<String, Integer>();
+		int group = 0;
+		// How many character classes we're inside.  Classes nest, like [a-z&&[^aeiou]].
+		int classDepth = 0;
+		for (int i=0; i<regexStr.length(); ++i) {
+			char c = regexStr.charAt(i);
+			if (c == '\\') {
+				if (regexStr.startsWith("Q", i + 1)) {
+					// Quoted text runs to \E
+					int quoteEnd = regexStr.indexOf("\\E", i + 2);
+					i = (quoteEnd < 0 ? regexStr.length() : quoteEnd + 1);
+				} else {
+					++i;
+				}
+			} else if (c == '[') {
+				++classDepth;
+				// A ']' right at the start of a class is literal
+				if (regexStr.startsWith("^]", i + 1)) {
+					i += 2;
+				} else if (regexStr.startsWith("]", i + 1)) {
+					++i;
+				}
+			} else if (classDepth > 0) {
+				if (c == ']') {
+					--classDepth;
+				}
+			} else if (c == '(') {
+				if (!regexStr.startsWith("?", i + 1)) {
+					++group;
+				} else if (regexStr.startsWith("?<", i + 1) && (i + 3 < regexStr.length()) &&
+						Character.isLetter(regexStr.charAt(i + 3))) {
+					++group;
+					int nameEnd = regexStr.indexOf('>', i + 3);
+					if (nameEnd > 0) {
+						numbers.put(regexStr.substring(i + 3, nameEnd), group);
+					}
+				}
+			}
+		}
+		return numbers;
+	}
+
+	/**
+	 * @return text every match starts with.  Empty if matches can start with anything.
+	 */
+	String getLiteralPrefix() {
+		return literalPrefix;
+	}
+
+	/**
+	 * @return true if the regex is nothing but literal text and captures nothing, so any input containing
+	 * the literal prefix triggers it
+	 */
+	boolean isLiteral() {
+		return literal && namedCaptures.isEmpty();
+	}
+
+	/**
+	 * Work out the literal text a regular expression's matches must start with.  Errs on the side of a
+	 * shorter prefix.
+	 * @param regexStr the regular expression
+	 * @param prefix where the literal text is put
+	 * @return true if the whole expression is literal text
+	 */
+	static boolean readLiteralPrefix(String regexStr, StringBuilder prefix) {
+		// An alternative anywhere could mean matches start with something else entirely
+		for (int i=0; i<regexStr.length(); ++i) {
+			char c = regexStr.charAt(i);
+			if (c == '\\') {
+				++i;
+			} else if (c == '|') {
+				return false;
+			}
+		}
+		int i = 0;
+		while (i < regexStr.length()) {
+			char c = regexStr.charAt(i);
+			if ((c == '*') || (c == '?') || (c == '{')) {
+				// The last character was optional
+				if (prefix.length() > 0) {
+					prefix.setLength(prefix.length() - 1);
+				}
+				return false;
+			}
+			if (METACHARACTERS.indexOf(c) >= 0) {
+				return false;
+			}
+			if (c == '\\') {
+				if ((i + 1 >= regexStr.length()) || Character.isLetterOrDigit(regexStr.charAt(i + 1))) {
+					// A character class, boundary, back reference or quote.  Not simple literal text.
+					return false;
 				}
+				c = regexStr.charAt(++i);
 			}
+			prefix.append(c);
+			++i;
 		}
-		return success;
+		return true;
 	}
 
 }
@@ -1,27 +1,116 @@
 package mdexplorer;
 
+import java.util.concurrent.Executor;
+
 /**
- * Executes a scenario
+ * Executes a scenario.  Text from the MUD and timeouts arrive on different threads, so handling either
+ * holds the robot's lock.
  */
 public class Robot implements MUD.Listener {
 	
 	private MUD mud;
 	
+	/** The user whose session this robot drives.  Null means react to every user. */
+	private String user;
+	
 	private Scenario currentScenario;
 	
+	/** What the MUD has sent that no transition has used up yet. */
+	private Scrollback scrollback = new Scrollback(Scrollback.DEFAULT_LIMIT);
+	
+	/** The user last heard from.  Who timeout actions act for when the robot reacts to every user. */
+	private String lastUser;
+	
+	/** When text last came from the MUD. */
+	private volatile long lastHeard;
+	
+	/** Fires if the current state waits too long.  Null if it can wait forever. */
+	private TimerWheel.Timeout stateTimeout;
+	
+	/** Fires if the MUD goes quiet for too long.  Null if the scenario doesn't mind. */
+	private TimerWheel.Timeout silenceTimeout;
+	
+	/** Where each state the scenario enters is noted, so it can pick up again after a disconnect.  May be null. */
+	private CheckpointJournal journal;
+	
+	/** Where timeouts are handled.  Null to handle them on the timer wheel's thread. */
+	private Executor timeoutExecutor;
+	
 	public Robot(MUD mud) {
+		this(mud, null);
+	}
+	
+	/**
+	 * @param mud the MUD to drive
+	 * @param user the only user whose MUD output the robot will react to
+	 */
+	public Robot(MUD mud, String user) {
 		this.mud = mud;
+		this.user = user;
+	}
+	
+	/**
+	 * Cap how much unused MUD output the robot keeps for triggers to match against.  The oldest
+	 * output is dropped first.
+	 * @param limit the most characters to keep
+	 */
+	public void setScrollbackLimit(int limit) {
+		scrollback = new Scrollback(limit);
 	}
 	
 	public MUD getMud() {
 		return mud;
 	}
 	
+	/**
+	 * Note every state the robot's scenarios enter in a journal, so a run cut off by a disconnect can
+	 * pick up from its last checkpoint.
+	 */
+	public void setCheckpointJournal(CheckpointJournal journal) {
+		this.journal = journal;
+	}
+	
+	/**
+	 * Handle timeouts with an executor instead of on the timer wheel's thread, which every session shares.
+	 */
+	void setTimeoutExecutor(Executor executor) {
+		this.timeoutExecutor = executor;
+	}
+	
+	/**
+	 * @return true if a scenario was started and hasn't finished.  Still true after a disconnect cuts
+	 * the scenario off.
+	 */
+	public synchronized boolean isRunning() {
+		return currentScenario != null;
+	}
+	
 	public void executeScenario(Scenario s) {
+		start(s);
+		mud.listen(this);
+	}
+	
+	/**
+	 * Start a scenario without listening to the MUD, for when something else feeds the robot its text.
+	 */
+	synchronized void start(Scenario s) {
+		if (currentScenario != null) {
+			currentScenario.addCounts();
+		}
 		currentScenario = s;
+		lastUser = user;
+		scrollback.clear();
+		if (mud != null) {
+			// A robot for any user can't say whose session its scenario's work belongs to
+			mud.getMetrics().scenario(s.getDefinition());
+			s.setMetrics(user != null ? mud.getMetrics().session(user) : null);
+		}
 		System.out.println("XXXXXXXXXXXXXXXXXXX Executing scenario " + s.getName());
 		System.out.println("XXXXXXXXXXXXXXXXXXX Starting in state " + s.getState());
-		mud.listen(this);
+		checkpoint();
+		lastHeard = System.currentTimeMillis();
+		armStateTimeout();
+		armSilenceTimeout(s.getDefinition().getSilenceMillis());
 	}
 	
 	@Override
@@ -30,19 +119,150 @@ public class Robot implements MUD.Listener {
 	}
 	
 	@Override
-	public void newText(String user, String lineOfText) {
+	public synchronized void newText(String user, CharSequence lineOfText) {
+		if ((this.user != null) && !this.user.equals(user)) {
+			return;
+		}
 		if (currentScenario != null) {
-			currentScenario.processInput(this, user, lineOfText);			
-			if (currentScenario.isDone()) {
-				currentScenario = null;
+			scrollback.append(lineOfText);
+			lastUser = user;
+			lastHeard = System.currentTimeMillis();
+		}
+	}
+	
+	@Override
+	public synchronized void responseComplete(String user) {
+		if ((this.user != null) && !this.user.equals(user)) {
+			return;
+		}
+		if ((currentScenario != null) && (scrollback.length() > 0)) {
+			// Triggers are evaluated once per response, against everything not yet used up
+			int entries = currentScenario.getStateEntries();
+			int used = currentScenario.processInput(this, user, scrollback, scrollback.getPosition());
+			scrollback.consume(used);
+			if (currentScenario.getStateEntries() != entries) {
+				stateChanged();
 			}
 		}
 	}
 	
+	/**
+	 * Start the clock on the state the scenario just entered, or finish if it can't leave it.
+	 */
+	private void stateChanged() {
+		checkpoint();
+		if (currentScenario.isDone()) {
+			finish();
+		} else {
+			armStateTimeout();
+		}
+	}
+	
+	private void checkpoint() {
+		if ((journal != null) && (lastUser != null)) {
+			journal.record(lastUser, currentScenario);
+		}
+	}
+	
+	private void finish() {
+		boolean failed = currentScenario.isFailed();
+		currentScenario = null;
+		scrollback.clear();
+		cancel(stateTimeout);
+		cancel(silenceTimeout);
+		stateTimeout = null;
+		silenceTimeout = null;
+		if (failed && (lastUser != null)) {
+			// Don't leave a stuck session logged in
+			System.out.println("XXXXXXXXXXXXXXXXXXX Scenario failed.  Disconnecting " + lastUser);
+			mud.disconnect(lastUser);
+		}
+	}
+	
+	private void armStateTimeout() {
+		cancel(stateTimeout);
+		stateTimeout = null;
+		long timeout = currentScenario.getTimeoutMillis();
+		if (timeout >= 0) {
+			final Scenario scenario = currentScenario;
+			final int entries = scenario.getStateEntries();
+			stateTimeout = mud.getTimerWheel().schedule(handOff(new Runnable() {
+				public void run() {
+					stateTimedOut(scenario, entries);
+				}
+			}), timeout);
+		}
+	}
+	
+	private synchronized void stateTimedOut(Scenario scenario, int entries) {
+		// Text may have moved the scenario on just as the timeout fired
+		if ((scenario != currentScenario) || (scenario.getStateEntries() != entries)) {
+			return;
+		}
+		scenario.timeOut(this, lastUser);
+		stateChanged();
+	}
+	
+	private void armSilenceTimeout(long silence) {
+		cancel(silenceTimeout);
+		silenceTimeout = null;
+		if (silence >= 0) {
+			final Scenario scenario = currentScenario;
+			silenceTimeout = mud.getTimerWheel().schedule(handOff(new Runnable() {
+				public void run() {
+					silenceTimedOut(scenario);
+				}
+			}), silence - (System.currentTimeMillis() - lastHeard));
+		}
+	}
+	
+	/**
+	 * @return a timeout that runs on the timeout executor, if there is one
+	 */
+	private Runnable handOff(final Runnable timeout) {
+		final Executor executor = timeoutExecutor;
+		if (executor == null) {
+			return timeout;
+		}
+		return new Runnable() {
+			public void run() {
+				executor.execute(timeout);
+			}
+		};
+	}
+	
+	private synchronized void silenceTimedOut(Scenario scenario) {
+		if (scenario != currentScenario) {
+			return;
+		}
+		long silence = scenario.getDefinition().getSilenceMillis();
+		if (System.currentTimeMillis() - lastHeard < silence) {
+			// Heard something since this was armed.  Wait out the rest.
+			armSilenceTimeout(silence);
+			return;
+		}
+		scenario.fail("Heard nothing from the MUD for " + silence + "ms");
+		stateChanged();
+	}
+	
+	private static void cancel(TimerWheel.Timeout timeout) {
+		if (timeout != null) {
+			timeout.cancel();
+		}
+	}
+	
 	@Override
-	public void disconnected(String user, boolean expected) {
-		// Don't care
-		
+	public synchronized void disconnected(String user, boolean expected) {
+		if (((this.user != null) && !this.user.equals(user)) || (currentScenario == null)) {
+			return;
+		}
+		// Nothing more will come for this run.  Leave it unfinished so it can be picked up again.
+		System.out.println("XXXXXXXXXXXXXXXXXXX Disconnected in state " + currentScenario.getState());
+		currentScenario.addCounts();
+		cancel(stateTimeout);
+		cancel(silenceTimeout);
+		stateTimeout = null;
+		silenceTimeout = null;
 	}
 
 }
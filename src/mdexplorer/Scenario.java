@@ -1,42 +1,88 @@
 package mdexplorer;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import javax.xml.stream.XMLStreamReader;
-
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 /**
- * A finite state machine that matches text seen from the MUD and triggers commands sent to the MUD
+ * A finite state machine that matches text seen from the MUD and triggers commands sent to the MUD.
+ * Each object is one run of a ScenarioDefinition and only tracks where that run is.
  */
 public class Scenario {
 
-	private final static String START_STATE_NAME = "START";
-	private final static String END_STATE_NAME = "END";
-	private final static String ERROR_STATE_NAME = "ERROR";
-	
+	/**
+	 * A way out of a state.  Can't be changed once made, so it can be shared between runs.
+	 */
 	public static class Transition {
-		public Trigger trigger;
-		public List<Action> actions = new ArrayList<Action>();
-		public String toState;
+		public final Trigger trigger;
+		public final List<Action> actions;
+		public final String toState;
+		/** Taken if no other transition fires this long after entering the state.  Negative if not a timeout. */
+		public final long timeoutMillis;
+		/**
+		 * @param trigger what fires the transition, or null for anything
+		 * @param timeoutMillis how long after entering the state to take the transition, or negative if
+		 * not a timeout
+		 */
+		public Transition(Trigger trigger, List<Action> actions, String toState, long timeoutMillis) {
+			this.trigger = trigger;
+			this.actions = Collections.unmodifiableList(new ArrayList<Action>(actions));
+			this.toState = toState;
+			this.timeoutMillis = timeoutMillis;
+		}
 		public static Transition load(Node node) {
-			return Scenario.loadTransition(node);
+			return ScenarioDefinition.loadTransition(node);
 		}
 	}
 
+	/**
+	 * A state and the ways out of it.  Can't be changed once made, so it can be shared between runs.
+	 */
 	public static class State {
-		public String name;
-		public List<Transition> transitions = new ArrayList<Transition>();
+		public final String name;
+		/** The transitions with a trigger, in order.  The timeout transition is kept apart. */
+		public final List<Transition> transitions;
+		/** Finds the triggered transition in one pass. */
+		final StateMatcher matcher;
+		/** The transition to take when the state waits too long, or null to wait forever. */
+		final Transition timeout;
+		/** True if a run that lost its connection can pick up again from this state. */
+		public final boolean checkpoint;
+		/**
+		 * A state with no way out.
+		 */
 		public State(String inName) {
-			name = inName;
+			this(inName, Collections.<Transition>emptyList(), false);
+		}
+		/**
+		 * @param transitions every transition out of the state, including any timeout transition
+		 */
+		public State(String name, List<Transition> transitions, boolean checkpoint) {
+			this.name = name;
+			this.checkpoint = checkpoint;
+			List<Transition> triggered = new ArrayList<Transition>();
+			Transition timeout = null;
+			for (Transition t: transitions) {
+				if (t.timeoutMillis < 0) {
+					triggered.add(t);
+				} else if (timeout != null) {
+					throw new RuntimeException("State " + name + " has more than one timeout transition.");
+				} else if (t.trigger != null) {
+					throw new RuntimeException("Timeout transition in state " + name + " can't have a <Trigger>.");
+				} else {
+					timeout = t;
+				}
+			}
+			this.timeout = timeout;
+			this.transitions = Collections.unmodifiableList(triggered);
+			this.matcher = new StateMatcher(this.transitions);
 		}
 		public static State load(Node node) {
-			return Scenario.loadState(node);
+			return ScenarioDefinition.loadState(node);
 		}
 	}
 	
@@ -44,143 +90,224 @@ public class Scenario {
 	 * The prototype or exemplar pattern.  An object knows how to read a configuration and create a new
 	 * instance per that specification.  Usually the class also has a no-argument constructor that 
 	 * creates an object solely for the purpose of creating the configured object, but no way to 
-	 * express that in an interface.
+	 * express that in an interface.  Prototypes are cached and shared by every load, so load() must leave
+	 * the prototype as it was, and the loaded object must be safe to share between runs.
 	 */
 	public static interface Prototype {
 		public Prototype load(Node node);
 	}
 	
-	private String name;
-	private Map<String, State> states = new HashMap<String, State>();
+	private final ScenarioDefinition definition;
 	private State currentState;
 	
-	// Process data from the MUD and see if the finite state machine updates 
-	public void processInput(Robot robot, String user, String input) {
-		Map<String, Object> vars = new HashMap<String, Object>();
-		for (Transition t: currentState.transitions) {
-			if ((t.trigger == null) || t.trigger.triggeredBy(input, vars)) {
-				System.out.println("XXXXXXXXXXXXXXXXXXX Switching to state " + t.toState);
-				for(Action a: t.actions) {
-					a.execute(robot, user, vars);
-				}
-				// TBD: Handle out-of-date state transition commands
-				currentState = states.get(t.toState);
-				break;
-			}
-		}
-	}
+	/** Where the last match ended.  An array so the matcher can fill it in. */
+	private final int[] matchEnd = new int[1];
 	
-	public String getName() {
-		return name;
+	/** Reused for every evaluation.  Triggers only fill it in when they fire. */
+	private final Map<String, Object> vars = new HashMap<String, Object>();
+	
+	/** How much input the current state has already scanned, and this run's matchers for its triggers. */
+	private StateMatcher.Progress progress;
+	
+	/** The run's progress in each state it has been in, kept to be reset and reused when it comes back. */
+	private final Map<State, StateMatcher.Progress> progresses = new HashMap<State, StateMatcher.Progress>();
+	
+	/** How many times the run has entered a state.  Tells a timeout whether it is for the current visit. */
+	private int stateEntries = 0;
+	
+	/** What the trigger of the transition into the current state captured. */
+	private Map<String, Object> captured = Collections.emptyMap();
+	
+	/** When the current state was entered, by System.nanoTime(). */
+	private long stateEnteredNanos;
+	
+	/** Where to count what the run does, or null to not count it. */
+	private SessionMetrics metrics;
+	
+	/**
+	 * Start a run of a scenario.  Cheap, since everything but where the run is comes from the definition.
+	 */
+	public Scenario(ScenarioDefinition definition) {
+		this.definition = definition;
+		enterState(definition.getStartState());
 	}
 	
-	public String getState() {
-		return currentState.name;
+	/**
+	 * Pick up a run from a checkpoint.
+	 * @param stateName the state to start in
+	 * @param captured what the transition into that state captured
+	 */
+	Scenario(ScenarioDefinition definition, String stateName, Map<String, Object> captured) {
+		this.definition = definition;
+		State state = definition.getState(stateName);
+		if (state == null) {
+			throw new RuntimeException("Scenario " + definition.getName() + " has no state " + stateName);
+		}
+		this.captured = Collections.unmodifiableMap(new HashMap<String, Object>(captured));
+		enterState(state);
 	}
 	
-	public boolean isDone() {
-		return currentState == null;
+	/**
+	 * Process the text from the MUD not yet used up and see if the finite state machine updates.
+	 * @return how much of the input the transition used up, or 0 if there was no transition
+	 */
+	public int processInput(Robot robot, String user, CharSequence input) {
+		progress.reset();
+		return processInput(robot, user, input, 0);
 	}
 	
-	public static Scenario load(Node node) {
-		Scenario loaded = new Scenario();
-		String scenarioName = node.getAttributes().getNamedItem("name").getNodeValue();
-		loaded.name = scenarioName;
-		NodeList stateNodes = node.getChildNodes();
-		for (int i=0; i<stateNodes.getLength(); ++i) {
-			Node nextNode = stateNodes.item(i);
-			if ((nextNode.getNodeType() == Node.ELEMENT_NODE) && (nextNode.getNodeName() == "State")) {
-				State nextState = State.load(nextNode);
-				if (nextState != null) {
-					loaded.states.put(nextState.name, nextState);
-				}
-			}
+	/**
+	 * Like processInput(), for input that only changes by growing at the end and being used up or
+	 * dropped at the start.  Text already scanned in this state isn't scanned again.
+	 * @param inputStart where the input starts, counted from the first character the input ever had
+	 */
+	int processInput(Robot robot, String user, CharSequence input, long inputStart) {
+		vars.clear();
+		SessionMetrics counting = metrics;
+		long evaluations = progress.evaluations;
+		long started = (counting != null ? System.nanoTime() : 0);
+		int triggered = currentState.matcher.match(input, inputStart, progress, vars, matchEnd);
+		if (counting != null) {
+			counting.triggerTime.record(System.nanoTime() - started);
+			counting.triggerEvaluations.addAndGet(progress.evaluations - evaluations);
 		}
-		// Find start state.  Add end and fail states.	
-		loaded.currentState = loaded.states.get(START_STATE_NAME);
-		if (loaded.currentState == null) {
-			throw new RuntimeException("Could not parse scenario.  No start state defined.");
+		if (triggered < 0) {
+			return 0;
 		}
-		if (loaded.states.get(END_STATE_NAME) == null) {
-			loaded.states.put(END_STATE_NAME, new State(END_STATE_NAME));
+		if (counting != null) {
+			counting.triggerMatches.incrementAndGet();
 		}
-		if (loaded.states.get(ERROR_STATE_NAME) == null) {
-			loaded.states.put(ERROR_STATE_NAME, new State(ERROR_STATE_NAME));
+		Transition t = currentState.transitions.get(triggered);
+		// Actions get their own copy, since they may hang on to it
+		Map<String, Object> parsed = new HashMap<String, Object>(vars);
+		vars.clear();
+		take(robot, user, t, parsed);
+		return matchEnd[0];
+	}
+	
+	/**
+	 * @return how long the current state waits for a triggered transition, or -1 for forever
+	 */
+	long getTimeoutMillis() {
+		return ((currentState != null) && (currentState.timeout != null) ? currentState.timeout.timeoutMillis : -1);
+	}
+	
+	/**
+	 * Take the current state's timeout transition, because nothing else fired in time.
+	 */
+	void timeOut(Robot robot, String user) {
+		if ((currentState != null) && (currentState.timeout != null)) {
+			System.out.println("XXXXXXXXXXXXXXXXXXX Timed out in state " + currentState.name);
+			take(robot, user, currentState.timeout, new HashMap<String, Object>());
 		}
-
-		return loaded;
 	}
-
-	private static State loadState(Node node) {
-		String stateName = node.getAttributes().getNamedItem("name").getNodeValue();
-		State loaded = new State(stateName);
-		NodeList transxNodes = node.getChildNodes();
-		for (int i=0; i<transxNodes.getLength(); ++i) {
-			Node nextNode = transxNodes.item(i);
-			if (nextNode.getNodeType() == Node.ELEMENT_NODE) {
-				if (nextNode.getNodeName() == "Transition") {
-					Transition nextTransx = Transition.load(nextNode);
-					if (nextTransx != null) {
-						loaded.transitions.add(nextTransx);
-					}
-				} else {
-					throw new RuntimeException("Unknown tag <" + nextNode.getNodeName() + "> found in <State> tag.");
-				}
-			}
+	
+	/**
+	 * Give up and go to the error state.
+	 */
+	void fail(String reason) {
+		System.out.println("XXXXXXXXXXXXXXXXXXX " + reason + ".  Switching to state " + ScenarioDefinition.ERROR_STATE_NAME);
+		enterState(definition.getState(ScenarioDefinition.ERROR_STATE_NAME));
+	}
+	
+	private void take(Robot robot, String user, Transition t, Map<String, Object> parsed) {
+		System.out.println("XXXXXXXXXXXXXXXXXXX Switching to state " + t.toState);
+		for(Action a: t.actions) {
+			a.execute(robot, user, parsed);
 		}
-		return loaded;
-	}
-	
-	/**
-	 * Read an XML configuration for a transition and create the Transition described.
-	 */
-	private static Transition loadTransition(Node node) {
-		Transition loaded = new Transition();
-		loaded.toState = node.getAttributes().getNamedItem("to").getNodeValue();
-		NodeList subnodes = node.getChildNodes();
-		for (int i=0; i<subnodes.getLength(); ++i) {
-			Node nextNode = subnodes.item(i);
-			if (nextNode.getNodeType() == Node.ELEMENT_NODE) {
-				if (nextNode.getNodeName() == "Trigger") {
-					if (loaded.trigger != null) {
-						throw new RuntimeException("Error.  Found multiple <Trigger> tags in <Transition> tag.");
-					}
-					loaded.trigger = (Trigger)loadObject(nextNode);
-				} else if  (nextNode.getNodeName() == "Action") {
-					Action nextAction = (Action)loadObject(nextNode);
-					loaded.actions.add(nextAction);
-				} else {
-					throw new RuntimeException("Unknown tag <" + nextNode.getNodeName() + "> found in <State> tag.");
-				}
+		// TBD: Handle out-of-date state transition commands
+		captured = Collections.unmodifiableMap(parsed);
+		enterState(definition.getState(t.toState));
+	}
+	
+	private void enterState(State state) {
+		addCounts();
+		long now = System.nanoTime();
+		if ((metrics != null) && (currentState != null)) {
+			metrics.timeInState.record(now - stateEnteredNanos);
+		}
+		stateEnteredNanos = now;
+		currentState = state;
+		progress = null;
+		if (state != null) {
+			progress = progresses.get(state);
+			if (progress == null) {
+				progress = state.matcher.newProgress();
+				progresses.put(state, progress);
+			} else {
+				progress.reset();
 			}
 		}
-		return loaded;
+		++stateEntries;
+	}
+	
+	int getStateEntries() {
+		return stateEntries;
 	}
 	
 	/**
-	 * In the Scenarion XML configuration, both the <Action> and <Trigger> tags must support polymorphic subclasses,
-	 * so a "type" attribute specifies the class of the object to load.  This uses reflection to load the class. 
-	 * @param node the XML configuration of the object.  Expects a "type" attribute to specify the fully qualified name 
-	 * of the Java class to load (though if in the mdexplorer package, then it can just be the class name).  Everything
-	 * in the content of the node is handed to the derived class to parse.
+	 * Add what the run has counted in its current state to the state's totals.  Done whenever it leaves a
+	 * state, and by the robot when the run stops before reaching the end.
 	 */
-	private static Prototype loadObject(Node node) {
-		Prototype loaded = null;
-		String className = node.getAttributes().getNamedItem("type").getNodeValue();
-		if (!className.contains(".")) {
-			className = Scenario.class.getPackage().getName() + "." + className;
+	void addCounts() {
+		if (progress != null) {
+			currentState.matcher.addCounts(progress);
 		}
-		
-		try {
-			Class<?> desiredClass = Class.forName(className);
-			Prototype prototype = (Prototype)desiredClass.newInstance();
-			loaded = prototype.load(node);
-		} catch (RuntimeException e) {
-			throw e;
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
-		return loaded;
+	}
+	
+	/**
+	 * Count what the run does from now on in a session's metrics.
+	 */
+	void setMetrics(SessionMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	public String getName() {
+		return definition.getName();
+	}
+	
+	public ScenarioDefinition getDefinition() {
+		return definition;
+	}
+	
+	public String getState() {
+		return currentState.name;
+	}
+	
+	/**
+	 * @return what the trigger of the transition into the current state captured
+	 */
+	public Map<String, Object> getCapturedVars() {
+		return captured;
+	}
+	
+	/**
+	 * @return true if the run could pick up again from the current state after losing its connection
+	 */
+	public boolean isCheckpoint() {
+		return (currentState != null) && currentState.checkpoint;
+	}
+	
+	/**
+	 * @return true once the run is in a state it can never leave, such as END or ERROR
+	 */
+	public boolean isDone() {
+		return (currentState == null) || (currentState.transitions.isEmpty() && (currentState.timeout == null));
+	}
+	
+	/**
+	 * @return true if the run ended because something went wrong
+	 */
+	public boolean isFailed() {
+		return (currentState != null) && currentState.name.equals(ScenarioDefinition.ERROR_STATE_NAME) && isDone();
+	}
+	
+	/**
+	 * Load a scenario definition and start a run of it.  Loading is the expensive part, so to run a
+	 * scenario more than once, load a ScenarioDefinition and create a Scenario from it for each run.
+	 */
+	public static Scenario load(Node node) {
+		return new Scenario(ScenarioDefinition.load(node));
 	}
 	
 }
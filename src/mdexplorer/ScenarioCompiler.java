@@ -0,0 +1,197 @@
+package mdexplorer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Compiles scenario XML files into the binary file CompiledScenarios reads, so startup skips the XML.
+ * Every scenario is loaded first to check it is valid.
+ * <p>
+ * Usage: ScenarioCompiler outputFile scenarioResource...
+ * The scenario files are class path resources, the same as for mdexplorer.scenario_files.
+ */
+public class ScenarioCompiler {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: ScenarioCompiler outputFile scenarioResource...");
+			System.exit(1);
+		}
+		List<String> resources = Arrays.asList(args).subList(1, args.length);
+		compile(resources, new File(args[0]));
+		System.out.println("Compiled " + resources + " into " + args[0]);
+	}
+
+	/**
+	 * @param resources the scenario XML files, as class path resources
+	 * @param output where to write the compiled scenarios
+	 */
+	public static void compile(List<String> resources, File output) throws IOException {
+		// Stamp the sources before reading them, so a change while compiling shows up as stale
+		List<long[]> stamps = new ArrayList<long[]>();
+		for (String resource: resources) {
+			stamps.add(CompiledScenarios.stamp(resource));
+		}
+		Map<String, Element> scenarios = new LinkedHashMap<String, Element>();
+		for (String resource: resources) {
+			for (Element scenario: readScenarios(resource)) {
+				// Fail here rather than at run time
+				ScenarioDefinition definition = ScenarioDefinition.load(scenario);
+				if (scenarios.put(definition.getName(), scenario) != null) {
+					throw new RuntimeException("Scenario \"" + definition.getName() + "\" is defined more than once.");
+				}
+			}
+		}
+
+		ByteArrayOutputStream bodies = new ByteArrayOutputStream();
+		DataOutputStream bodiesOut = new DataOutputStream(bodies);
+		Map<String, Integer> offsets = new LinkedHashMap<String, Integer>();
+		for (Map.Entry<String, Element> scenario: scenarios.entrySet()) {
+			offsets.put(scenario.getKey(), bodiesOut.size());
+			writeScenario(bodiesOut, scenario.getValue());
+		}
+		bodiesOut.flush();
+
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(output));
+		try {
+			out.writeInt(CompiledScenarios.MAGIC);
+			out.writeInt(CompiledScenarios.VERSION);
+			out.writeInt(resources.size());
+			for (int i=0; i<resources.size(); ++i) {
+				writeString(out, resources.get(i));
+				out.writeLong(stamps.get(i)[0]);
+				out.writeLong(stamps.get(i)[1]);
+			}
+			out.writeInt(offsets.size());
+			for (Map.Entry<String, Integer> offset: offsets.entrySet()) {
+				writeString(out, offset.getKey());
+				out.writeInt(offset.getValue());
+			}
+			bodies.writeTo(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the <Scenario> tags in a file.  The root tag, or the ones under it.
+	 */
+	private static List<Element> readScenarios(String resource) throws IOException {
+		InputStream strm = ScenarioCompiler.class.getClassLoader().getResourceAsStream(resource);
+		if (strm == null) {
+			throw new RuntimeException("Couldn't find scenario file " + resource);
+		}
+		Element root;
+		try {
+			root = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(strm).getDocumentElement();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException("Couldn't read XML file " + resource, e);
+		} finally {
+			strm.close();
+		}
+		List<Element> scenarios = new ArrayList<Element>();
+		if (root.getNodeName().equals("Scenario")) {
+			scenarios.add(root);
+		} else {
+			scenarios.addAll(childElements(root, "Scenario"));
+		}
+		return scenarios;
+	}
+
+	private static void writeScenario(DataOutputStream out, Element scenario) throws IOException {
+		out.writeLong(durationAttribute(scenario, "silence"));
+		List<Element> states = childElements(scenario, "State");
+		out.writeInt(states.size());
+		for (Element state: states) {
+			writeString(out, state.getAttribute("name"));
+			out.writeByte(Boolean.parseBoolean(state.getAttribute("checkpoint").trim()) ? 1 : 0);
+			List<Element> transitions = childElements(state, "Transition");
+			out.writeInt(transitions.size());
+			for (Element transition: transitions) {
+				writeString(out, transition.getAttribute("to"));
+				out.writeLong(durationAttribute(transition, "timeout"));
+				List<Element> triggers = childElements(transition, "Trigger");
+				out.writeByte(triggers.isEmpty() ? 0 : 1);
+				if (!triggers.isEmpty()) {
+					writeElement(out, triggers.get(0));
+				}
+				List<Element> actions = childElements(transition, "Action");
+				out.writeInt(actions.size());
+				for (Element action: actions) {
+					writeElement(out, action);
+				}
+			}
+		}
+	}
+
+	private static void writeElement(DataOutputStream out, Element element) throws IOException {
+		writeString(out, element.getNodeName());
+		NamedNodeMap attributes = element.getAttributes();
+		out.writeInt(attributes.getLength());
+		for (int i=0; i<attributes.getLength(); ++i) {
+			writeString(out, attributes.item(i).getNodeName());
+			writeString(out, attributes.item(i).getNodeValue());
+		}
+		List<Node> children = new ArrayList<Node>();
+		NodeList childNodes = element.getChildNodes();
+		for (int i=0; i<childNodes.getLength(); ++i) {
+			short type = childNodes.item(i).getNodeType();
+			if ((type == Node.TEXT_NODE) || (type == Node.CDATA_SECTION_NODE) || (type == Node.ELEMENT_NODE)) {
+				children.add(childNodes.item(i));
+			}
+		}
+		out.writeInt(children.size());
+		for (Node child: children) {
+			if (child.getNodeType() == Node.ELEMENT_NODE) {
+				out.writeByte(CompiledScenarios.ELEMENT_CHILD);
+				writeElement(out, (Element)child);
+			} else {
+				out.writeByte(CompiledScenarios.TEXT_CHILD);
+				writeString(out, child.getNodeValue());
+			}
+		}
+	}
+
+	/**
+	 * @return the duration an attribute gives in milliseconds, or -1 if there is no such attribute
+	 */
+	private static long durationAttribute(Element element, String attribute) {
+		return (element.hasAttribute(attribute) ? ScenarioDefinition.parseDuration(element.getAttribute(attribute)) : -1);
+	}
+
+	private static List<Element> childElements(Element parent, String tag) {
+		List<Element> children = new ArrayList<Element>();
+		NodeList childNodes = parent.getChildNodes();
+		for (int i=0; i<childNodes.getLength(); ++i) {
+			Node child = childNodes.item(i);
+			if ((child.getNodeType() == Node.ELEMENT_NODE) && child.getNodeName().equals(tag)) {
+				children.add((Element)child);
+			}
+		}
+		return children;
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		byte[] bytes = str.getBytes(CompiledScenarios.UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+}
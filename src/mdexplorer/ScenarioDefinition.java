@@ -0,0 +1,222 @@
+package mdexplorer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import mdexplorer.Scenario.Prototype;
+import mdexplorer.Scenario.State;
+import mdexplorer.Scenario.Transition;
+
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * A scenario as read from its XML configuration, with every trigger compiled.  Loaded once and never
+ * changed afterwards, so one definition can be shared by any number of runs on any number of threads.
+ * Each run is a Scenario, which only tracks where that run is.
+ */
+public class ScenarioDefinition {
+
+	final static String START_STATE_NAME = "START";
+	final static String END_STATE_NAME = "END";
+	final static String ERROR_STATE_NAME = "ERROR";
+
+	/** One prototype per "type" attribute seen, so each class is only looked up and instantiated once. */
+	private static final ConcurrentMap<String, Prototype> prototypes = new ConcurrentHashMap<String, Prototype>();
+
+	private static final Pattern DURATION_PATTERN = Pattern.compile("(\\d+(?:\\.\\d*)?)\\s*(ms|s|m|h)?");
+
+	private final String name;
+	private final Map<String, State> states;
+	/** How long a run may hear nothing from the MUD before it is failed.  Negative means forever. */
+	private final long silenceMillis;
+
+	private ScenarioDefinition(String name, Map<String, State> states, long silenceMillis) {
+		this.name = name;
+		this.states = Collections.unmodifiableMap(states);
+		this.silenceMillis = silenceMillis;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return how long a run may hear nothing from the MUD before it goes to the ERROR state, or -1 for forever
+	 */
+	public long getSilenceMillis() {
+		return silenceMillis;
+	}
+
+	/**
+	 * @return the state with the name, or null if there is none
+	 */
+	State getState(String stateName) {
+		return states.get(stateName);
+	}
+
+	/**
+	 * @return every state, including END and ERROR
+	 */
+	Collection<State> getStates() {
+		return states.values();
+	}
+
+	State getStartState() {
+		return states.get(START_STATE_NAME);
+	}
+
+	public static ScenarioDefinition load(Node node) {
+		String scenarioName = node.getAttributes().getNamedItem("name").getNodeValue();
+		Map<String, State> states = new HashMap<String, State>();
+		NodeList stateNodes = node.getChildNodes();
+		for (int i=0; i<stateNodes.getLength(); ++i) {
+			Node nextNode = stateNodes.item(i);
+			if ((nextNode.getNodeType() == Node.ELEMENT_NODE) && (nextNode.getNodeName() == "State")) {
+				State nextState = State.load(nextNode);
+				if (nextState != null) {
+					states.put(nextState.name, nextState);
+				}
+			}
+		}
+		Node silenceNode = node.getAttributes().getNamedItem("silence");
+		return create(scenarioName, states, (silenceNode != null ? parseDuration(silenceNode.getNodeValue()) : -1));
+	}
+
+	/**
+	 * Finish a scenario from its loaded states.
+	 * @param states every state the configuration defined.  End and error states are added if missing.
+	 * @param silenceMillis how long a run may hear nothing before it fails.  Negative means forever.
+	 */
+	static ScenarioDefinition create(String scenarioName, Map<String, State> states, long silenceMillis) {
+		// Find start state.  Add end and fail states.
+		if (states.get(START_STATE_NAME) == null) {
+			throw new RuntimeException("Could not parse scenario.  No start state defined.");
+		}
+		if (states.get(END_STATE_NAME) == null) {
+			states.put(END_STATE_NAME, new State(END_STATE_NAME));
+		}
+		if (states.get(ERROR_STATE_NAME) == null) {
+			states.put(ERROR_STATE_NAME, new State(ERROR_STATE_NAME));
+		}
+		return new ScenarioDefinition(scenarioName, states, silenceMillis);
+	}
+
+	static State loadState(Node node) {
+		String stateName = node.getAttributes().getNamedItem("name").getNodeValue();
+		Node checkpointNode = node.getAttributes().getNamedItem("checkpoint");
+		boolean checkpoint = (checkpointNode != null) && Boolean.parseBoolean(checkpointNode.getNodeValue().trim());
+		List<Transition> transitions = new ArrayList<Transition>();
+		NodeList transxNodes = node.getChildNodes();
+		for (int i=0; i<transxNodes.getLength(); ++i) {
+			Node nextNode = transxNodes.item(i);
+			if (nextNode.getNodeType() == Node.ELEMENT_NODE) {
+				if (nextNode.getNodeName() == "Transition") {
+					Transition nextTransx = Transition.load(nextNode);
+					if (nextTransx != null) {
+						transitions.add(nextTransx);
+					}
+				} else {
+					throw new RuntimeException("Unknown tag <" + nextNode.getNodeName() + "> found in <State> tag.");
+				}
+			}
+		}
+		return new State(stateName, transitions, checkpoint);
+	}
+
+	/**
+	 * Read an XML configuration for a transition and create the Transition described.
+	 */
+	static Transition loadTransition(Node node) {
+		String toState = node.getAttributes().getNamedItem("to").getNodeValue();
+		Node timeoutNode = node.getAttributes().getNamedItem("timeout");
+		long timeoutMillis = (timeoutNode != null ? parseDuration(timeoutNode.getNodeValue()) : -1);
+		Trigger trigger = null;
+		List<Action> actions = new ArrayList<Action>();
+		NodeList subnodes = node.getChildNodes();
+		for (int i=0; i<subnodes.getLength(); ++i) {
+			Node nextNode = subnodes.item(i);
+			if (nextNode.getNodeType() == Node.ELEMENT_NODE) {
+				if (nextNode.getNodeName() == "Trigger") {
+					if (trigger != null) {
+						throw new RuntimeException("Error.  Found multiple <Trigger> tags in <Transition> tag.");
+					}
+					trigger = (Trigger)loadObject(nextNode);
+				} else if  (nextNode.getNodeName() == "Action") {
+					Action nextAction = (Action)loadObject(nextNode);
+					actions.add(nextAction);
+				} else {
+					throw new RuntimeException("Unknown tag <" + nextNode.getNodeName() + "> found in <State> tag.");
+				}
+			}
+		}
+		return new Transition(trigger, actions, toState, timeoutMillis);
+	}
+
+	/**
+	 * Read a duration such as "30s", "500ms", "2m" or "1.5h".  A plain number is seconds.
+	 * @return the duration in milliseconds
+	 */
+	static long parseDuration(String durationStr) {
+		Matcher matcher = DURATION_PATTERN.matcher(durationStr.trim());
+		if (!matcher.matches()) {
+			throw new RuntimeException("Could not parse duration \"" + durationStr + "\".");
+		}
+		double amount = Double.parseDouble(matcher.group(1));
+		String unit = (matcher.group(2) != null ? matcher.group(2) : "s");
+		if (unit.equals("ms")) {
+			return (long)amount;
+		} else if (unit.equals("s")) {
+			return (long)(amount * 1000);
+		} else if (unit.equals("m")) {
+			return (long)(amount * 60 * 1000);
+		}
+		return (long)(amount * 60 * 60 * 1000);
+	}
+
+	/**
+	 * In the Scenarion XML configuration, both the <Action> and <Trigger> tags must support polymorphic subclasses,
+	 * so a "type" attribute specifies the class of the object to load.  The class is looked up and its prototype
+	 * created the first time a type is seen.  After that the cached prototype is used.
+	 * @param node the XML configuration of the object.  Expects a "type" attribute to specify the fully qualified name
+	 * of the Java class to load (though if in the mdexplorer package, then it can just be the class name).  Everything
+	 * in the content of the node is handed to the derived class to parse.
+	 */
+	static Prototype loadObject(Node node) {
+		String type = node.getAttributes().getNamedItem("type").getNodeValue();
+		return getPrototype(type).load(node);
+	}
+
+	/**
+	 * @param type the "type" attribute naming the class
+	 * @return the shared prototype for the class
+	 */
+	static Prototype getPrototype(String type) {
+		Prototype prototype = prototypes.get(type);
+		if (prototype != null) {
+			return prototype;
+		}
+		String className = type;
+		if (!className.contains(".")) {
+			className = Scenario.class.getPackage().getName() + "." + className;
+		}
+		try {
+			Class<?> desiredClass = Class.forName(className);
+			prototype = (Prototype)desiredClass.newInstance();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		Prototype existing = prototypes.putIfAbsent(type, prototype);
+		return (existing != null ? existing : prototype);
+	}
+}
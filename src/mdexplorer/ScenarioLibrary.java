@@ -0,0 +1,377 @@
+package mdexplorer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import mdexplorer.Scenario.State;
+import mdexplorer.Scenario.Transition;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * The scenarios in a set of XML files.  A file holds either one <Scenario> as its root, or any root tag
+ * with many <Scenario> tags in it.  Files are streamed rather than read into a DOM.  At startup each
+ * file is only skimmed for scenario names.  The first time any scenario in a file is asked for, every
+ * scenario in the file is compiled in one pass over it, and kept from then on.  If the files have been
+ * compiled with ScenarioCompiler and the compiled file is up to date, scenarios are decoded from it
+ * instead and the XML isn't read at all.  A file that changes can be reloaded while the library is in use.
+ */
+public class ScenarioLibrary {
+
+	/**
+	 * Everything the library knows at one time.  Never changed once published, except that scenarios
+	 * are added to compiled as they are first asked for.
+	 */
+	private static class Catalog {
+		/** The file each scenario is in, by scenario name.  Empty when reading from the binary. */
+		final Map<String, String> files;
+		/** The scenarios compiled so far. */
+		final ConcurrentMap<String, ScenarioDefinition> compiled;
+		/** The compiled scenarios, or null to read the XML. */
+		final CompiledScenarios binary;
+
+		Catalog(Map<String, String> files, ConcurrentMap<String, ScenarioDefinition> compiled, CompiledScenarios binary) {
+			this.files = Collections.unmodifiableMap(files);
+			this.compiled = compiled;
+			this.binary = binary;
+		}
+	}
+
+	private final XMLInputFactory xmlFactory = XMLInputFactory.newInstance();
+
+	private final List<String> resources;
+
+	/** Replaced as a whole when a file is reloaded, so a lookup sees the library before or after, not between. */
+	private volatile Catalog catalog;
+
+	/** Where <Trigger> and <Action> tags are copied so their prototypes can read them.  Guarded by this. */
+	private Document document;
+
+	/**
+	 * @param resources the class path resources holding the scenarios
+	 */
+	public ScenarioLibrary(List<String> resources) {
+		this(resources, null);
+	}
+
+	/**
+	 * @param resources the class path resources holding the scenarios
+	 * @param compiledFile the resources compiled by ScenarioCompiler.  Used instead of the XML unless it is
+	 * missing or out of date.  May be null.
+	 */
+	public ScenarioLibrary(List<String> resources, File compiledFile) {
+		this.resources = new ArrayList<String>(resources);
+		CompiledScenarios binary = CompiledScenarios.open(compiledFile, resources);
+		Map<String, String> files = new LinkedHashMap<String, String>();
+		if (binary == null) {
+			for (String resource: resources) {
+				index(resource, files);
+			}
+		}
+		catalog = new Catalog(files, new ConcurrentHashMap<String, ScenarioDefinition>(), binary);
+	}
+
+	/**
+	 * @return the class path resources holding the scenarios
+	 */
+	public List<String> getResources() {
+		return Collections.unmodifiableList(resources);
+	}
+
+	/**
+	 * @return the names of every scenario in the library
+	 */
+	public Set<String> getNames() {
+		Catalog current = catalog;
+		if (current.binary != null) {
+			return current.binary.getNames();
+		}
+		return current.files.keySet();
+	}
+
+	/**
+	 * @return the compiled scenario, or null if the library has no scenario with the name.  Runs
+	 * already started on an older definition keep it.
+	 */
+	public ScenarioDefinition get(String name) {
+		Catalog current = catalog;
+		ScenarioDefinition definition = current.compiled.get(name);
+		if (definition == null) {
+			definition = load(current, name);
+			if (definition != null) {
+				ScenarioDefinition existing = current.compiled.putIfAbsent(name, definition);
+				definition = (existing != null ? existing : definition);
+			}
+		}
+		return definition;
+	}
+
+	private synchronized ScenarioDefinition load(Catalog current, String name) {
+		if (current.binary != null) {
+			return current.binary.load(name);
+		}
+		String resource = current.files.get(name);
+		if (resource == null) {
+			return null;
+		}
+		// Another thread may have compiled the file while this one waited
+		ScenarioDefinition definition = current.compiled.get(name);
+		if (definition != null) {
+			return definition;
+		}
+		for (ScenarioDefinition next: compileAll(resource)) {
+			if (resource.equals(current.files.get(next.getName()))) {
+				current.compiled.putIfAbsent(next.getName(), next);
+			}
+		}
+		definition = current.compiled.get(name);
+		if (definition == null) {
+			throw new RuntimeException("Scenario \"" + name + "\" is no longer in " + resource + ".");
+		}
+		return definition;
+	}
+
+	/**
+	 * Read a changed file again, compile every scenario in it and publish them in place of the file's old
+	 * scenarios.  Scenarios from other files are kept as they are.  If the file can't be read or a
+	 * scenario in it doesn't compile, the library is left as it was.
+	 * @throws RuntimeException if the file can't be read or compiled
+	 */
+	public synchronized void reload(String resource) {
+		Catalog old = catalog;
+		Map<String, String> files = new LinkedHashMap<String, String>();
+		if (old.binary != null) {
+			// The binary is out of date now.  Go back to the XML for everything.
+			for (String other: resources) {
+				if (!other.equals(resource)) {
+					index(other, files);
+				}
+			}
+		} else {
+			for (Map.Entry<String, String> entry: old.files.entrySet()) {
+				if (!entry.getValue().equals(resource)) {
+					files.put(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+		ConcurrentMap<String, ScenarioDefinition> compiled = new ConcurrentHashMap<String, ScenarioDefinition>();
+		for (ScenarioDefinition definition: compileAll(resource)) {
+			String name = definition.getName();
+			if (files.containsKey(name)) {
+				throw new RuntimeException("Scenario \"" + name + "\" is defined more than once.");
+			}
+			files.put(name, resource);
+			compiled.put(name, definition);
+		}
+		// Keep what was already compiled from the other files
+		for (Map.Entry<String, ScenarioDefinition> entry: old.compiled.entrySet()) {
+			String file = files.get(entry.getKey());
+			if ((file != null) && !file.equals(resource)) {
+				compiled.putIfAbsent(entry.getKey(), entry.getValue());
+			}
+		}
+		catalog = new Catalog(files, compiled, null);
+	}
+
+	/**
+	 * Record which scenarios a file has, skipping over what is in them.
+	 */
+	private void index(final String resource, final Map<String, String> files) {
+		new ScenarioWalker(resource) {
+			@Override
+			boolean scenario(XMLStreamReader reader, String name) throws XMLStreamException {
+				if (files.containsKey(name)) {
+					throw new RuntimeException("Scenario \"" + name + "\" is in both " + files.get(name) + " and " + resource + ".");
+				}
+				files.put(name, resource);
+				skipElement(reader);
+				return true;
+			}
+		}.read();
+	}
+
+	/**
+	 * Read every scenario out of a file.
+	 */
+	private List<ScenarioDefinition> compileAll(String resource) {
+		final List<ScenarioDefinition> found = new ArrayList<ScenarioDefinition>();
+		new ScenarioWalker(resource) {
+			@Override
+			boolean scenario(XMLStreamReader reader, String name) throws XMLStreamException {
+				found.add(readScenario(reader, name));
+				return true;
+			}
+		}.read();
+		return found;
+	}
+
+	/**
+	 * Walks the <Scenario> tags of one file.
+	 */
+	private abstract class ScenarioWalker {
+		private final String resource;
+
+		ScenarioWalker(String resource) {
+			this.resource = resource;
+		}
+
+		/**
+		 * Called with the reader on a <Scenario> start tag.  Must leave it on the matching end tag.
+		 * @return true to keep reading the file
+		 */
+		abstract boolean scenario(XMLStreamReader reader, String name) throws XMLStreamException;
+
+		void read() {
+			InputStream strm = ScenarioLibrary.class.getClassLoader().getResourceAsStream(resource);
+			if (strm == null) {
+				throw new RuntimeException("Couldn't find scenario file " + resource);
+			}
+			try {
+				XMLStreamReader reader = xmlFactory.createXMLStreamReader(strm);
+				try {
+					boolean more = true;
+					while (more && reader.hasNext()) {
+						if ((reader.next() == XMLStreamConstants.START_ELEMENT) && reader.getLocalName().equals("Scenario")) {
+							more = scenario(reader, requiredAttribute(reader, "name"));
+						}
+					}
+				} finally {
+					reader.close();
+				}
+			} catch (XMLStreamException e) {
+				throw new RuntimeException("Couldn't read XML file " + resource, e);
+			} finally {
+				try {
+					strm.close();
+				} catch (IOException e) {
+					// Nothing more to read anyway
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read the states of a scenario.  The reader starts on the <Scenario> start tag and ends on its end tag.
+	 */
+	private ScenarioDefinition readScenario(XMLStreamReader reader, String name) throws XMLStreamException {
+		String silenceStr = reader.getAttributeValue(null, "silence");
+		long silenceMillis = (silenceStr != null ? ScenarioDefinition.parseDuration(silenceStr) : -1);
+		Map<String, State> states = new HashMap<String, State>();
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			if (reader.getLocalName().equals("State")) {
+				State nextState = readState(reader);
+				states.put(nextState.name, nextState);
+			} else {
+				// The DOM loader ignores anything but states here too
+				skipElement(reader);
+			}
+		}
+		return ScenarioDefinition.create(name, states, silenceMillis);
+	}
+
+	private State readState(XMLStreamReader reader) throws XMLStreamException {
+		String name = requiredAttribute(reader, "name");
+		String checkpointStr = reader.getAttributeValue(null, "checkpoint");
+		boolean checkpoint = (checkpointStr != null) && Boolean.parseBoolean(checkpointStr.trim());
+		List<Transition> transitions = new ArrayList<Transition>();
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			if (reader.getLocalName().equals("Transition")) {
+				transitions.add(readTransition(reader));
+			} else {
+				throw new RuntimeException("Unknown tag <" + reader.getLocalName() + "> found in <State> tag.");
+			}
+		}
+		return new State(name, transitions, checkpoint);
+	}
+
+	private Transition readTransition(XMLStreamReader reader) throws XMLStreamException {
+		String toState = requiredAttribute(reader, "to");
+		String timeoutStr = reader.getAttributeValue(null, "timeout");
+		long timeoutMillis = (timeoutStr != null ? ScenarioDefinition.parseDuration(timeoutStr) : -1);
+		Trigger trigger = null;
+		List<Action> actions = new ArrayList<Action>();
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			if (reader.getLocalName().equals("Trigger")) {
+				if (trigger != null) {
+					throw new RuntimeException("Error.  Found multiple <Trigger> tags in <Transition> tag.");
+				}
+				trigger = (Trigger)ScenarioDefinition.loadObject(readElement(reader));
+			} else if (reader.getLocalName().equals("Action")) {
+				actions.add((Action)ScenarioDefinition.loadObject(readElement(reader)));
+			} else {
+				throw new RuntimeException("Unknown tag <" + reader.getLocalName() + "> found in <State> tag.");
+			}
+		}
+		return new Transition(trigger, actions, toState, timeoutMillis);
+	}
+
+	/**
+	 * Copy the tag the reader is on, and everything in it, into a DOM element.  Prototypes read their
+	 * configuration from DOM nodes, and <Trigger> and <Action> tags are small.
+	 */
+	private Element readElement(XMLStreamReader reader) throws XMLStreamException {
+		if (document == null) {
+			try {
+				document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+			} catch (ParserConfigurationException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		Element element = document.createElement(reader.getLocalName());
+		for (int i=0; i<reader.getAttributeCount(); ++i) {
+			element.setAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+		}
+		while (true) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.END_ELEMENT) {
+				return element;
+			} else if (event == XMLStreamConstants.START_ELEMENT) {
+				element.appendChild(readElement(reader));
+			} else if ((event == XMLStreamConstants.CHARACTERS) || (event == XMLStreamConstants.CDATA) ||
+					(event == XMLStreamConstants.SPACE)) {
+				element.appendChild(document.createTextNode(reader.getText()));
+			}
+		}
+	}
+
+	/**
+	 * Move the reader from a start tag to its matching end tag.
+	 */
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				++depth;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				--depth;
+			}
+		}
+	}
+
+	private static String requiredAttribute(XMLStreamReader reader, String name) {
+		String value = reader.getAttributeValue(null, name);
+		if (value == null) {
+			throw new RuntimeException("Missing \"" + name + "\" attribute in <" + reader.getLocalName() + "> tag.");
+		}
+		return value;
+	}
+}
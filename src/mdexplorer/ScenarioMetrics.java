@@ -0,0 +1,54 @@
+package mdexplorer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import mdexplorer.Scenario.State;
+
+/**
+ * Reads the counts a scenario's state matchers keep for each transition.  A run's tries in a state are
+ * counted once it leaves the state.
+ */
+class ScenarioMetrics implements ScenarioMetricsMBean {
+
+	private final ScenarioDefinition definition;
+
+	ScenarioMetrics(ScenarioDefinition definition) {
+		this.definition = definition;
+	}
+
+	ScenarioDefinition getDefinition() {
+		return definition;
+	}
+
+	public long getTriggerEvaluations() {
+		long total = 0;
+		for (State state: definition.getStates()) {
+			for (int i=0; i<state.transitions.size(); ++i) {
+				total += state.matcher.getTried(i);
+			}
+		}
+		return total;
+	}
+
+	public long getTriggerMatches() {
+		long total = 0;
+		for (State state: definition.getStates()) {
+			for (int i=0; i<state.transitions.size(); ++i) {
+				total += state.matcher.getFired(i);
+			}
+		}
+		return total;
+	}
+
+	public String[] getTransitions() {
+		List<String> lines = new ArrayList<String>();
+		for (State state: definition.getStates()) {
+			for (int i=0; i<state.transitions.size(); ++i) {
+				lines.add(state.name + " -> " + state.transitions.get(i).toState + ": tried " + state.matcher.getTried(i) +
+						", fired " + state.matcher.getFired(i));
+			}
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+}
@@ -0,0 +1,16 @@
+package mdexplorer;
+
+/**
+ * How often each of a scenario's transitions is tried and taken, across every run, as seen over JMX.
+ */
+public interface ScenarioMetricsMBean {
+
+	long getTriggerEvaluations();
+
+	long getTriggerMatches();
+
+	/**
+	 * @return a line per triggered transition, like "START -> Checking for matches: tried 12, fired 3"
+	 */
+	String[] getTransitions();
+}
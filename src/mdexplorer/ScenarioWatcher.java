@@ -0,0 +1,126 @@
+package mdexplorer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Watches a library's scenario files and reloads each one that changes, on its own thread.  Only files
+ * that are plain files on disk can be watched.  Scenarios in jars are left alone.
+ */
+public class ScenarioWatcher implements Runnable {
+
+	/** Editors often write a file in several steps.  Wait this long for them to finish before reloading. */
+	private static final long SETTLE_MILLIS = 200;
+
+	private final ScenarioLibrary library;
+	private final WatchService watchService;
+
+	/** For each watched directory, the resource each file name in it is. */
+	private final Map<Path, Map<Path, String>> watched = new HashMap<Path, Map<Path, String>>();
+
+	private Thread thread;
+
+	public ScenarioWatcher(ScenarioLibrary library) throws IOException {
+		this.library = library;
+		this.watchService = FileSystems.getDefault().newWatchService();
+		for (String resource: library.getResources()) {
+			Path path = toPath(resource);
+			if (path == null) {
+				System.err.println("Scenario file " + resource + " is not a file on disk.  It won't be reloaded when changed.");
+				continue;
+			}
+			Path dir = path.getParent();
+			if (!watched.containsKey(dir)) {
+				dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+				watched.put(dir, new HashMap<Path, String>());
+			}
+			watched.get(dir).put(path.getFileName(), resource);
+		}
+	}
+
+	/**
+	 * Start watching in the background.
+	 */
+	public synchronized void start() {
+		if (thread == null) {
+			thread = new Thread(this, "Scenario Reload Thread");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stop watching.
+	 */
+	public void stop() {
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				Set<String> changed = new LinkedHashSet<String>();
+				WatchKey key = watchService.take();
+				Thread.sleep(SETTLE_MILLIS);
+				// Collect everything that changed while settling
+				while (key != null) {
+					Map<Path, String> files = watched.get(key.watchable());
+					for (WatchEvent<?> event: key.pollEvents()) {
+						String resource = (files != null ? files.get(event.context()) : null);
+						if (resource != null) {
+							changed.add(resource);
+						}
+					}
+					key.reset();
+					key = watchService.poll();
+				}
+				for (String resource: changed) {
+					try {
+						library.reload(resource);
+						System.out.println("Reloaded scenario file " + resource);
+					} catch (RuntimeException e) {
+						System.err.println("Could not reload scenario file " + resource + ".  Keeping the old scenarios.");
+						e.printStackTrace();
+					}
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			// Stopped
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return the file a class path resource is in, or null if it isn't a plain file
+	 */
+	private static Path toPath(String resource) {
+		URL url = ScenarioWatcher.class.getClassLoader().getResource(resource);
+		if ((url == null) || !url.getProtocol().equals("file")) {
+			return null;
+		}
+		try {
+			return new File(url.toURI()).toPath().toAbsolutePath();
+		} catch (URISyntaxException e) {
+			return null;
+		}
+	}
+}
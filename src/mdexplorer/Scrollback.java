@@ -0,0 +1,121 @@
+package mdexplorer;
+
+/**
+ * The text a session has seen that no transition has used up yet.  Triggers match against all of it, so
+ * patterns spanning several reads or responses still match.  Once a transition fires, the text up to the
+ * end of its match is consumed and never scanned again.  The window is capped; when it would grow past
+ * the cap, the oldest text is dropped.
+ */
+class Scrollback implements CharSequence {
+
+	/** How many characters a session keeps by default. */
+	static final int DEFAULT_LIMIT = 64 * 1024;
+
+	private final int limit;
+	private char[] chars;
+	private int start = 0;
+	private int end = 0;
+
+	/** How many characters have ever been consumed or dropped from the start of the window. */
+	private long position = 0;
+
+	/**
+	 * @param limit the most characters to keep
+	 */
+	Scrollback(int limit) {
+		this.limit = limit;
+		this.chars = new char[Math.min(limit, Session.READ_BUFFER_SIZE)];
+	}
+
+	/**
+	 * Add text to the end of the window, dropping the oldest text if the window is full.
+	 */
+	void append(CharSequence text) {
+		int length = text.length();
+		int from = 0;
+		if (length > limit) {
+			// Only the tail survives
+			from = length - limit;
+			length = limit;
+		}
+		int overflow = (end - start) + length - limit;
+		if (overflow > 0) {
+			start += overflow;
+			position += overflow;
+		}
+		if (end + length > chars.length) {
+			makeRoom(length);
+		}
+		for (int i=0; i<length; ++i) {
+			chars[end++] = text.charAt(from + i);
+		}
+	}
+
+	/**
+	 * Use up text at the start of the window.
+	 * @param count how many characters to use up
+	 */
+	void consume(int count) {
+		int newStart = Math.min(end, start + count);
+		position += newStart - start;
+		start = newStart;
+		if (start == end) {
+			start = 0;
+			end = 0;
+		}
+	}
+
+	void clear() {
+		position += end - start;
+		start = 0;
+		end = 0;
+	}
+
+	/**
+	 * @return where the window starts, counted from the first character ever appended
+	 */
+	long getPosition() {
+		return position;
+	}
+
+	@Override
+	public int length() {
+		return end - start;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if ((index < 0) || (index >= end - start)) {
+			throw new IndexOutOfBoundsException(Integer.toString(index));
+		}
+		return chars[start + index];
+	}
+
+	@Override
+	public CharSequence subSequence(int from, int to) {
+		if ((from < 0) || (to > end - start) || (from > to)) {
+			throw new IndexOutOfBoundsException("from " + from + " to " + to + " of " + (end - start));
+		}
+		return new String(chars, start + from, to - from);
+	}
+
+	@Override
+	public String toString() {
+		return new String(chars, start, end - start);
+	}
+
+	/**
+	 * Shift the window to the front of the buffer, growing the buffer if that isn't enough.
+	 */
+	private void makeRoom(int needed) {
+		int length = end - start;
+		char[] target = chars;
+		if (length + needed > chars.length) {
+			target = new char[Math.min(limit, Math.max(chars.length * 2, length + needed))];
+		}
+		System.arraycopy(chars, start, target, 0, length);
+		chars = target;
+		start = 0;
+		end = length;
+	}
+}
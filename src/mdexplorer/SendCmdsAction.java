@@ -32,7 +32,13 @@ public class SendCmdsAction implements Action {
 	
 	@Override
 	public SendCmdsAction load(Node node) {
-		String commandString = node.getTextContent();
+		return create(node.getTextContent());
+	}
+	
+	/**
+	 * Create an action from the content of its <Action> tag, one command per line.
+	 */
+	static SendCmdsAction create(String commandString) {
 		String[] commandArray = commandString.trim().split("\n");
 		for(int i=0; i<commandArray.length; ++i) {
 			commandArray[i] = commandArray[i].trim();
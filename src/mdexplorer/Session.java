@@ -0,0 +1,160 @@
+package mdexplorer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.FutureTask;
+
+/**
+ * One user's connection to the MUD.  All socket reads and writes happen on the MUD's
+ * selector thread.  Other threads only queue output and ask the selector to flush it.
+ */
+class Session {
+
+	/** Size of the per-session read buffer. */
+	static final int READ_BUFFER_SIZE = 4096;
+
+	final String user;
+	final SocketChannel channel;
+	SelectionKey key;
+
+	/** Reused for every read from the socket. */
+	final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+	/** Inflates what is read while the server is compressing. */
+	final MccpInflater mccp = new MccpInflater();
+
+	/** Strips telnet commands out of what is read. */
+	TelnetDecoder telnet;
+
+	/** Turns the text left after telnet decoding into lines for the listeners. */
+	LineFramer framer;
+
+	/** Cleans up each line before the listeners see it, or null to hand lines over as they are. */
+	TextNormalizer normalizer;
+
+	/**
+	 * When to assume the server is done responding, if it doesn't mark its prompts.
+	 * Zero when nothing is pending.  Only touched on the selector thread.
+	 */
+	long idleResponseDeadline;
+
+	/** Commands waiting for the command limit to let them through. */
+	CommandQueue commands;
+
+	/** Moves commands from the queue to the socket.  Run on the MUD's command scheduler. */
+	Runnable drainCommands;
+
+	/** Where the session's traffic is counted.  Shared by every session the user has. */
+	SessionMetrics metrics;
+
+	/** Whether we have asked the server to disconnect, like with a 'quit' command. */
+	volatile boolean expectingDisconnect;
+
+	/**
+	 * Output waiting to be written, with the futures of any commands in it.
+	 */
+	private static class Write {
+		final ByteBuffer bytes;
+		final List<FutureTask<Void>> sent;
+
+		Write(ByteBuffer bytes, List<FutureTask<Void>> sent) {
+			this.bytes = bytes;
+			this.sent = sent;
+		}
+	}
+
+	private final Deque<Write> pendingWrites = new ArrayDeque<Write>();
+	private boolean closed = false;
+
+	Session(String user, SocketChannel channel) {
+		this.user = user;
+		this.channel = channel;
+	}
+
+	/**
+	 * Queue bytes to be written the next time the selector flushes this session.
+	 */
+	synchronized void queueWrite(ByteBuffer output) {
+		queueWrite(output, null);
+	}
+
+	/**
+	 * Queue bytes to be written the next time the selector flushes this session.
+	 * @param sent futures to complete once all the bytes are written.  May be null.  Cancelled instead if
+	 * the session is already closed.
+	 */
+	synchronized void queueWrite(ByteBuffer output, List<FutureTask<Void>> sent) {
+		if (closed) {
+			// Nothing will ever write it
+			if (sent != null) {
+				for(FutureTask<Void> nextSent: sent) {
+					nextSent.cancel(false);
+				}
+			}
+			return;
+		}
+		pendingWrites.addLast(new Write(output, sent));
+	}
+
+	/**
+	 * Write as much queued output as the socket will take without blocking.
+	 * @return true if all queued output has been written
+	 */
+	synchronized boolean flush() throws IOException {
+		while (!pendingWrites.isEmpty()) {
+			Write next = pendingWrites.peekFirst();
+			channel.write(next.bytes);
+			if (next.bytes.hasRemaining()) {
+				return false;
+			}
+			pendingWrites.removeFirst();
+			if (next.sent != null) {
+				for(FutureTask<Void> nextSent: next.sent) {
+					nextSent.run();
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Close the connection.
+	 * @return true if this call closed the session, false if it was already closed
+	 */
+	synchronized boolean close() {
+		if (closed) {
+			return false;
+		}
+		closed = true;
+		for(Write next: pendingWrites) {
+			if (next.sent != null) {
+				for(FutureTask<Void> nextSent: next.sent) {
+					nextSent.cancel(false);
+				}
+			}
+		}
+		pendingWrites.clear();
+		if (commands != null) {
+			commands.cancelAll();
+		}
+		mccp.end();
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Don't care.  We're closing it out.
+		}
+		return true;
+	}
+
+	synchronized boolean isClosed() {
+		return closed;
+	}
+}
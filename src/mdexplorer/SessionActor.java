@@ -0,0 +1,167 @@
+package mdexplorer;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One user's session run as an actor: the MUD connection, the robot and its scenario, fed by a mailbox.
+ * Messages, the robot's timeouts included, are handled one at a time on a shared executor, so the
+ * session's code never runs on two threads at once and never holds up the MUD's selector thread or the
+ * timer wheel's.  Made by SessionActors.
+ */
+public class SessionActor {
+
+	/** How many messages to handle before giving other actors a turn on the executor. */
+	private static final int MAX_BATCH = 64;
+
+	private final String user;
+	private final MUD mud;
+	private final Robot robot;
+	private final Executor executor;
+	private final SessionActors owner;
+
+	private final Queue<Runnable> mailbox = new ConcurrentLinkedQueue<Runnable>();
+
+	/** Whether a drain is on the executor or waiting to be.  Only one is at a time. */
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	private final Runnable drain = new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+
+	SessionActor(String user, MUD mud, Robot robot, Executor executor, SessionActors owner) {
+		this.user = user;
+		this.mud = mud;
+		this.robot = robot;
+		this.executor = executor;
+		this.owner = owner;
+		robot.setTimeoutExecutor(new Executor() {
+			public void execute(Runnable timeout) {
+				post(timeout);
+			}
+		});
+	}
+
+	public String getUser() {
+		return user;
+	}
+
+	/**
+	 * Wait until the session is disconnected.
+	 */
+	public void awaitDone() throws InterruptedException {
+		done.await();
+	}
+
+	/**
+	 * Wait until the session is disconnected, or for a while.
+	 * @return true if it was disconnected
+	 */
+	public boolean awaitDone(long timeout, TimeUnit unit) throws InterruptedException {
+		return done.await(timeout, unit);
+	}
+
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * Log in and start the scenario.
+	 */
+	void start(final String password, final Scenario scenario) {
+		post(new Runnable() {
+			public void run() {
+				// Start before connecting so none of the MUD's first words are missed
+				robot.start(scenario);
+				try {
+					mud.connect(user, password);
+				} catch (IOException e) {
+					System.err.println("Could not connect " + user + " to the MUD.");
+					e.printStackTrace();
+					notConnected();
+				} catch (RuntimeException e) {
+					System.err.println("Could not connect " + user + " to the MUD.");
+					e.printStackTrace();
+					notConnected();
+				}
+			}
+		});
+	}
+
+	void newText(final String text) {
+		post(new Runnable() {
+			public void run() {
+				robot.newText(user, text);
+			}
+		});
+	}
+
+	void responseComplete() {
+		post(new Runnable() {
+			public void run() {
+				robot.responseComplete(user);
+			}
+		});
+	}
+
+	void disconnected(final boolean expected) {
+		post(new Runnable() {
+			public void run() {
+				robot.disconnected(user, expected);
+				finished();
+			}
+		});
+	}
+
+	/**
+	 * Stop the timeouts the robot armed when it started, since the session they were for never was.
+	 */
+	private void notConnected() {
+		robot.disconnected(user, true);
+		finished();
+	}
+
+	private void finished() {
+		owner.remove(this);
+		done.countDown();
+	}
+
+	/**
+	 * Add a message to the mailbox, and get the actor a turn on the executor if it doesn't have one.
+	 */
+	private void post(Runnable message) {
+		mailbox.add(message);
+		if (scheduled.compareAndSet(false, true)) {
+			executor.execute(drain);
+		}
+	}
+
+	private void drain() {
+		for (int i=0; i<MAX_BATCH; ++i) {
+			Runnable message = mailbox.poll();
+			if (message == null) {
+				break;
+			}
+			try {
+				message.run();
+			} catch (RuntimeException e) {
+				// Log it and keep going.  One bad message shouldn't kill the session.
+				e.printStackTrace();
+			}
+		}
+		scheduled.set(false);
+		// A message may have arrived after the last poll but before the flag was cleared
+		if (!mailbox.isEmpty() && scheduled.compareAndSet(false, true)) {
+			executor.execute(drain);
+		}
+	}
+}
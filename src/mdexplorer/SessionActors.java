@@ -0,0 +1,116 @@
+package mdexplorer;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs sessions as actors.  Listens to the MUD once for every session and posts each event to the
+ * mailbox of the session's actor, so hundreds of sessions don't each walk every event.  Actors run on
+ * virtual threads when the JVM has them (Java 21 and later), and on a pool of daemon threads when not.
+ */
+public class SessionActors implements MUD.Listener {
+
+	private final MUD mud;
+	private final ExecutorService executor;
+
+	/** Every running actor by the name of its user. */
+	private final ConcurrentMap<String, SessionActor> actors = new ConcurrentHashMap<String, SessionActor>();
+
+	public SessionActors(MUD mud) {
+		this(mud, newDefaultExecutor());
+	}
+
+	/**
+	 * @param mud the MUD the sessions are on
+	 * @param executor runs the actors
+	 */
+	public SessionActors(MUD mud, ExecutorService executor) {
+		this.mud = mud;
+		this.executor = executor;
+		mud.listen(this);
+	}
+
+	/**
+	 * Log a user in and run a scenario, without waiting for either.
+	 * @param robot the robot to run the scenario with.  Must not be listening to the MUD itself.
+	 * @return the actor running the session
+	 */
+	public SessionActor start(String user, String password, Robot robot, Scenario scenario) {
+		SessionActor actor = new SessionActor(user, mud, robot, executor, this);
+		if (actors.putIfAbsent(user, actor) != null) {
+			throw new RuntimeException(user + " already has a session running");
+		}
+		actor.start(password, scenario);
+		return actor;
+	}
+
+	void remove(SessionActor actor) {
+		actors.remove(actor.getUser(), actor);
+	}
+
+	/**
+	 * Stop listening and let the executor's threads go.  Running sessions are not disconnected.
+	 */
+	public void shutdown() {
+		mud.stopListening(this);
+		executor.shutdown();
+	}
+
+	@Override
+	public void connected(String user) {
+		// The actor connected it, so already knows
+	}
+
+	@Override
+	public void newText(String user, CharSequence lineOfText) {
+		SessionActor actor = actors.get(user);
+		if (actor != null) {
+			// The line is only good for this call
+			actor.newText(lineOfText.toString());
+		}
+	}
+
+	@Override
+	public void responseComplete(String user) {
+		SessionActor actor = actors.get(user);
+		if (actor != null) {
+			actor.responseComplete();
+		}
+	}
+
+	@Override
+	public void disconnected(String user, boolean expected) {
+		SessionActor actor = actors.get(user);
+		if (actor != null) {
+			actor.disconnected(expected);
+		}
+	}
+
+	/**
+	 * @return an executor that starts a virtual thread per task if the JVM has them, or else a pool of
+	 * daemon threads that grows as blocked actors need more
+	 */
+	public static ExecutorService newDefaultExecutor() {
+		try {
+			// Looked up by name so this still builds and runs on older JVMs
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)factory.invoke(null);
+		} catch (NoSuchMethodException e) {
+			// No virtual threads
+		} catch (Exception e) {
+			System.err.println("Could not create virtual threads.  Using platform threads for sessions.");
+			e.printStackTrace();
+		}
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Session Actor Thread");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+}
@@ -0,0 +1,140 @@
+package mdexplorer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for one user's sessions.  Kept for as long as the MUD is, so a user
+ * who reconnects keeps counting where they left off.
+ */
+class SessionMetrics implements SessionMetricsMBean {
+
+	private static final double NANOS_PER_MILLI = 1000000.0;
+	private static final double NANOS_PER_MICRO = 1000.0;
+
+	final AtomicLong bytesRead = new AtomicLong();
+	final AtomicLong linesDispatched = new AtomicLong();
+	final AtomicLong responsesDispatched = new AtomicLong();
+	final AtomicLong commandsSent = new AtomicLong();
+	final AtomicLong triggerEvaluations = new AtomicLong();
+	final AtomicLong triggerMatches = new AtomicLong();
+
+	/** Nanoseconds each command waited for the command limit. */
+	final Histogram throttleWait = new Histogram();
+
+	/** Nanoseconds each search for a triggered transition took. */
+	final Histogram triggerTime = new Histogram();
+
+	/** Nanoseconds each state was in before the scenario left it. */
+	final Histogram timeInState = new Histogram();
+
+	/** The queue of the user's current session, or null if never connected. */
+	private volatile CommandQueue commands;
+
+	void setCommandQueue(CommandQueue commands) {
+		this.commands = commands;
+	}
+
+	/**
+	 * Add everything this session has counted to a total.
+	 */
+	void addTo(SessionMetrics total) {
+		total.bytesRead.addAndGet(bytesRead.get());
+		total.linesDispatched.addAndGet(linesDispatched.get());
+		total.responsesDispatched.addAndGet(responsesDispatched.get());
+		total.commandsSent.addAndGet(commandsSent.get());
+		total.triggerEvaluations.addAndGet(triggerEvaluations.get());
+		total.triggerMatches.addAndGet(triggerMatches.get());
+		total.throttleWait.add(throttleWait);
+		total.triggerTime.add(triggerTime);
+		total.timeInState.add(timeInState);
+	}
+
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	public long getLinesDispatched() {
+		return linesDispatched.get();
+	}
+
+	public long getResponsesDispatched() {
+		return responsesDispatched.get();
+	}
+
+	public long getCommandsSent() {
+		return commandsSent.get();
+	}
+
+	public int getCommandQueueDepth() {
+		CommandQueue queue = commands;
+		return (queue != null ? queue.size() : 0);
+	}
+
+	public double getThrottleWaitMeanMillis() {
+		return throttleWait.getMean() / NANOS_PER_MILLI;
+	}
+
+	public double getThrottleWaitP99Millis() {
+		return throttleWait.getPercentile(0.99) / NANOS_PER_MILLI;
+	}
+
+	public double getThrottleWaitMaxMillis() {
+		return throttleWait.getMax() / NANOS_PER_MILLI;
+	}
+
+	public long getThrottleWaitTotalNanos() {
+		return throttleWait.getSum();
+	}
+
+	public long[] getThrottleWaitBuckets() {
+		return throttleWait.getCounts();
+	}
+
+	public long getTriggerEvaluations() {
+		return triggerEvaluations.get();
+	}
+
+	public long getTriggerMatches() {
+		return triggerMatches.get();
+	}
+
+	public double getTriggerTimeMeanMicros() {
+		return triggerTime.getMean() / NANOS_PER_MICRO;
+	}
+
+	public double getTriggerTimeP50Micros() {
+		return triggerTime.getPercentile(0.5) / NANOS_PER_MICRO;
+	}
+
+	public double getTriggerTimeP99Micros() {
+		return triggerTime.getPercentile(0.99) / NANOS_PER_MICRO;
+	}
+
+	public double getTriggerTimeMaxMicros() {
+		return triggerTime.getMax() / NANOS_PER_MICRO;
+	}
+
+	public long getTriggerTimeTotalNanos() {
+		return triggerTime.getSum();
+	}
+
+	public long[] getTriggerTimeBuckets() {
+		return triggerTime.getCounts();
+	}
+
+	public long getStatesLeft() {
+		return timeInState.getCount();
+	}
+
+	public double getTimeInStateMeanMillis() {
+		return timeInState.getMean() / NANOS_PER_MILLI;
+	}
+
+	public double getTimeInStateP99Millis() {
+		return timeInState.getPercentile(0.99) / NANOS_PER_MILLI;
+	}
+
+	public double getTimeInStateMaxMillis() {
+		return timeInState.getMax() / NANOS_PER_MILLI;
+	}
+}
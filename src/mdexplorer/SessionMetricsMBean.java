@@ -0,0 +1,67 @@
+package mdexplorer;
+
+/**
+ * What one user's session has been doing, or every session's together, as seen over JMX.
+ * Times are averages, percentiles and maximums since the metrics were created.
+ */
+public interface SessionMetricsMBean {
+
+	/** Bytes read from the socket, before any decompression. */
+	long getBytesRead();
+
+	/** Lines of text handed to the listeners. */
+	long getLinesDispatched();
+
+	/** Completed responses handed to the listeners. */
+	long getResponsesDispatched();
+
+	/** Commands written to the MUD. */
+	long getCommandsSent();
+
+	/** Commands waiting for the command limit right now. */
+	int getCommandQueueDepth();
+
+	double getThrottleWaitMeanMillis();
+
+	double getThrottleWaitP99Millis();
+
+	double getThrottleWaitMaxMillis();
+
+	long getThrottleWaitTotalNanos();
+
+	/**
+	 * How many commands waited how long, for working out percentiles over a stretch of time: bucket 0
+	 * counts commands that didn't wait, and bucket n those that waited from 2^(n-1) up to 2^n - 1
+	 * nanoseconds.
+	 */
+	long[] getThrottleWaitBuckets();
+
+	/** How many triggers have been tried against the MUD's text. */
+	long getTriggerEvaluations();
+
+	/** How many triggers fired. */
+	long getTriggerMatches();
+
+	/** How long it takes to find which transition, if any, some text triggers. */
+	double getTriggerTimeMeanMicros();
+
+	double getTriggerTimeP50Micros();
+
+	double getTriggerTimeP99Micros();
+
+	double getTriggerTimeMaxMicros();
+
+	long getTriggerTimeTotalNanos();
+
+	/** Like getThrottleWaitBuckets(), for how long finding a triggered transition took. */
+	long[] getTriggerTimeBuckets();
+
+	/** How long scenarios stay in a state before moving on. */
+	long getStatesLeft();
+
+	double getTimeInStateMeanMillis();
+
+	double getTimeInStateP99Millis();
+
+	double getTimeInStateMaxMillis();
+}
@@ -0,0 +1,228 @@
+package mdexplorer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Picks which of a state's transitions some input triggers, the way trying each trigger in order would,
+ * but with one pass over the input to rule most of them out.  Every regex trigger with a literal prefix
+ * is only tried if a single literal scan finds that prefix in the input.  Triggers that are nothing but
+ * literal text are decided by the scan alone.  When the input only grows at the end, as a session's
+ * scrollback does, a Progress lets the scan pick up where it left off instead of starting over, and
+ * lets each regex search that found nothing pick up as close to where it left off as the regex allows.
+ * A regex whose matches can span any number of lines still searches all the input each time it is tried,
+ * so at worst a session's whole scrollback.  A regex search that gives up after too many steps isn't tried
+ * again until the run next enters the state.
+ */
+class StateMatcher {
+
+	/** Transitions past this many are always tried.  One bit of a long each. */
+	private static final int MAX_FILTERED = 64;
+
+	private final List<Scenario.Transition> transitions;
+	private final LiteralScanner scanner;
+
+	/** Transitions that have to be tried whatever the scan finds. */
+	private final long alwaysTry;
+
+	/** Transitions that trigger as soon as the scan finds their literal. */
+	private final long decidedByScan;
+
+	/**
+	 * How many times each transition's trigger has been tried, and how many times it fired, by every run.
+	 * Runs count in their Progress and add their counts here when they leave the state, so runs matching
+	 * at once don't fight over these.
+	 */
+	private final AtomicLongArray tried;
+	private final AtomicLongArray fired;
+
+	/**
+	 * How far one run of a scenario has scanned its input against this state, and the run's own regex
+	 * searches.  The state itself is shared by every run.
+	 */
+	static class Progress {
+		/** A search for each regex trigger, made the first time the trigger is tried. */
+		private final RegexTrigger.Search[] searches;
+		/** The literals found so far.  May include some since dropped from the input, which only costs a regex try. */
+		private long found = 0;
+		/** Where the scan stopped, counted from the first character the input ever had. */
+		private long scannedTo = 0;
+		/**
+		 * How far each regex trigger has been searched without a match, and where the input started then,
+		 * both counted from the first character the input ever had.
+		 */
+		private final long[] searchedTo;
+		private final long[] searchedFrom;
+		/** Regex triggers whose search gave up, not to be tried again until the state is entered again. */
+		private final boolean[] gaveUp;
+		/** How many triggers this run has tried.  Read by the run to keep its session's count. */
+		long evaluations = 0;
+		/** How many times this run has tried and fired each transition since its counts were last added up. */
+		private final long[] tried;
+		private final long[] fired;
+
+		private Progress(int numTransitions) {
+			searches = new RegexTrigger.Search[numTransitions];
+			searchedTo = new long[numTransitions];
+			searchedFrom = new long[numTransitions];
+			gaveUp = new boolean[numTransitions];
+			tried = new long[numTransitions];
+			fired = new long[numTransitions];
+		}
+
+		/**
+		 * Forget the scan so far, for new input or a new state.
+		 */
+		void reset() {
+			found = 0;
+			scannedTo = 0;
+			Arrays.fill(searchedTo, 0);
+			Arrays.fill(searchedFrom, 0);
+			Arrays.fill(gaveUp, false);
+		}
+	}
+
+	StateMatcher(List<Scenario.Transition> transitions) {
+		this.transitions = transitions;
+		List<String> literals = new ArrayList<String>();
+		List<Long> bits = new ArrayList<Long>();
+		long always = 0;
+		long decided = 0;
+		for (int i=0; (i<transitions.size()) && (i<MAX_FILTERED); ++i) {
+			long bit = 1L << i;
+			Trigger trigger = transitions.get(i).trigger;
+			String prefix = (trigger instanceof RegexTrigger ? ((RegexTrigger)trigger).getLiteralPrefix() : "");
+			if (prefix.isEmpty()) {
+				always |= bit;
+			} else {
+				literals.add(prefix);
+				bits.add(bit);
+				if (((RegexTrigger)trigger).isLiteral()) {
+					decided |= bit;
+				}
+			}
+		}
+		this.scanner = new LiteralScanner(literals, bits);
+		this.alwaysTry = always;
+		this.decidedByScan = decided;
+		this.tried = new AtomicLongArray(transitions.size());
+		this.fired = new AtomicLongArray(transitions.size());
+	}
+
+	long getTried(int transition) {
+		return tried.get(transition);
+	}
+
+	long getFired(int transition) {
+		return fired.get(transition);
+	}
+
+	/**
+	 * @return a new scan for a run entering this state
+	 */
+	Progress newProgress() {
+		return new Progress(transitions.size());
+	}
+
+	/**
+	 * Add what a run counted to the totals for every run, and start its counts again.
+	 */
+	void addCounts(Progress progress) {
+		for (int i=0; i<transitions.size(); ++i) {
+			if (progress.tried[i] != 0) {
+				tried.addAndGet(i, progress.tried[i]);
+				progress.tried[i] = 0;
+			}
+			if (progress.fired[i] != 0) {
+				fired.addAndGet(i, progress.fired[i]);
+				progress.fired[i] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Find the first transition triggered by some input.
+	 * @param input the text from the MUD
+	 * @param inputStart where the input starts, counted from the first character the input ever had
+	 * @param progress the scan so far.  Only input it hasn't covered is scanned, then it is updated to
+	 * cover all of it.
+	 * @param vars where triggers put values pulled out of the input
+	 * @param matchEnd where to put how much of the input the trigger used up.  Regex triggers use up
+	 * the input through the end of their match.  Other triggers use up all of it.
+	 * @return the index of the transition, or -1 if none is triggered
+	 */
+	int match(CharSequence input, long inputStart, Progress progress, Map<String, Object> vars, int[] matchEnd) {
+		int from = (int)Math.max(0, Math.min(input.length(), progress.scannedTo - inputStart));
+		progress.found |= scanner.scan(input, from);
+		progress.scannedTo = inputStart + input.length();
+		long candidates = alwaysTry | progress.found;
+		for (int i=0; i<transitions.size(); ++i) {
+			if (((i < MAX_FILTERED) && ((candidates & (1L << i)) == 0)) || progress.gaveUp[i]) {
+				continue;
+			}
+			Trigger trigger = transitions.get(i).trigger;
+			++progress.evaluations;
+			++progress.tried[i];
+			if ((i < MAX_FILTERED) && ((decidedByScan & (1L << i)) != 0)) {
+				String literal = ((RegexTrigger)trigger).getLiteralPrefix();
+				int start = indexOf(input, literal);
+				if (start >= 0) {
+					matchEnd[0] = start + literal.length();
+					++progress.fired[i];
+					return i;
+				}
+				// Only seen in input since dropped
+				progress.found &= ~(1L << i);
+				continue;
+			}
+			if (trigger instanceof RegexTrigger) {
+				RegexTrigger regexTrigger = (RegexTrigger)trigger;
+				if (progress.searches[i] == null) {
+					progress.searches[i] = regexTrigger.newSearch();
+				}
+				int searchFrom = 0;
+				if (progress.searchedTo[i] > inputStart) {
+					searchFrom = regexTrigger.resumeFrom(input, (int)Math.min(input.length(), progress.searchedTo[i] - inputStart),
+							progress.searchedFrom[i] == inputStart);
+				}
+				int end = progress.searches[i].find(input, searchFrom, vars);
+				if (end >= 0) {
+					matchEnd[0] = end;
+					++progress.fired[i];
+					return i;
+				}
+				if (progress.searches[i].gaveUp()) {
+					// It would only give up again on the same text and more
+					progress.gaveUp[i] = true;
+				}
+				progress.searchedTo[i] = inputStart + input.length();
+				progress.searchedFrom[i] = inputStart;
+			} else if ((trigger == null) || trigger.triggeredBy(input, vars)) {
+				matchEnd[0] = input.length();
+				++progress.fired[i];
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return where some literal text first appears in the input, or -1 if it doesn't
+	 */
+	private static int indexOf(CharSequence input, String literal) {
+		int last = input.length() - literal.length();
+		for (int i=0; i<=last; ++i) {
+			int j = 0;
+			while ((j < literal.length()) && (input.charAt(i + j) == literal.charAt(j))) {
+				++j;
+			}
+			if (j == literal.length()) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
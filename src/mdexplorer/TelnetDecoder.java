@@ -0,0 +1,198 @@
+package mdexplorer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Strips telnet commands out of the bytes read from a MUD session.  Option negotiation is answered
+ * (we only ask for END-OF-RECORD and, if allowed, MCCP2 compression), and the GO-AHEAD and END-OF-RECORD
+ * markers servers send after a prompt are reported as the end of a response.
+ */
+class TelnetDecoder {
+
+	/**
+	 * Receives what the decoder finds in the stream.
+	 */
+	interface Handler {
+
+		/**
+		 * Text bytes are ready.
+		 * @param text bytes ready to be read.  Any left unread are kept and handed over again with the next text.
+		 */
+		void text(ByteBuffer text);
+
+		/**
+		 * The server marked the end of a response with GO-AHEAD or END-OF-RECORD.
+		 */
+		void endOfResponse();
+
+		/**
+		 * A telnet command needs to go back to the server.
+		 */
+		void send(byte[] command);
+
+		/**
+		 * The server started MCCP2 compression.  Every byte after the ones already decoded is compressed.
+		 */
+		void compressionStarted();
+	}
+
+	static final byte IAC = (byte)255;
+	static final byte DONT = (byte)254;
+	static final byte DO = (byte)253;
+	static final byte WONT = (byte)252;
+	static final byte WILL = (byte)251;
+	static final byte SB = (byte)250;
+	static final byte GA = (byte)249;
+	static final byte SE = (byte)240;
+	static final byte EOR = (byte)239;
+
+	static final int OPTION_EOR = 25;
+
+	// Decoder states
+	private static final int DATA = 0;
+	private static final int COMMAND = 1;
+	private static final int OPTION = 2;
+	private static final int SUBNEGOTIATION = 3;
+	private static final int SUBNEGOTIATION_IAC = 4;
+
+	// Option states, so we never answer the same request twice and start a negotiation loop.
+	// Zero means the option hasn't been negotiated.
+	private static final byte ENABLED = 1;
+	private static final byte DISABLED = 2;
+
+	private final Handler handler;
+	private final ByteBuffer text = ByteBuffer.allocate(Session.READ_BUFFER_SIZE);
+	private final byte[] remoteOptions = new byte[256];
+	private final byte[] localOptions = new byte[256];
+
+	private final boolean acceptCompression;
+
+	private int state = DATA;
+	private byte verb;
+	private int subnegotiationOption = -1;
+	private boolean markingPrompts = false;
+
+	/**
+	 * @param handler receives what is decoded
+	 * @param acceptCompression whether to agree if the server offers MCCP2 compression
+	 */
+	TelnetDecoder(Handler handler, boolean acceptCompression) {
+		this.handler = handler;
+		this.acceptCompression = acceptCompression;
+	}
+
+	/**
+	 * Whether the server has marked the end of any response yet.  If not, the caller
+	 * has to guess where responses end.
+	 */
+	boolean isMarkingPrompts() {
+		return markingPrompts;
+	}
+
+	/**
+	 * Decode everything in the buffer.  Commands split across reads are remembered.  If the server starts
+	 * compression, decoding stops and the compressed bytes that follow are left in the buffer.
+	 * @param raw bytes read from the server, ready to be read
+	 */
+	void decode(ByteBuffer raw) {
+		while (raw.hasRemaining()) {
+			byte next = raw.get();
+			switch (state) {
+			case DATA:
+				if (next == IAC) {
+					state = COMMAND;
+				} else {
+					put(next);
+				}
+				break;
+			case COMMAND:
+				state = DATA;
+				if (next == IAC) {
+					// An escaped 255 data byte
+					put(next);
+				} else if ((next == GA) || (next == EOR)) {
+					markingPrompts = true;
+					deliverText();
+					handler.endOfResponse();
+				} else if ((next == WILL) || (next == WONT) || (next == DO) || (next == DONT)) {
+					verb = next;
+					state = OPTION;
+				} else if (next == SB) {
+					state = SUBNEGOTIATION;
+					subnegotiationOption = -1;
+				}
+				// Anything else (NOP, AYT, ...) means nothing to us
+				break;
+			case OPTION:
+				state = DATA;
+				negotiate(verb, next & 0xFF);
+				break;
+			case SUBNEGOTIATION:
+				if (next == IAC) {
+					state = SUBNEGOTIATION_IAC;
+				} else if (subnegotiationOption < 0) {
+					subnegotiationOption = next & 0xFF;
+				}
+				break;
+			case SUBNEGOTIATION_IAC:
+				if (next != SE) {
+					state = SUBNEGOTIATION;
+				} else {
+					state = DATA;
+					if ((subnegotiationOption == MccpInflater.OPTION_MCCP2) &&
+							(remoteOptions[MccpInflater.OPTION_MCCP2] == ENABLED)) {
+						deliverText();
+						handler.compressionStarted();
+						return;
+					}
+				}
+				break;
+			}
+		}
+		deliverText();
+	}
+
+	private void put(byte next) {
+		if (!text.hasRemaining()) {
+			deliverText();
+		}
+		text.put(next);
+	}
+
+	private void deliverText() {
+		if (text.position() > 0) {
+			text.flip();
+			handler.text(text);
+			text.compact();
+		}
+	}
+
+	/**
+	 * Answer an option request.  We accept END-OF-RECORD and maybe MCCP2 from the server and refuse everything else.
+	 */
+	private void negotiate(byte request, int option) {
+		if (request == WILL) {
+			byte wanted = (isSupportedRemotely(option) ? ENABLED : DISABLED);
+			if (remoteOptions[option] != wanted) {
+				remoteOptions[option] = wanted;
+				handler.send(new byte[] {IAC, (wanted == ENABLED ? DO : DONT), (byte)option});
+			}
+		} else if (request == WONT) {
+			if (remoteOptions[option] == ENABLED) {
+				handler.send(new byte[] {IAC, DONT, (byte)option});
+			}
+			remoteOptions[option] = DISABLED;
+		} else if (request == DO) {
+			if (localOptions[option] != DISABLED) {
+				localOptions[option] = DISABLED;
+				handler.send(new byte[] {IAC, WONT, (byte)option});
+			}
+		} else if (request == DONT) {
+			localOptions[option] = DISABLED;
+		}
+	}
+
+	private boolean isSupportedRemotely(int option) {
+		return (option == OPTION_EOR) || (acceptCompression && (option == MccpInflater.OPTION_MCCP2));
+	}
+}
@@ -0,0 +1,143 @@
+package mdexplorer;
+
+import java.util.Set;
+
+/**
+ * Cleans up lines of MUD output so triggers don't have to work around them.  Strips ANSI escape
+ * sequences, drops carriage returns and other control characters, and can collapse runs of white space,
+ * all in one pass into one reusable buffer, so nothing is allocated per line.  One per session, since an
+ * escape sequence a prompt was cut off in the middle of carries on into the next line.
+ */
+class TextNormalizer {
+
+	private static final char ESC = 0x1b;
+	private static final char BEL = 0x07;
+	/** The one character form of ESC [. */
+	private static final char CSI = 0x9b;
+
+	// Where we are in an escape sequence
+	private static final int TEXT = 0;
+	/** Just after ESC. */
+	private static final int ESCAPE = 1;
+	/** In a control sequence, ESC [ then parameters up to a final letter, like the colour codes. */
+	private static final int CONTROL = 2;
+	/** In a string, like a window title, that ends with BEL or ESC \. */
+	private static final int STRING = 3;
+	/** Just after an ESC in a string. */
+	private static final int STRING_ESCAPE = 4;
+	/** The character isn't part of the sequence after all.  The sequence ends before it. */
+	private static final int NOT_ESCAPE = -1;
+
+	private final boolean stripAnsi;
+	private final boolean lineEndings;
+	private final boolean controlCharacters;
+	private final boolean collapseWhiteSpace;
+
+	private final NormalizedLine line = new NormalizedLine();
+
+	/** The cleaned up text of the latest line. */
+	private char[] chars = new char[256];
+
+	private int state = TEXT;
+
+	TextNormalizer(Set<MUD.Normalization> normalization) {
+		stripAnsi = normalization.contains(MUD.Normalization.STRIP_ANSI);
+		lineEndings = normalization.contains(MUD.Normalization.LINE_ENDINGS);
+		controlCharacters = normalization.contains(MUD.Normalization.CONTROL_CHARACTERS);
+		collapseWhiteSpace = normalization.contains(MUD.Normalization.COLLAPSE_WHITE_SPACE);
+	}
+
+	/**
+	 * @param raw a line from the LineFramer
+	 * @return the line cleaned up, with raw() giving the line passed in.  Overwritten by the next call.
+	 */
+	NormalizedLine normalize(CharSequence raw) {
+		int length = raw.length();
+		if (chars.length < length) {
+			chars = new char[Math.max(length, chars.length * 2)];
+		}
+		int size = 0;
+		for (int i=0; i<length; ++i) {
+			char c = raw.charAt(i);
+			if (state != TEXT) {
+				state = escape(state, c);
+				if (state != NOT_ESCAPE) {
+					continue;
+				}
+				state = TEXT;
+			}
+			if (stripAnsi && ((c == ESC) || (c == CSI))) {
+				state = (c == ESC ? ESCAPE : CONTROL);
+			} else if (c == '\r') {
+				if (!lineEndings && !controlCharacters) {
+					chars[size++] = c;
+				}
+			} else if (collapseWhiteSpace && ((c == ' ') || (c == '\t'))) {
+				if ((size == 0) || (chars[size - 1] != ' ')) {
+					chars[size++] = ' ';
+				}
+			} else if (c == '\n') {
+				if (collapseWhiteSpace) {
+					while ((size > 0) && (chars[size - 1] == ' ')) {
+						--size;
+					}
+				}
+				chars[size++] = c;
+			} else if (!controlCharacters || !isControl(c)) {
+				chars[size++] = c;
+			}
+		}
+		line.set(chars, size, raw);
+		return line;
+	}
+
+	/**
+	 * @return the state after reading a character in an escape sequence.  TEXT if it ended the sequence,
+	 * NOT_ESCAPE if it ended the sequence without being part of it.
+	 */
+	private static int escape(int state, char c) {
+		switch (state) {
+		case ESCAPE:
+			if (c == '[') {
+				return CONTROL;
+			} else if ((c == ']') || (c == 'P') || (c == 'X') || (c == '^') || (c == '_')) {
+				return STRING;
+			} else if ((c >= 0x20) && (c <= 0x2f)) {
+				// Intermediate characters, like the ( in ESC ( B
+				return ESCAPE;
+			} else if ((c >= 0x30) && (c <= 0x7e)) {
+				return TEXT;
+			}
+			return NOT_ESCAPE;
+		case CONTROL:
+			if ((c >= 0x20) && (c <= 0x3f)) {
+				// Parameters and intermediate characters, like the 1;31 in ESC [ 1 ; 3 1 m
+				return CONTROL;
+			} else if ((c >= 0x40) && (c <= 0x7e)) {
+				return TEXT;
+			}
+			return NOT_ESCAPE;
+		case STRING:
+			if (c == BEL) {
+				return TEXT;
+			} else if (c == ESC) {
+				return STRING_ESCAPE;
+			} else if (c == '\n') {
+				// Unterminated.  Don't let it swallow the rest of the session.
+				return NOT_ESCAPE;
+			}
+			return STRING;
+		case STRING_ESCAPE:
+			return (c == '\\' ? TEXT : escape(ESCAPE, c));
+		default:
+			return NOT_ESCAPE;
+		}
+	}
+
+	/**
+	 * @return true for control characters other than newline and tab
+	 */
+	private static boolean isControl(char c) {
+		return ((c < 0x20) && (c != '\n') && (c != '\t')) || ((c >= 0x7f) && (c <= 0x9f));
+	}
+}
@@ -0,0 +1,184 @@
+package mdexplorer;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Runs tasks after a delay, for any number of sessions on one thread.  A hashed timer wheel: time is cut
+ * into ticks, and each timeout goes in the slot for the tick it is due, with a count of how many more
+ * turns of the wheel to wait.  Scheduling and cancelling are O(1) and don't take a lock, so arming a
+ * timeout every time a state is entered is cheap.  Timeouts fire up to one tick late.  Tasks run on
+ * the wheel's thread, so they must be quick.
+ */
+class TimerWheel {
+
+	/** A scheduled task. */
+	static class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private volatile boolean cancelled = false;
+
+		/** Turns of the wheel left before it is due.  Only touched by the wheel's thread. */
+		private long rounds;
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Make sure the task doesn't run.  Does nothing if it already has.
+		 */
+		void cancel() {
+			cancelled = true;
+		}
+	}
+
+	/** The timeouts in one slot of the wheel, as a doubly linked list so any can be unlinked. */
+	private static class Slot {
+		private Timeout head;
+
+		void add(Timeout timeout) {
+			timeout.next = head;
+			if (head != null) {
+				head.prev = timeout;
+			}
+			head = timeout;
+		}
+
+		void remove(Timeout timeout) {
+			if (timeout.prev != null) {
+				timeout.prev.next = timeout.next;
+			} else {
+				head = timeout.next;
+			}
+			if (timeout.next != null) {
+				timeout.next.prev = timeout.prev;
+			}
+			timeout.prev = null;
+			timeout.next = null;
+		}
+	}
+
+	private final String threadName;
+	private final long tickMillis;
+	private final Slot[] wheel;
+	private final int mask;
+
+	/** Timeouts scheduled since the last tick.  The wheel's thread puts them in their slots. */
+	private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+
+	private Thread thread;
+	private long startTime;
+	private volatile boolean stopped = false;
+
+	/**
+	 * @param threadName what to call the wheel's thread
+	 * @param tickMillis how often the wheel moves on a slot.  The most a timeout fires late.
+	 * @param slots how many slots the wheel has.  Rounded up to a power of two.
+	 */
+	TimerWheel(String threadName, long tickMillis, int slots) {
+		this.threadName = threadName;
+		this.tickMillis = tickMillis;
+		int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+		this.wheel = new Slot[size];
+		for (int i=0; i<size; ++i) {
+			wheel[i] = new Slot();
+		}
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Run a task after a delay.
+	 * @return the timeout, to cancel it with
+	 */
+	Timeout schedule(Runnable task, long delayMillis) {
+		start();
+		Timeout timeout = new Timeout(task, System.currentTimeMillis() + Math.max(0, delayMillis));
+		scheduled.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stop the wheel's thread.  Tasks not yet run never will be.
+	 */
+	synchronized void stop() {
+		stopped = true;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	private synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		startTime = System.currentTimeMillis();
+		thread = new Thread(new Runnable() {
+			public void run() {
+				turn();
+			}
+		}, threadName);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void turn() {
+		long tick = 0;
+		while (!stopped) {
+			long sleep = startTime + (tick + 1) * tickMillis - System.currentTimeMillis();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			++tick;
+			addScheduled(tick);
+			expire(wheel[(int)(tick & mask)]);
+		}
+	}
+
+	/**
+	 * Put the timeouts scheduled since the last tick in their slots.
+	 */
+	private void addScheduled(long tick) {
+		Timeout timeout;
+		while ((timeout = scheduled.poll()) != null) {
+			if (timeout.cancelled) {
+				continue;
+			}
+			// The tick it is due, rounded up, and never one already past
+			long due = Math.max(tick, (timeout.deadline - startTime + tickMillis - 1) / tickMillis);
+			timeout.rounds = (due - tick) / wheel.length;
+			wheel[(int)(due & mask)].add(timeout);
+		}
+	}
+
+	/**
+	 * Run the timeouts in a slot that are due this turn, and drop the cancelled ones.
+	 */
+	private void expire(Slot slot) {
+		Timeout timeout = slot.head;
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.cancelled) {
+				slot.remove(timeout);
+			} else if (timeout.rounds <= 0) {
+				slot.remove(timeout);
+				try {
+					timeout.task.run();
+				} catch (RuntimeException e) {
+					System.err.println("Timeout task failed.");
+					e.printStackTrace();
+				}
+			} else {
+				--timeout.rounds;
+			}
+			timeout = next;
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package mdexplorer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Prints the transcripts TranscriptRecorder writes.
+ * <p>
+ * Usage: TranscriptReader [-since "yyyy-MM-dd HH:mm:ss"] segmentFile...
+ * With -since, each segment's time index is used to skip to about that time.
+ */
+public class TranscriptReader {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static void main(String[] args) throws IOException {
+		long since = 0;
+		List<String> files = new ArrayList<String>(Arrays.asList(args));
+		if ((files.size() >= 2) && files.get(0).equals("-since")) {
+			try {
+				since = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(files.get(1)).getTime();
+			} catch (ParseException e) {
+				System.err.println("Could not read time " + files.get(1));
+				System.exit(1);
+			}
+			files = files.subList(2, files.size());
+		}
+		if (files.isEmpty()) {
+			System.err.println("Usage: TranscriptReader [-since \"yyyy-MM-dd HH:mm:ss\"] segmentFile...");
+			System.exit(1);
+		}
+		for (String file: files) {
+			print(new File(file), since, System.out);
+		}
+	}
+
+	/** One record of a transcript. */
+	public static class Entry {
+		public final long time;
+		/** One of the kinds in TranscriptRecorder. */
+		public final byte kind;
+		public final String text;
+
+		Entry(long time, byte kind, String text) {
+			this.time = time;
+			this.kind = kind;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * Print the records in a segment from a time on.
+	 * @param since the earliest time to print, or 0 for everything
+	 */
+	public static void print(File file, long since, PrintStream out) throws IOException {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		for (Entry entry: read(file, since)) {
+			String stamp = format.format(new Date(entry.time));
+			switch (entry.kind) {
+			case TranscriptRecorder.CONNECTED:
+				out.println(stamp + " * connected " + entry.text);
+				break;
+			case TranscriptRecorder.TEXT:
+				// Lines keep the newline they came with
+				out.print(stamp + " < " + entry.text);
+				if (!entry.text.endsWith("\n")) {
+					out.println();
+				}
+				break;
+			case TranscriptRecorder.RESPONSE_COMPLETE:
+				out.println(stamp + " ---");
+				break;
+			case TranscriptRecorder.COMMAND:
+				out.println(stamp + " > " + entry.text);
+				break;
+			case TranscriptRecorder.DISCONNECTED:
+				out.println(stamp + " * disconnected, " + entry.text);
+				break;
+			default:
+				out.println(stamp + " ? " + entry.text);
+			}
+		}
+	}
+
+	/**
+	 * Read whole sessions from their segments, given in any order.  The segments of a session have the same
+	 * file name but for the segment number at the end, and are joined in number order.
+	 * @return the records of each session, in the order its first segment was given
+	 */
+	public static List<List<Entry>> readSessions(List<File> segments) throws IOException {
+		Map<String, SortedMap<Integer, File>> sessions = new LinkedHashMap<String, SortedMap<Integer, File>>();
+		for (File file: segments) {
+			String name = file.getAbsolutePath();
+			String base = name;
+			int number = 0;
+			int dash = name.lastIndexOf('-');
+			if (name.endsWith(TranscriptRecorder.EXTENSION) && (dash >= 0)) {
+				try {
+					number = Integer.parseInt(name.substring(dash + 1, name.length() - TranscriptRecorder.EXTENSION.length()));
+					base = name.substring(0, dash);
+				} catch (NumberFormatException e) {
+					// Not named like a segment.  A session of its own.
+				}
+			}
+			SortedMap<Integer, File> session = sessions.get(base);
+			if (session == null) {
+				session = new TreeMap<Integer, File>();
+				sessions.put(base, session);
+			}
+			session.put(number, file);
+		}
+		List<List<Entry>> read = new ArrayList<List<Entry>>();
+		for (SortedMap<Integer, File> session: sessions.values()) {
+			List<Entry> entries = new ArrayList<Entry>();
+			for (File file: session.values()) {
+				entries.addAll(read(file, 0));
+			}
+			if (!entries.isEmpty()) {
+				read.add(entries);
+			}
+		}
+		return read;
+	}
+
+	/**
+	 * Read the records in a segment from a time on.
+	 * @param since the earliest time to read, or 0 for everything
+	 * @return the records, or none if the file isn't a transcript this version can read
+	 */
+	public static List<Entry> read(File file, long since) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		ByteBuffer segment;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		if ((segment.capacity() < TranscriptRecorder.RECORDS_OFFSET) || (segment.getInt(0) != TranscriptRecorder.MAGIC)) {
+			System.err.println(file + " is not a transcript.");
+			return entries;
+		}
+		if (segment.getInt(4) != TranscriptRecorder.VERSION) {
+			System.err.println(file + " was recorded by another version.");
+			return entries;
+		}
+		int position = seek(segment, since);
+		while (position + TranscriptRecorder.RECORD_HEADER_LENGTH <= segment.capacity()) {
+			byte kind = segment.get(position + 8);
+			if (kind == TranscriptRecorder.END) {
+				break;
+			}
+			long time = segment.getLong(position);
+			int length = segment.getInt(position + 9);
+			byte[] bytes = new byte[length];
+			segment.position(position + TranscriptRecorder.RECORD_HEADER_LENGTH);
+			segment.get(bytes);
+			position += TranscriptRecorder.RECORD_HEADER_LENGTH + length;
+			if (time >= since) {
+				entries.add(new Entry(time, kind, new String(bytes, UTF8)));
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * @return where the last indexed record from before a time starts, or where the records start
+	 */
+	static int seek(ByteBuffer segment, long since) {
+		int low = 0;
+		int high = segment.getInt(TranscriptRecorder.INDEX_COUNT_OFFSET) - 1;
+		int position = TranscriptRecorder.RECORDS_OFFSET;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int entry = TranscriptRecorder.INDEX_OFFSET + middle * TranscriptRecorder.INDEX_ENTRY_LENGTH;
+			if (segment.getLong(entry) < since) {
+				position = segment.getInt(entry + 8);
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return position;
+	}
+}
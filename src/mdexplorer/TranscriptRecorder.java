@@ -0,0 +1,239 @@
+package mdexplorer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records everything each session sees and sends, with the time, for debugging scenarios.  Each session
+ * gets its own files, so sessions don't get mixed up.  A file is a fixed size segment, memory mapped, so
+ * recording a line is a copy into memory on the thread that read it.  When a segment fills up the
+ * session goes on in the next one.
+ * <p>
+ * A segment is big endian:
+ * <pre>
+ * int magic, int version, long sessionStart, int segmentNumber, int indexCount,
+ * INDEX_SLOTS index entries of long time, int offset
+ * then records: long time, byte kind, int byteCount, that many bytes of UTF-8
+ * </pre>
+ * A zero kind marks the end.  An index entry is added each time another 1/INDEX_SLOTS of the segment
+ * fills up, giving the time and offset of the record that starts there, so TranscriptReader can jump
+ * close to a time without reading the whole segment.
+ */
+public class TranscriptRecorder implements MUD.Listener, MUD.CommandListener {
+
+	static final int MAGIC = 0x4D445854; // "MDXT"
+	static final int VERSION = 1;
+
+	static final byte END = 0;
+	/** The session logged in.  The text is the user. */
+	public static final byte CONNECTED = 1;
+	/** A line from the MUD. */
+	public static final byte TEXT = 2;
+	/** The MUD finished responding.  No text. */
+	public static final byte RESPONSE_COMPLETE = 3;
+	/** A command sent to the MUD. */
+	public static final byte COMMAND = 4;
+	/** The session ended.  The text says whether that was expected. */
+	public static final byte DISCONNECTED = 5;
+
+	static final int INDEX_SLOTS = 256;
+	static final int INDEX_COUNT_OFFSET = 20;
+	static final int INDEX_OFFSET = 24;
+	static final int INDEX_ENTRY_LENGTH = 12;
+	static final int RECORDS_OFFSET = INDEX_OFFSET + INDEX_SLOTS * INDEX_ENTRY_LENGTH;
+	static final int RECORD_HEADER_LENGTH = 13;
+	/** Room for the kind of the record after the last, which marks the end. */
+	static final int END_MARK_LENGTH = 9;
+
+	static final String EXTENSION = ".transcript";
+
+	/** How big segments are by default. */
+	public static final int DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+
+	/** One session's transcript.  Text and commands for a session come from different threads. */
+	private static class Transcript {
+		final File directory;
+		final String baseName;
+		final long sessionStart;
+		final int segmentBytes;
+		int segmentNumber = 0;
+		MappedByteBuffer segment;
+		int indexCount;
+
+		Transcript(File directory, String baseName, long sessionStart, int segmentBytes) {
+			this.directory = directory;
+			this.baseName = baseName;
+			this.sessionStart = sessionStart;
+			this.segmentBytes = segmentBytes;
+		}
+
+		synchronized void record(long time, byte kind, CharSequence text) {
+			int length = (text != null ? text.length() : 0);
+			// At worst three bytes a character.  Whatever can't fit in a whole segment is cut off.
+			int room = segmentBytes - RECORDS_OFFSET - RECORD_HEADER_LENGTH - END_MARK_LENGTH;
+			if (length * 3 > room) {
+				length = room / 3;
+			}
+			if ((segment == null) || (segment.remaining() < RECORD_HEADER_LENGTH + length * 3 + END_MARK_LENGTH)) {
+				nextSegment();
+			}
+			int start = segment.position();
+			if (start >= RECORDS_OFFSET + (long)indexCount * (segmentBytes - RECORDS_OFFSET) / INDEX_SLOTS) {
+				int entry = INDEX_OFFSET + indexCount * INDEX_ENTRY_LENGTH;
+				segment.putLong(entry, time);
+				segment.putInt(entry + 8, start);
+				segment.putInt(INDEX_COUNT_OFFSET, ++indexCount);
+			}
+			segment.position(start + RECORD_HEADER_LENGTH);
+			for (int i=0; i<length; ++i) {
+				char c = text.charAt(i);
+				if (c < 0x80) {
+					segment.put((byte)c);
+				} else if (c < 0x800) {
+					segment.put((byte)(0xC0 | (c >> 6)));
+					segment.put((byte)(0x80 | (c & 0x3F)));
+				} else if (Character.isHighSurrogate(c) && (i + 1 < length) && Character.isLowSurrogate(text.charAt(i + 1))) {
+					int codePoint = Character.toCodePoint(c, text.charAt(++i));
+					segment.put((byte)(0xF0 | (codePoint >> 18)));
+					segment.put((byte)(0x80 | ((codePoint >> 12) & 0x3F)));
+					segment.put((byte)(0x80 | ((codePoint >> 6) & 0x3F)));
+					segment.put((byte)(0x80 | (codePoint & 0x3F)));
+				} else {
+					segment.put((byte)(0xE0 | (c >> 12)));
+					segment.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+					segment.put((byte)(0x80 | (c & 0x3F)));
+				}
+			}
+			int end = segment.position();
+			segment.put(end + 8, END);
+			segment.putLong(start, time);
+			segment.putInt(start + 9, end - start - RECORD_HEADER_LENGTH);
+			// The kind goes in last, so a record only shows up once it is all there
+			segment.put(start + 8, kind);
+		}
+
+		private void nextSegment() {
+			File file = new File(directory, baseName + "-" + segmentNumber + EXTENSION);
+			try {
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					raf.setLength(segmentBytes);
+					// The mapping stays good after the file is closed
+					segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+				} finally {
+					raf.close();
+				}
+			} catch (IOException e) {
+				throw new RuntimeException("Could not create transcript segment " + file, e);
+			}
+			segment.putInt(0, MAGIC);
+			segment.putInt(4, VERSION);
+			segment.putLong(8, sessionStart);
+			segment.putInt(16, segmentNumber);
+			segment.putInt(INDEX_COUNT_OFFSET, 0);
+			segment.put(RECORDS_OFFSET + 8, END);
+			segment.position(RECORDS_OFFSET);
+			indexCount = 0;
+			++segmentNumber;
+		}
+	}
+
+	private final File directory;
+	private final int segmentBytes;
+
+	/** The transcript of each connected user's session. */
+	private final Map<String, Transcript> transcripts = new ConcurrentHashMap<String, Transcript>();
+
+	/**
+	 * @param directory where to put the transcripts.  Made if it doesn't exist.
+	 * @param segmentBytes how big each segment file is
+	 */
+	public TranscriptRecorder(File directory, int segmentBytes) {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new RuntimeException("Could not create transcript directory " + directory);
+		}
+		this.directory = directory;
+		this.segmentBytes = Math.max(segmentBytes, RECORDS_OFFSET + RECORD_HEADER_LENGTH + 1024);
+	}
+
+	/**
+	 * Start recording every session on a MUD.
+	 */
+	public void record(MUD mud) {
+		mud.listen(this);
+		mud.listenToCommands(this);
+	}
+
+	/**
+	 * Stop recording sessions on a MUD.  Sessions already recorded keep their files.
+	 */
+	public void stop(MUD mud) {
+		mud.stopListening(this);
+		mud.stopListeningToCommands(this);
+		transcripts.clear();
+	}
+
+	@Override
+	public void connected(String user) {
+		long now = System.currentTimeMillis();
+		String baseName = fileName(user) + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date(now));
+		Transcript transcript = new Transcript(directory, baseName, now, segmentBytes);
+		transcripts.put(user, transcript);
+		transcript.record(now, CONNECTED, user);
+	}
+
+	@Override
+	public void newText(String user, CharSequence lineOfText) {
+		Transcript transcript = transcripts.get(user);
+		if (transcript != null) {
+			// What the server sent, so a replay is cleaned up the same way
+			transcript.record(System.currentTimeMillis(), TEXT, NormalizedLine.rawOf(lineOfText));
+		}
+	}
+
+	@Override
+	public void responseComplete(String user) {
+		Transcript transcript = transcripts.get(user);
+		if (transcript != null) {
+			transcript.record(System.currentTimeMillis(), RESPONSE_COMPLETE, null);
+		}
+	}
+
+	@Override
+	public void commandSent(String user, String command) {
+		Transcript transcript = transcripts.get(user);
+		if (transcript != null) {
+			transcript.record(System.currentTimeMillis(), COMMAND, command);
+		}
+	}
+
+	@Override
+	public void disconnected(String user, boolean expected) {
+		Transcript transcript = transcripts.remove(user);
+		if (transcript != null) {
+			transcript.record(System.currentTimeMillis(), DISCONNECTED, (expected ? "expected" : "unexpected"));
+		}
+	}
+
+	/**
+	 * @return the user name made safe to use in a file name
+	 */
+	static String fileName(String user) {
+		if (user.isEmpty()) {
+			return "_";
+		}
+		StringBuilder safe = new StringBuilder(user.length());
+		for (int i=0; i<user.length(); ++i) {
+			char c = user.charAt(i);
+			safe.append(Character.isLetterOrDigit(c) || (c == '_') ? c : '_');
+		}
+		return safe.toString();
+	}
+}
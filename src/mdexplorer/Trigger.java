@@ -6,10 +6,10 @@ public interface Trigger extends Scenario.Prototype {
 	
 	/**
 	 * Will trigger if a certain input is expected
-	 * @param input input string that causes the trigger
+	 * @param input input text that causes the trigger.  Only valid for the duration of the call.
 	 * @param props values may be pulled from the input string and put in the vars map for use by triggered actions (e.g. pulling out the name of an actor
 	 * so that the action can target that actor)
 	 * @return true if the input triggers this trigger
 	 */
-	public boolean triggeredBy(String input, Map<String, Object> vars);
+	public boolean triggeredBy(CharSequence input, Map<String, Object> vars);
 }
@@ -123,7 +123,8 @@ public class UserClient implements MUD.Listener {
 			ostrm = System.out;
 			istrm = System.in;
 		}
-		mud.listen(this);
+		// Writing to the remote client can block, so don't do it on the MUD's thread
+		mud.listenAsync(this, 1024, MUD.OverflowPolicy.COALESCE);
 	}
 	
 	private boolean checkSocket() {
@@ -164,12 +165,23 @@ public class UserClient implements MUD.Listener {
 	}
 
 	@Override
-	public void newText(String user, String lineOfText) {
+	public void newText(String user, CharSequence lineOfText) {
+		if (checkSocket()) {
+			try {
+				ostrm.write(lineOfText.toString().getBytes());
+				ostrm.flush();
+			} catch (IOException e) {
+				// Reset the socket so we try to connect again.
+				socket = null;
+			}
+		}
+	}
+
+	@Override
+	public void responseComplete(String user) {
 		if (checkSocket()) {
 			try {
 				ostrm.write("----------------------------------------------------\n".getBytes());
-				ostrm.write(lineOfText.getBytes());
-				ostrm.write("\n".getBytes());
 				ostrm.flush();
 			} catch (IOException e) {
 				// Reset the socket so we try to connect again.
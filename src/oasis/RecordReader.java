@@ -59,7 +59,7 @@ public class RecordReader {
 		}
 
 		@Override
-		public boolean triggeredBy(String input, Map<String, Object> vars) {
+		public boolean triggeredBy(CharSequence input, Map<String, Object> vars) {
 			// TODO Auto-generated method stub
 			return false;
 		}
@@ -79,7 +79,7 @@ public class RecordReader {
 		}
 
 		@Override
-		public boolean triggeredBy(String input, Map<String, Object> vars) {
+		public boolean triggeredBy(CharSequence input, Map<String, Object> vars) {
 			// TODO Auto-generated method stub
 			return false;
 		}
@@ -0,0 +1,670 @@
+package mdexplorer.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import mdexplorer.SessionActors;
+import mdexplorer.TranscriptReader;
+import mdexplorer.TranscriptRecorder;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * A local stand-in for the MUD, so scenarios can be run end to end, over and over, without the real
+ * one.  It logs users in the way MUD.connect expects and then either replays recorded transcripts,
+ * answers commands from a script, or generates room descriptions and chatter for load tests.
+ * <p>
+ * Replaying, each session gets the transcript recorded for the same user, or the first one if there
+ * is none.  The MUD's output after each command is sent again with the gaps it had, divided by the
+ * speed.  Commands are expected in the order they were recorded.  One that differs is reported, and
+ * answered with what the recorded one got.
+ * <p>
+ * A script is an XML file:
+ * <pre>
+ * &lt;FakeMud prompt="&gt; " rebootIn="3h 10m 5s"&gt;
+ *     &lt;Greeting&gt;Welcome to the fake MUD.&lt;/Greeting&gt;
+ *     &lt;Response command="look in bin" delayMillis="50"&gt;The newbie bin contains some slips.&lt;/Response&gt;
+ *     &lt;Response command="go .*"&gt;You walk.&lt;/Response&gt;
+ * &lt;/FakeMud&gt;
+ * </pre>
+ * Commands are matched against each Response's regular expression in order.  Commands nothing matches get
+ * "Huh?".  Every response ends with the prompt and a telnet GO-AHEAD.
+ * <p>
+ * Generating, "look" and "go" commands get a room description, like the ones loadScenarios.xml
+ * wanders through, and every so often a burst of other players' chatter comes first.  See LoadProfile.
+ * <p>
+ * Usage: FakeMudServer [-port 4000] [-speed 1] [-compress] (-script scriptFile | -replay transcriptFile... | -generate)
+ * A speed of 0 sends everything at once.  -compress offers MCCP2 compression.
+ */
+public class FakeMudServer {
+
+	private static final byte IAC = (byte)255;
+	private static final byte WILL = (byte)251;
+	private static final byte DO = (byte)253;
+	private static final byte SB = (byte)250;
+	private static final byte SE = (byte)240;
+	private static final byte GA = (byte)249;
+	private static final byte MCCP2 = 86;
+
+	/** What the client agreeing to compression reads as. */
+	private static final String AGREED_TO_COMPRESS = "\u0000DO";
+
+	/** One piece of output: text, or the end of a response. */
+	private static class Chunk {
+		/** How long after the command it answers it goes out, at real speed. */
+		final long delayMillis;
+		/** Null for the end of a response. */
+		final String text;
+
+		Chunk(long delayMillis, String text) {
+			this.delayMillis = delayMillis;
+			this.text = text;
+		}
+	}
+
+	/** What one session is told.  Made fresh for each connection. */
+	private static interface Conversation {
+		/**
+		 * @param step 0 on connecting, 1 after the user name, 2 after the password
+		 * @return what to send
+		 */
+		List<Chunk> login(int step);
+
+		/**
+		 * @return what to send, or null to hang up
+		 */
+		List<Chunk> respond(String command);
+	}
+
+	/** Makes a conversation for each session. */
+	private static interface Conversations {
+		Conversation start(String user);
+	}
+
+	private final int port;
+	private final double speed;
+	private final boolean compress;
+	private final Conversations conversations;
+
+	private ServerSocket ssocket;
+
+	/** Serves the sessions.  Virtual threads if the JVM has them, so thousands of sessions are cheap. */
+	private final ExecutorService executor = SessionActors.newDefaultExecutor();
+
+	/**
+	 * @param port the port to listen on, or 0 for any free one
+	 * @param speed how many times faster than real to replay gaps in output, or 0 for no gaps
+	 * @param compress whether to offer MCCP2 compression
+	 */
+	private FakeMudServer(int port, double speed, boolean compress, Conversations conversations) {
+		this.port = port;
+		this.speed = speed;
+		this.compress = compress;
+		this.conversations = conversations;
+	}
+
+	/**
+	 * A server that replays recorded transcripts.
+	 * @param transcripts the segment files.  A session's segments are joined back into one transcript.
+	 */
+	public static FakeMudServer replaying(int port, double speed, boolean compress, List<File> transcripts) throws IOException {
+		final Map<String, List<TranscriptReader.Entry>> byUser = new HashMap<String, List<TranscriptReader.Entry>>();
+		final List<List<TranscriptReader.Entry>> all = TranscriptReader.readSessions(transcripts);
+		for (List<TranscriptReader.Entry> entries: all) {
+			if ((entries.get(0).kind == TranscriptRecorder.CONNECTED) && !byUser.containsKey(entries.get(0).text)) {
+				byUser.put(entries.get(0).text, entries);
+			}
+		}
+		if (all.isEmpty()) {
+			throw new RuntimeException("No transcripts to replay in " + transcripts);
+		}
+		return new FakeMudServer(port, speed, compress, new Conversations() {
+			public Conversation start(String user) {
+				List<TranscriptReader.Entry> entries = byUser.get(user);
+				return new Replay(entries != null ? entries : all.get(0));
+			}
+		});
+	}
+
+	/**
+	 * What a generating server sends.
+	 */
+	public static class LoadProfile {
+		/** Lines of description in each room, not counting its name and exits. */
+		public int descriptionLines = 8;
+		/** About how long each line of description is. */
+		public int lineLength = 90;
+		/** Every this many responses get a burst of chatter first.  0 for none. */
+		public int burstEvery = 5;
+		/** How many lines of chatter in a burst. */
+		public int burstLines = 30;
+		/** How long after a command its response goes out, at real speed. */
+		public long delayMillis = 0;
+		public String prompt = "hp: 100 sp: 80 mv: 120> ";
+	}
+
+	/**
+	 * A server that generates output for load tests.
+	 */
+	public static FakeMudServer generating(int port, double speed, boolean compress, final LoadProfile profile) {
+		final Generator generator = new Generator(profile);
+		return new FakeMudServer(port, speed, compress, new Conversations() {
+			public Conversation start(String user) {
+				return generator.start();
+			}
+		});
+	}
+
+	/**
+	 * A server that answers commands from a script.
+	 */
+	public static FakeMudServer scripted(int port, double speed, boolean compress, File scriptFile) throws IOException {
+		final Script script = Script.load(scriptFile);
+		return new FakeMudServer(port, speed, compress, new Conversations() {
+			public Conversation start(String user) {
+				return script;
+			}
+		});
+	}
+
+	/**
+	 * Start listening, and serve each connection on a thread of its own.
+	 * @return the port being listened on
+	 */
+	public synchronized int start() throws IOException {
+		ssocket = new ServerSocket(port, 1000);
+		Thread acceptor = new Thread("Fake MUD Acceptor") {
+			public void run() {
+				serve();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return ssocket.getLocalPort();
+	}
+
+	/**
+	 * Stop taking new connections.  Sessions already going carry on, and the threads serving them end
+	 * with them.
+	 */
+	public synchronized void stop() {
+		try {
+			ssocket.close();
+		} catch (IOException e) {
+			// Don't care.  We're closing it out.
+		}
+		executor.shutdown();
+	}
+
+	private void serve() {
+		while (!ssocket.isClosed()) {
+			final Socket socket;
+			try {
+				socket = ssocket.accept();
+			} catch (IOException e) {
+				if (!ssocket.isClosed()) {
+					System.err.println("Fake MUD stopped taking connections: " + e.getMessage());
+				}
+				return;
+			}
+			synchronized (this) {
+				if (executor.isShutdown()) {
+					// Accepted just as it was stopped
+					try {
+						socket.close();
+					} catch (IOException e) {
+						// Don't care.  We're closing it out.
+					}
+					return;
+				}
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							handle(socket);
+						} catch (IOException e) {
+							System.err.println("Session ended: " + e.getMessage());
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						} finally {
+							try {
+								socket.close();
+							} catch (IOException e) {
+								// Don't care.  We're closing it out.
+							}
+						}
+					}
+				});
+			}
+		}
+	}
+
+	private void handle(Socket socket) throws IOException, InterruptedException {
+		socket.setTcpNoDelay(true);
+		InputStream istrm = new BufferedInputStream(socket.getInputStream());
+		OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+		if (compress) {
+			out.write(new byte[] {IAC, WILL, MCCP2});
+		}
+		// Who is logging in isn't known until the first line, so the greeting waits for it
+		String user = null;
+		Conversation conversation = null;
+		int loginStep = 0;
+		String line;
+		while ((line = readLine(istrm)) != null) {
+			if (line.equals(AGREED_TO_COMPRESS)) {
+				out.write(new byte[] {IAC, SB, MCCP2, IAC, SE});
+				out.flush();
+				out = new DeflaterOutputStream(out, true);
+				continue;
+			}
+			long received = System.currentTimeMillis();
+			List<Chunk> response;
+			if (user == null) {
+				user = line;
+				conversation = conversations.start(user);
+				send(out, conversation.login(0), received);
+				response = conversation.login(++loginStep);
+			} else if (loginStep < 2) {
+				response = conversation.login(++loginStep);
+			} else if (line.equals("quit")) {
+				break;
+			} else {
+				response = conversation.respond(line);
+				if (response == null) {
+					break;
+				}
+			}
+			send(out, response, received);
+		}
+		out.close();
+	}
+
+	/**
+	 * Send output, with its gaps shrunk by the speed.
+	 * @param from when the line it answers came in
+	 */
+	private void send(OutputStream out, List<Chunk> chunks, long from) throws IOException, InterruptedException {
+		for (Chunk chunk: chunks) {
+			if (speed > 0) {
+				long wait = from + (long)(chunk.delayMillis / speed) - System.currentTimeMillis();
+				if (wait > 0) {
+					out.flush();
+					Thread.sleep(wait);
+				}
+			}
+			if (chunk.text != null) {
+				out.write(chunk.text.getBytes("UTF-8"));
+			} else {
+				out.write(new byte[] {IAC, GA});
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Read a line from the client, skipping telnet commands.  A client agreeing to compression is
+	 * reported as a line of its own.
+	 */
+	private static String readLine(InputStream istrm) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int next;
+		while ((next = istrm.read()) >= 0) {
+			if (next == (IAC & 0xFF)) {
+				int verb = istrm.read();
+				if (verb == (IAC & 0xFF)) {
+					line.append((char)verb);
+					continue;
+				}
+				int option = istrm.read();
+				if ((verb == (DO & 0xFF)) && (option == MCCP2)) {
+					return AGREED_TO_COMPRESS;
+				}
+			} else if (next == '\n') {
+				return line.toString();
+			} else if (next != '\r') {
+				line.append((char)next);
+			}
+		}
+		return (line.length() > 0 ? line.toString() : null);
+	}
+
+	/**
+	 * Replays one recorded session.  The output before the first command is the login: up to the first
+	 * end of response on connecting, the next after the user name, the rest after the password.
+	 */
+	private static class Replay implements Conversation {
+		private final List<List<Chunk>> login = new ArrayList<List<Chunk>>();
+		private final List<String> commands = new ArrayList<String>();
+		private final List<List<Chunk>> responses = new ArrayList<List<Chunk>>();
+		private int next = 0;
+
+		Replay(List<TranscriptReader.Entry> entries) {
+			List<Chunk> current = new ArrayList<Chunk>();
+			login.add(current);
+			long since = entries.get(0).time;
+			boolean disconnected = false;
+			for (TranscriptReader.Entry entry: entries) {
+				switch (entry.kind) {
+				case TranscriptRecorder.TEXT:
+					current.add(new Chunk(entry.time - since, entry.text));
+					break;
+				case TranscriptRecorder.RESPONSE_COMPLETE:
+					current.add(new Chunk(entry.time - since, null));
+					if (commands.isEmpty() && (login.size() < 3)) {
+						current = new ArrayList<Chunk>();
+						login.add(current);
+					}
+					break;
+				case TranscriptRecorder.COMMAND:
+					commands.add(entry.text);
+					current = new ArrayList<Chunk>();
+					responses.add(current);
+					since = entry.time;
+					break;
+				case TranscriptRecorder.DISCONNECTED:
+					disconnected = true;
+					break;
+				}
+			}
+			if (disconnected) {
+				// The MUD hung up after the last command
+				commands.add(null);
+				responses.add(null);
+			}
+			while (login.size() < 3) {
+				login.add(new ArrayList<Chunk>());
+			}
+		}
+
+		public List<Chunk> login(int step) {
+			// The first step's output was timed from connecting, the same as the later ones
+			return login.get(step);
+		}
+
+		public List<Chunk> respond(String command) {
+			if (next >= commands.size()) {
+				System.err.println("Transcript ran out.  Hanging up on \"" + command + "\"");
+				return null;
+			}
+			String expected = commands.get(next);
+			if ((expected != null) && !expected.equals(command)) {
+				System.err.println("Expected \"" + expected + "\" but got \"" + command + "\".  Replaying anyway.");
+			}
+			return responses.get(next++);
+		}
+	}
+
+	/**
+	 * Answers commands from a script.  Shared by every session, since it only looks things up.
+	 */
+	private static class Script implements Conversation {
+		private final List<Pattern> commands = new ArrayList<Pattern>();
+		private final List<List<Chunk>> responses = new ArrayList<List<Chunk>>();
+		private final String prompt;
+		private final String greeting;
+		/** When the pretend reboot is. */
+		private final long rebootTime;
+
+		private Script(String prompt, String greeting, long rebootTime) {
+			this.prompt = prompt;
+			this.greeting = greeting;
+			this.rebootTime = rebootTime;
+		}
+
+		static Script load(File file) throws IOException {
+			Element root;
+			try {
+				root = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file).getDocumentElement();
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new RuntimeException("Couldn't read script " + file, e);
+			}
+			String prompt = (root.hasAttribute("prompt") ? root.getAttribute("prompt") : "> ");
+			long rebootIn = (root.hasAttribute("rebootIn") ? parseRebootIn(root.getAttribute("rebootIn")) : 3 * 60 * 60 * 1000);
+			String greeting = "Welcome.";
+			List<Element> responses = new ArrayList<Element>();
+			NodeList children = root.getChildNodes();
+			for (int i=0; i<children.getLength(); ++i) {
+				Node child = children.item(i);
+				if (child.getNodeType() != Node.ELEMENT_NODE) {
+					continue;
+				}
+				if (child.getNodeName().equals("Greeting")) {
+					greeting = text((Element)child);
+				} else if (child.getNodeName().equals("Response")) {
+					responses.add((Element)child);
+				} else {
+					throw new RuntimeException("Unknown tag <" + child.getNodeName() + "> found in <" + root.getNodeName() + "> tag.");
+				}
+			}
+			Script script = new Script(prompt, greeting, System.currentTimeMillis() + rebootIn);
+			for (Element response: responses) {
+				if (!response.hasAttribute("command")) {
+					throw new RuntimeException("Missing \"command\" attribute in <Response> tag.");
+				}
+				long delay = (response.hasAttribute("delayMillis") ? Long.parseLong(response.getAttribute("delayMillis").trim()) : 0);
+				script.commands.add(Pattern.compile(response.getAttribute("command")));
+				script.responses.add(script.reply(delay, text(response)));
+			}
+			return script;
+		}
+
+		public List<Chunk> login(int step) {
+			List<Chunk> chunks = new ArrayList<Chunk>();
+			if (step == 0) {
+				// Worked out per session, since it counts down
+				long left = Math.max(0, rebootTime - System.currentTimeMillis()) / 1000;
+				chunks.add(new Chunk(0, "Next reboot: in " + (left / 3600) + "h " + ((left / 60) % 60) + "m " + (left % 60) + "s\n"));
+				chunks.add(new Chunk(0, "Name? "));
+				chunks.add(new Chunk(0, null));
+			} else if (step == 1) {
+				chunks.add(new Chunk(0, "Password? "));
+				chunks.add(new Chunk(0, null));
+			} else {
+				chunks.addAll(reply(0, greeting));
+			}
+			return chunks;
+		}
+
+		public List<Chunk> respond(String command) {
+			for (int i=0; i<commands.size(); ++i) {
+				if (commands.get(i).matcher(command).matches()) {
+					return responses.get(i);
+				}
+			}
+			return reply(0, "Huh?");
+		}
+
+		private List<Chunk> reply(long delay, String text) {
+			List<Chunk> chunks = new ArrayList<Chunk>();
+			chunks.add(new Chunk(delay, (text.isEmpty() ? "" : text + "\n") + prompt));
+			chunks.add(new Chunk(delay, null));
+			return chunks;
+		}
+
+		/**
+		 * @return the text in a tag, with each line trimmed
+		 */
+		private static String text(Element element) {
+			StringBuilder text = new StringBuilder();
+			for (String line: element.getTextContent().split("\\r?\\n")) {
+				if (!line.trim().isEmpty()) {
+					text.append(text.length() > 0 ? "\n" : "").append(line.trim());
+				}
+			}
+			return text.toString();
+		}
+
+		/**
+		 * @return how long "1h 2m 3s" is, in milliseconds
+		 */
+		private static long parseRebootIn(String str) {
+			long millis = 0;
+			for (String part: str.trim().split("\\s+")) {
+				long amount = Long.parseLong(part.substring(0, part.length() - 1));
+				switch (part.charAt(part.length() - 1)) {
+				case 'h':
+					millis += amount * 60 * 60 * 1000;
+					break;
+				case 'm':
+					millis += amount * 60 * 1000;
+					break;
+				case 's':
+					millis += amount * 1000;
+					break;
+				default:
+					throw new RuntimeException("Can't read reboot time \"" + str + "\"");
+				}
+			}
+			return millis;
+		}
+	}
+
+	/**
+	 * Makes up rooms and chatter for a generating server.  Everything is made once up front and shared,
+	 * so the server spends its time sending rather than building text.
+	 */
+	private static class Generator {
+		private static final String[] WORDS = {
+			"the", "a", "dusty", "old", "bin", "wall", "floor", "light", "shadow", "window", "door", "corner",
+			"broken", "faded", "poster", "junk", "cramped", "narrow", "stone", "wooden", "rat", "smell", "of",
+			"with", "and", "against", "under", "sits", "leans", "hangs", "peels", "from", "across", "is"
+		};
+		private static final String[] EXITS = {
+			"north", "south", "east", "west", "north, south", "east, west", "north, east, west", "up, down"
+		};
+		private static final int ROOMS = 64;
+
+		private final LoadProfile profile;
+		private final List<String> rooms = new ArrayList<String>();
+		private final String burst;
+		/** Spreads the sessions over the rooms. */
+		private final AtomicInteger sessions = new AtomicInteger();
+		/** Used for the login, which is the same as a script's. */
+		private final Script login;
+
+		Generator(LoadProfile profile) {
+			this.profile = profile;
+			Random random = new Random(42);
+			for (int i=0; i<ROOMS; ++i) {
+				StringBuilder room = new StringBuilder("Room number " + i + ".\n");
+				for (int j=0; j<profile.descriptionLines; ++j) {
+					room.append(sentence(random, profile.lineLength)).append('\n');
+				}
+				room.append("Obvious exits: ").append(EXITS[random.nextInt(EXITS.length)]).append('.');
+				rooms.add(room.toString());
+			}
+			StringBuilder chatter = new StringBuilder();
+			for (int i=0; i<profile.burstLines; ++i) {
+				chatter.append("Player").append(random.nextInt(1000)).append(" shouts: ")
+					.append(sentence(random, profile.lineLength / 2)).append('\n');
+			}
+			burst = chatter.toString();
+			login = new Script(profile.prompt, "Welcome to the load test.", System.currentTimeMillis() + 3 * 60 * 60 * 1000);
+		}
+
+		private static String sentence(Random random, int length) {
+			StringBuilder sentence = new StringBuilder();
+			while (sentence.length() < length) {
+				sentence.append(sentence.length() > 0 ? " " : "").append(WORDS[random.nextInt(WORDS.length)]);
+			}
+			sentence.setCharAt(0, Character.toUpperCase(sentence.charAt(0)));
+			return sentence.append('.').toString();
+		}
+
+		Conversation start() {
+			final int first = sessions.getAndIncrement();
+			return new Conversation() {
+				private int room = first % ROOMS;
+				private int responses = 0;
+
+				public List<Chunk> login(int step) {
+					return login.login(step);
+				}
+
+				public List<Chunk> respond(String command) {
+					List<Chunk> chunks = new ArrayList<Chunk>();
+					++responses;
+					if ((profile.burstEvery > 0) && (responses % profile.burstEvery == 0)) {
+						chunks.add(new Chunk(profile.delayMillis, burst));
+					}
+					String text;
+					if (command.startsWith("go ")) {
+						room = (room + 1) % ROOMS;
+						text = rooms.get(room);
+					} else if (command.equals("look")) {
+						text = rooms.get(room);
+					} else {
+						text = "You do that.";
+					}
+					chunks.add(new Chunk(profile.delayMillis, text + "\n" + profile.prompt));
+					chunks.add(new Chunk(profile.delayMillis, null));
+					return chunks;
+				}
+			};
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int port = 4000;
+		double speed = 1;
+		boolean compress = false;
+		File script = null;
+		boolean generate = false;
+		List<File> transcripts = new ArrayList<File>();
+		for (int i=0; i<args.length; ++i) {
+			if (args[i].equals("-port") && (i + 1 < args.length)) {
+				port = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-speed") && (i + 1 < args.length)) {
+				speed = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-compress")) {
+				compress = true;
+			} else if (args[i].equals("-script") && (i + 1 < args.length)) {
+				script = new File(args[++i]);
+			} else if (args[i].equals("-generate")) {
+				generate = true;
+			} else if (args[i].equals("-replay")) {
+				while ((i + 1 < args.length) && !args[i + 1].startsWith("-")) {
+					transcripts.add(new File(args[++i]));
+				}
+			} else {
+				transcripts.clear();
+				break;
+			}
+		}
+		if ((script != null ? 1 : 0) + (transcripts.isEmpty() ? 0 : 1) + (generate ? 1 : 0) != 1) {
+			System.err.println("Usage: FakeMudServer [-port 4000] [-speed 1] [-compress] (-script scriptFile | -replay transcriptFile... | -generate)");
+			System.exit(1);
+		}
+		FakeMudServer server;
+		if (generate) {
+			server = generating(port, speed, compress, new LoadProfile());
+		} else if (script != null) {
+			server = scripted(port, speed, compress, script);
+		} else {
+			server = replaying(port, speed, compress, transcripts);
+		}
+		System.out.println("Fake MUD listening on port " + server.start());
+		Thread.sleep(Long.MAX_VALUE);
+	}
+}
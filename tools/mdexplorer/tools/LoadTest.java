@@ -0,0 +1,223 @@
+package mdexplorer.tools;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import mdexplorer.MUD;
+import mdexplorer.Robot;
+import mdexplorer.Scenario;
+import mdexplorer.ScenarioDefinition;
+import mdexplorer.ScenarioLibrary;
+import mdexplorer.SessionActor;
+import mdexplorer.SessionActors;
+
+/**
+ * Finds out how many sessions one JVM can drive.  Logs in any number of users, each a Robot run by
+ * session actors rather than a whole Explorer, has each wander from room to room with the "wander"
+ * scenario in loadScenarios.xml, and after a while reports throughput, trigger latency, garbage
+ * collection and threads, counting only what happened while it was measuring.  Unless pointed at a server, it starts a generating FakeMudServer of its own, in the same JVM.
+ * <p>
+ * Usage: LoadTest [-sessions 1000] [-seconds 60] [-server host -port 4000] [-compress]
+ * [-rate commandsPerSecond] [-burst commands]
+ */
+public class LoadTest {
+
+	private static final String SCENARIO_FILE = "loadScenarios.xml";
+	private static final String SCENARIO_NAME = "wander";
+
+	private static final double NANOS_PER_MILLI = 1000000.0;
+	private static final double NANOS_PER_MICRO = 1000.0;
+
+	/** What the MUD's metrics and the JVM said at one moment. */
+	private static class Snapshot {
+		long time;
+		long bytesRead;
+		long linesDispatched;
+		long responsesDispatched;
+		long commandsSent;
+		long statesLeft;
+		long triggerEvaluations;
+		long triggerTimeTotal;
+		long[] triggerTimeBuckets;
+		long throttleWaitTotal;
+		long[] throttleWaitBuckets;
+		long collections;
+		long collectionMillis;
+
+		static Snapshot take(MBeanServer server, ObjectName sessions) throws JMException {
+			Snapshot snapshot = new Snapshot();
+			snapshot.time = System.currentTimeMillis();
+			snapshot.bytesRead = (Long)server.getAttribute(sessions, "BytesRead");
+			snapshot.linesDispatched = (Long)server.getAttribute(sessions, "LinesDispatched");
+			snapshot.responsesDispatched = (Long)server.getAttribute(sessions, "ResponsesDispatched");
+			snapshot.commandsSent = (Long)server.getAttribute(sessions, "CommandsSent");
+			snapshot.statesLeft = (Long)server.getAttribute(sessions, "StatesLeft");
+			snapshot.triggerEvaluations = (Long)server.getAttribute(sessions, "TriggerEvaluations");
+			snapshot.triggerTimeTotal = (Long)server.getAttribute(sessions, "TriggerTimeTotalNanos");
+			snapshot.triggerTimeBuckets = (long[])server.getAttribute(sessions, "TriggerTimeBuckets");
+			snapshot.throttleWaitTotal = (Long)server.getAttribute(sessions, "ThrottleWaitTotalNanos");
+			snapshot.throttleWaitBuckets = (long[])server.getAttribute(sessions, "ThrottleWaitBuckets");
+			for (GarbageCollectorMXBean collector: ManagementFactory.getGarbageCollectorMXBeans()) {
+				snapshot.collections += Math.max(0, collector.getCollectionCount());
+				snapshot.collectionMillis += Math.max(0, collector.getCollectionTime());
+			}
+			return snapshot;
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException, JMException {
+		int sessions = 1000;
+		int seconds = 60;
+		String host = null;
+		int port = 4000;
+		boolean compress = false;
+		double rate = MUD.DEFAULT_COMMANDS_PER_SECOND;
+		int burst = MUD.DEFAULT_COMMAND_BURST;
+		for (int i=0; i<args.length; ++i) {
+			if (args[i].equals("-sessions") && (i + 1 < args.length)) {
+				sessions = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-seconds") && (i + 1 < args.length)) {
+				seconds = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-server") && (i + 1 < args.length)) {
+				host = args[++i];
+			} else if (args[i].equals("-port") && (i + 1 < args.length)) {
+				port = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-compress")) {
+				compress = true;
+			} else if (args[i].equals("-rate") && (i + 1 < args.length)) {
+				rate = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-burst") && (i + 1 < args.length)) {
+				burst = Integer.parseInt(args[++i]);
+			} else {
+				System.err.println("Usage: LoadTest [-sessions 1000] [-seconds 60] [-server host -port 4000] [-compress] " +
+						"[-rate commandsPerSecond] [-burst commands]");
+				System.exit(1);
+			}
+		}
+
+		FakeMudServer generator = null;
+		if (host == null) {
+			generator = FakeMudServer.generating(0, 1, compress, new FakeMudServer.LoadProfile());
+			port = generator.start();
+			host = "127.0.0.1";
+		}
+		ScenarioDefinition wander = new ScenarioLibrary(Arrays.asList(SCENARIO_FILE)).get(SCENARIO_NAME);
+		if (wander == null) {
+			throw new RuntimeException("No scenario named \"" + SCENARIO_NAME + "\" in " + SCENARIO_FILE);
+		}
+		MUD mud = new MUD(host, port);
+		mud.setCompressionEnabled(compress);
+		mud.setCommandRate(rate, burst);
+		mud.publishMetrics();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName totals = new ObjectName("mdexplorer:type=Sessions,mud=" + ObjectName.quote(host + ":" + port));
+
+		SessionActors actors = new SessionActors(mud);
+		List<SessionActor> running = new ArrayList<SessionActor>(sessions);
+		long started = System.currentTimeMillis();
+		for (int i=0; i<sessions; ++i) {
+			String user = "load" + i;
+			running.add(actors.start(user, "password", new Robot(mud, user), new Scenario(wander)));
+		}
+		System.out.println("Started " + sessions + " sessions in " + (System.currentTimeMillis() - started) + "ms");
+
+		Snapshot first = Snapshot.take(server, totals);
+		Thread.sleep(seconds * 1000L);
+		Snapshot last = Snapshot.take(server, totals);
+		report(server, totals, running, first, last);
+		if (generator != null) {
+			System.out.println("The server ran in this JVM, so its threads and garbage are counted too.");
+		}
+
+		for (SessionActor actor: running) {
+			mud.disconnect(actor.getUser());
+		}
+		actors.shutdown();
+		if (generator != null) {
+			generator.stop();
+		}
+		System.exit(0);
+	}
+
+	private static void report(MBeanServer server, ObjectName totals, List<SessionActor> running, Snapshot first,
+			Snapshot last) throws JMException {
+		double seconds = Math.max(1, last.time - first.time) / 1000.0;
+		int finished = 0;
+		for (SessionActor actor: running) {
+			if (actor.isDone()) {
+				++finished;
+			}
+		}
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		System.out.println();
+		System.out.println("Sessions:            " + running.size() + " started, " + finished + " finished early");
+		System.out.println("Measured for:        " + format(seconds) + "s");
+		System.out.println("Bytes read:          " + format((last.bytesRead - first.bytesRead) / seconds) + "/s");
+		System.out.println("Lines dispatched:    " + format((last.linesDispatched - first.linesDispatched) / seconds) + "/s");
+		System.out.println("Responses:           " + format((last.responsesDispatched - first.responsesDispatched) / seconds) + "/s");
+		System.out.println("Commands sent:       " + format((last.commandsSent - first.commandsSent) / seconds) + "/s");
+		System.out.println("State transitions:   " + format((last.statesLeft - first.statesLeft) / seconds) + "/s");
+		System.out.println("Trigger evaluations: " + format((last.triggerEvaluations - first.triggerEvaluations) / seconds) + "/s");
+		System.out.println("Trigger time (us):   " + latencies(first.triggerTimeTotal, first.triggerTimeBuckets,
+				last.triggerTimeTotal, last.triggerTimeBuckets, NANOS_PER_MICRO) +
+				", max since started " + format((Double)server.getAttribute(totals, "TriggerTimeMaxMicros")));
+		System.out.println("Throttle wait (ms):  " + latencies(first.throttleWaitTotal, first.throttleWaitBuckets,
+				last.throttleWaitTotal, last.throttleWaitBuckets, NANOS_PER_MILLI));
+		System.out.println("GC:                  " + (last.collections - first.collections) + " collections, " +
+				(last.collectionMillis - first.collectionMillis) + "ms (" +
+				format(100.0 * (last.collectionMillis - first.collectionMillis) / (seconds * 1000)) + "% of the time)");
+		System.out.println("Heap used:           " + (heap.getUsed() / (1024 * 1024)) + "MB of " + (heap.getCommitted() / (1024 * 1024)) + "MB");
+		System.out.println("Threads:             " + threads.getThreadCount() + " live, " + threads.getPeakThreadCount() + " peak");
+		System.out.println("Latency percentiles are to within a factor of two.");
+	}
+
+	/**
+	 * @return the mean, p50 and p99 of what a latency histogram counted between two snapshots of it
+	 */
+	private static String latencies(long firstTotal, long[] firstBuckets, long lastTotal, long[] lastBuckets,
+			double nanosPerUnit) {
+		long[] counts = new long[lastBuckets.length];
+		long count = 0;
+		for (int i=0; i<counts.length; ++i) {
+			counts[i] = lastBuckets[i] - firstBuckets[i];
+			count += counts[i];
+		}
+		double mean = (count > 0 ? (lastTotal - firstTotal) / (double)count : 0);
+		return "mean " + format(mean / nanosPerUnit) + ", p50 " + format(percentile(counts, count, 0.5) / nanosPerUnit) +
+				", p99 " + format(percentile(counts, count, 0.99) / nanosPerUnit);
+	}
+
+	/**
+	 * @return the top of the bucket the percentile falls in, bucket n counting values from 2^(n-1) up to 2^n - 1
+	 */
+	private static long percentile(long[] counts, long count, double fraction) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long)Math.ceil(fraction * count);
+		long seen = 0;
+		for (int i=0; i<counts.length; ++i) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return (i == 0 ? 0 : (i == counts.length - 1 ? Long.MAX_VALUE : (1L << i) - 1));
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.1f", value);
+	}
+}
@@ -0,0 +1,162 @@
+package mdexplorer.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A tiny local MUD that offers MCCP2 compression, for checking that MUD inflates the stream.
+ * It logs users in, answers every command with a long room description and reports how many
+ * bytes compression saved.
+ */
+public class MccpTestServer {
+
+	private static final byte IAC = (byte)255;
+	private static final byte WILL = (byte)251;
+	private static final byte DO = (byte)253;
+	private static final byte SB = (byte)250;
+	private static final byte SE = (byte)240;
+	private static final byte GA = (byte)249;
+	private static final byte MCCP2 = 86;
+
+	private static final String ROOM =
+			"The Newbie Bin Room\n" +
+			"This cramped room is filled floor to ceiling with junk that older players have left behind\n" +
+			"for newer ones.  A battered metal bin sits against the far wall, its lid propped open with\n" +
+			"a broken broom handle.  Faded posters of long forgotten bands peel away from the walls.\n" +
+			"Obvious exits: north, south, west.\n";
+
+	private int port;
+
+	public MccpTestServer(int port) {
+		this.port = port;
+	}
+
+	public void serve() throws IOException {
+		ServerSocket ssocket = new ServerSocket(port);
+		System.out.println("MCCP test server listening on port " + port);
+		while (!Thread.currentThread().isInterrupted()) {
+			final Socket socket = ssocket.accept();
+			new Thread("MCCP Test Session") {
+				public void run() {
+					try {
+						handle(socket);
+					} catch (IOException e) {
+						System.err.println("Session ended: " + e.getMessage());
+					} finally {
+						try {
+							socket.close();
+						} catch (IOException e) {
+							// Don't care.  We're closing it out.
+						}
+					}
+				}
+			}.start();
+		}
+		ssocket.close();
+	}
+
+	private void handle(Socket socket) throws IOException {
+		InputStream istrm = socket.getInputStream();
+		OutputStream rawOut = socket.getOutputStream();
+		rawOut.write(new byte[] {IAC, WILL, MCCP2});
+		rawOut.write("Next reboot: in 3h 10m 5s\nName? ".getBytes("UTF-8"));
+		rawOut.write(new byte[] {IAC, GA});
+		rawOut.flush();
+
+		CountingOutputStream counted = new CountingOutputStream(rawOut);
+		OutputStream out = counted;
+		boolean compressing = false;
+		long plainBytes = 0;
+		String user = null;
+		boolean loggedIn = false;
+		String line;
+		while ((line = readLine(istrm)) != null) {
+			if (line.equals("\u0000DO")) {
+				// Client agreed to compression
+				rawOut.write(new byte[] {IAC, SB, MCCP2, IAC, SE});
+				rawOut.flush();
+				out = new DeflaterOutputStream(counted, true);
+				compressing = true;
+				continue;
+			}
+			String response;
+			if (user == null) {
+				user = line;
+				response = "Password? ";
+			} else if (!loggedIn) {
+				loggedIn = true;
+				response = "Welcome, " + user + ".\n> ";
+			} else if (line.equals("quit")) {
+				break;
+			} else {
+				response = ROOM + ROOM + ROOM + "hp: 100> ";
+			}
+			byte[] bytes = response.getBytes("UTF-8");
+			plainBytes += bytes.length + 2;
+			out.write(bytes);
+			out.write(new byte[] {IAC, GA});
+			out.flush();
+		}
+		out.close();
+		System.out.println(user + ": " + plainBytes + " bytes of output sent as " + counted.count +
+				" bytes" + (compressing ? " compressed" : " uncompressed"));
+	}
+
+	/**
+	 * Read a line from the client, skipping telnet commands.  A client agreeing to compression is
+	 * reported as a line of its own.
+	 */
+	private static String readLine(InputStream istrm) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int next;
+		while ((next = istrm.read()) >= 0) {
+			if (next == (IAC & 0xFF)) {
+				int verb = istrm.read();
+				int option = istrm.read();
+				if ((verb == (DO & 0xFF)) && (option == MCCP2)) {
+					return "\u0000DO";
+				}
+			} else if (next == '\n') {
+				return line.toString();
+			} else if (next != '\r') {
+				line.append((char)next);
+			}
+		}
+		return (line.length() > 0 ? line.toString() : null);
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+		private final OutputStream delegate;
+		long count = 0;
+
+		CountingOutputStream(OutputStream delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			delegate.write(b);
+			++count;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			delegate.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			delegate.flush();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = (args.length > 0 ? Integer.parseInt(args[0]) : 4000);
+		new MccpTestServer(port).serve();
+	}
+}